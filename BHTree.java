@@ -3,137 +3,1198 @@
  *
  * Represents a quadtree for the Barnes-Hut algorithm.
  *
- * Dependencies: Particle.java Quad.java
+ * The nodes live in a pool of parallel primitive arrays and refer to
+ * each other by index, so the tree can be reset and rebuilt every
+ * timestep without allocating. The four children of an internal node
+ * are stored next to each other, in the order NW, NE, SW, SE.
+ *
+ * The tree is built either by inserting bodies one at a time, or in
+ * parallel from bodies sorted by Morton key (see build()). Between
+ * steps it can also be refitted: only the bodies that left their
+ * external node are moved (see refit()).
+ *
+ * An external node holds a bucket of up to leafSize bodies, and is
+ * split only when one more arrives. No node is split below MAX_DEPTH
+ * levels, where the bucket takes any number of bodies and the walk
+ * sums them directly, so bodies at the same position, or closer than
+ * the deepest cell, cannot make the tree grow without bound.
+ *
+ * The walks find the bodies of an external node as one run of slot[],
+ * so a bucket is read as a single range of indices. The Morton build
+ * fills each run straight from the sorted keys. Insertion chains the
+ * bodies of a bucket through next[] instead, as a run cannot grow in
+ * place, and compact() lays the chains out as runs, in depth-first
+ * order, once the bodies are in.
+ *
+ * Dependencies: GravitySolver.java ParticleStore.java Quad.java MortonKeys.java
+ *               WalkCounters.java
  *
  * @author chindesaurus
- * @version 1.00 
+ * @version 1.00
  */
 
-public class BHTree {
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class BHTree implements GravitySolver {
 
     // threshold value
-    private final double Theta = 0.5;
+    private double Theta = 0.5;
+
+    // how nodes are opened, and whether accepted nodes act with their quadrupole moments
+    private OpeningCriterion criterion = OpeningCriterion.GEOMETRIC;
+    private boolean quadrupole;
+
+    // offsets of the quadrants from the first child of a node
+    private static final int NW = 0;
+    private static final int NE = 1;
+    private static final int SW = 2;
+    private static final int SE = 3;
+
+    // child offset of each Morton quadrant digit (bit 1 north, bit 0 east)
+    private static final int[] DIGIT_TO_CHILD = { SW, SE, NW, NE };
+
+    // deepest level a node is split to, the same for both builds
+    public static final int MAX_DEPTH = MortonKeys.LEVELS;
+
+    // most bodies an external node above MAX_DEPTH holds
+    public static final int DEFAULT_LEAF_SIZE = 8;
+    private int leafSize = DEFAULT_LEAF_SIZE;
+
+    private final ParticleStore store;     // bodies the tree is built over
+
+    private int[] child;       // index of the first of four children, or -1 if external
+    private int[] start;       // first slot of the bodies of an external node
+    private int[] head;        // first body of an external node's chain while inserting, or -1
+    private final int[] slot;  // bodies of external node v in slots [start[v], start[v] + count[v])
+    private final int[] next;  // next body in the same chain while inserting, or -1, by body index
+    private final int[] leaf;  // external node holding a body, or -1 if not in the tree
+    private boolean chained;   // whether the buckets are chains rather than runs of slot[]
+    private double[] mass;     // total mass of the bodies below a node
+    private int[] count;       // number of bodies below a node
+    private double[] comX;     // center-of-mass of the bodies below a node
+    private double[] comY;
+    private double[] qxx;      // second moments of the mass below a node about its center-of-mass
+    private double[] qxy;
+    private double[] qyy;
+    private double[] xmid;     // center of the square region a node represents
+    private double[] ymid;
+    private double[] length;   // side length of the square region a node represents
+    private int size;          // number of nodes in use; node 0 is the root
+
+    // subtrees deferred by a parallel build: root node, key range and level
+    private int subtrees;
+    private int[] subtreeNode = new int[16];
+    private int[] subtreeLo = new int[16];
+    private int[] subtreeHi = new int[16];
+    private int[] subtreeLevel = new int[16];
+    private int[] subtreeFirst = new int[16];  // node count, then first pool slot
+
+    // groups for the group walk: group g is bodies groupBody[groupStart[g]] to
+    // groupBody[groupStart[g + 1] - 1]
+    private int groups;
+    private int[] groupStart = new int[16];
+    private final int[] groupBody;
+
+    // bodies that left their external node, and the number moved since the last full build
+    private final int[] movers;
+    private int moved;
+
+    // fraction of the bodies that may move in one refit, and in total between full builds
+    private static final double REFIT_STEP_LIMIT = 0.25;
+    private static final double REFIT_TOTAL_LIMIT = 1.0;
+
+    /**
+     * Constructor: creates an empty Barnes-Hut tree over the bodies
+     * of the store. Call reset() before inserting bodies.
+     *
+     * @param store the bodies that are inserted by index
+     */
+    public BHTree(ParticleStore store) {
+        this(store, null);
+    }
+
+
+    /**
+     * Constructor: creates an empty Barnes-Hut tree over the bodies of
+     * the store that takes over the node pool of a tree that is no
+     * longer used, and its arrays by body if they are long enough.
+     *
+     * @param store the bodies that are inserted by index
+     * @param spare a tree whose arrays are reused, or null
+     */
+    public BHTree(ParticleStore store, BHTree spare) {
+        this.store = store;
+        int n = store.size();
+        boolean fits = spare != null && spare.next.length >= n;
+        this.slot = fits ? spare.slot : new int[n];
+        this.next = fits ? spare.next : new int[n];
+        this.leaf = fits ? spare.leaf : new int[n];
+        this.movers = fits ? spare.movers : new int[n];
+        this.groupBody = fits ? spare.groupBody : new int[n];
+        Arrays.fill(leaf, -1);
+        if (spare == null) {
+            allocate(Math.max(16, 2 * n + 1));
+            return;
+        }
+        child = spare.child;
+        start = spare.start;
+        head = spare.head;
+        mass = spare.mass;
+        count = spare.count;
+        comX = spare.comX;
+        comY = spare.comY;
+        qxx = spare.qxx;
+        qxy = spare.qxy;
+        qyy = spare.qyy;
+        xmid = spare.xmid;
+        ymid = spare.ymid;
+        length = spare.length;
+        groupStart = spare.groupStart;
+        subtreeNode = spare.subtreeNode;
+        subtreeLo = spare.subtreeLo;
+        subtreeHi = spare.subtreeHi;
+        subtreeLevel = spare.subtreeLevel;
+        subtreeFirst = spare.subtreeFirst;
+        ensureCapacity(Math.max(16, 2 * n + 1));
+    }
+
+
+    /**
+     * Empties the tree and makes its root represent quadrant q.
+     * The node pool is kept, so rebuilding does not allocate once
+     * the pool has grown large enough.
+     *
+     * @param q the quadrant the root is contained within
+     */
+    public void reset(Quad q) {
+        size = 0;
+        moved = 0;
+        chained = true;
+        Arrays.fill(leaf, -1);
+        newNode(q.getXmid(), q.getYmid(), q.getLength());
+    }
+
+
+    /**
+     * Forgets the tree, so that the next refit() fails and it is built
+     * in full. Call this when the bodies of the store were moved to
+     * other slots, since the tree knows them by index.
+     */
+    public void invalidate() {
+        size = 0;
+    }
+
+    /**
+     * Adds body b of the store to the invoking Barnes-Hut tree. The
+     * walks see the bodies added this way only after computeMoments().
+     */
+    public void insert(int b) {
+        if (!chained)
+            chain();
+        int node = 0;
+        int level = 0;
+        while (true) {
+
+            // internal node: update the center-of-mass and total mass,
+            // then descend into the appropriate quadrant
+            if (child[node] != -1) {
+                plus(node, b);
+                node = quadrant(node, b);
+                level++;
+                continue;
+            }
+
+            // if this node does not contain a body, put the new body b here
+            if (head[node] == -1) {
+                head[node] = b;
+                next[b] = -1;
+                leaf[b] = node;
+                mass[node] = store.mass(b);
+                count[node] = 1;
+                comX[node] = store.rx(b);
+                comY[node] = store.ry(b);
+                return;
+            }
+
+            // room in the bucket, or as deep as the tree goes
+            if (count[node] < leafSize || level == MAX_DEPTH) {
+                next[b] = head[node];
+                head[node] = b;
+                leaf[b] = node;
+                plus(node, b);
+                return;
+            }
+
+            // full bucket: subdivide the region further, move the bodies
+            // stored here into their quadrants and descend with b
+            int j = head[node];
+            split(node);
+            while (j != -1) {
+                int after = next[j];
+                int c = quadrant(node, j);
+                if (head[c] == -1) {
+                    next[j] = -1;
+                    mass[c] = store.mass(j);
+                    count[c] = 1;
+                    comX[c] = store.rx(j);
+                    comY[c] = store.ry(j);
+                }
+                else {
+                    next[j] = head[c];
+                    plus(c, j);
+                }
+                head[c] = j;
+                leaf[j] = c;
+                j = after;
+            }
+        }
+    }
+
+
+    /**
+     * Turns the run of slot[] of every external node into a chain, so
+     * that bodies can be inserted and unlinked.
+     */
+    private void chain() {
+        for (int node = 0; node < size; node++) {
+            head[node] = -1;
+            if (!isExternal(node))
+                continue;
+            for (int k = start[node] + count[node] - 1; k >= start[node]; k--) {
+                next[slot[k]] = head[node];
+                head[node] = slot[k];
+            }
+        }
+        chained = true;
+    }
+
+
+    /**
+     * Lays the chain of every external node out as a run of slot[], the
+     * runs in depth-first order, and sets the count of each external
+     * node to the length of its run.
+     */
+    private void compact() {
+        if (size > 0)
+            compact(0, 0);
+        chained = false;
+    }
+
+    private int compact(int node, int filled) {
+        if (isExternal(node)) {
+            start[node] = filled;
+            for (int j = head[node]; j != -1; j = next[j])
+                slot[filled++] = j;
+            count[node] = filled - start[node];
+            return filled;
+        }
+        for (int c = child[node]; c < child[node] + 4; c++)
+            filled = compact(c, filled);
+        return filled;
+    }
+
+
+    /**
+     * Folds body b into the center-of-mass and total mass of a node.
+     */
+    private void plus(int node, int b) {
+        double m = mass[node] + store.mass(b);
+        comX[node] = (comX[node] * mass[node] + store.rx(b) * store.mass(b)) / m;
+        comY[node] = (comY[node] * mass[node] + store.ry(b) * store.mass(b)) / m;
+        mass[node] = m;
+        count[node]++;
+    }
+
+
+    /**
+     * Returns the child of node whose quadrant contains body b, found
+     * by comparing the body's position against the node center. Bodies
+     * on the center lines go east and north, as MortonKeys.encode()
+     * puts them.
+     */
+    private int quadrant(int node, int b) {
+        boolean west = store.rx(b) < xmid[node];
+        boolean north = store.ry(b) >= ymid[node];
+        if (north)
+            return child[node] + (west ? NW : NE);
+        else
+            return child[node] + (west ? SW : SE);
+    }
+
+
+    /**
+     * Turns an external node into an internal node with four empty children.
+     */
+    private void split(int node) {
+        if (size + 4 > child.length)
+            grow();
+        split(node, size);
+        size += 4;
+    }
+
+
+    /**
+     * Turns an external node into an internal node whose four empty
+     * children are the pool slots starting at first.
+     */
+    private void split(int node, int first) {
+        double x = xmid[node];
+        double y = ymid[node];
+        double quarter = length[node] / 4.0;
+        double len = length[node] / 2.0;
+
+        initNode(first + NW, x - quarter, y + quarter, len);
+        initNode(first + NE, x + quarter, y + quarter, len);
+        initNode(first + SW, x - quarter, y - quarter, len);
+        initNode(first + SE, x + quarter, y - quarter, len);
+
+        child[node] = first;
+        head[node] = -1;
+    }
+
+
+    /**
+     * Takes an empty external node from the pool, growing it if needed.
+     */
+    private int newNode(double x, double y, double len) {
+        if (size == child.length)
+            grow();
+        int node = size++;
+        initNode(node, x, y, len);
+        return node;
+    }
+
+
+    private void initNode(int node, double x, double y, double len) {
+        child[node] = -1;
+        start[node] = 0;
+        head[node] = -1;
+        mass[node] = 0.0;
+        count[node] = 0;
+        comX[node] = 0.0;
+        comY[node] = 0.0;
+        qxx[node] = 0.0;
+        qxy[node] = 0.0;
+        qyy[node] = 0.0;
+        xmid[node] = x;
+        ymid[node] = y;
+        length[node] = len;
+    }
+
+
+    private void allocate(int capacity) {
+        child = new int[capacity];
+        start = new int[capacity];
+        head = new int[capacity];
+        mass = new double[capacity];
+        count = new int[capacity];
+        comX = new double[capacity];
+        comY = new double[capacity];
+        qxx = new double[capacity];
+        qxy = new double[capacity];
+        qyy = new double[capacity];
+        xmid = new double[capacity];
+        ymid = new double[capacity];
+        length = new double[capacity];
+    }
+
+
+    private void grow() {
+        ensureCapacity(2 * child.length);
+    }
+
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= child.length)
+            return;
+        child = Arrays.copyOf(child, capacity);
+        start = Arrays.copyOf(start, capacity);
+        head = Arrays.copyOf(head, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        count = Arrays.copyOf(count, capacity);
+        comX = Arrays.copyOf(comX, capacity);
+        comY = Arrays.copyOf(comY, capacity);
+        qxx = Arrays.copyOf(qxx, capacity);
+        qxy = Arrays.copyOf(qxy, capacity);
+        qyy = Arrays.copyOf(qyy, capacity);
+        xmid = Arrays.copyOf(xmid, capacity);
+        ymid = Arrays.copyOf(ymid, capacity);
+        length = Arrays.copyOf(length, capacity);
+    }
+
 
-    private Particle particle;     // Particle or aggregate Particle stored in this node
-    private Quad quad;     // square region that the tree represents
-    private BHTree NW;     // tree representing northwest quadrant
-    private BHTree NE;     // tree representing northeast quadrant
-    private BHTree SW;     // tree representing southwest quadrant
-    private BHTree SE;     // tree representing southeast quadrant
-  
     /**
-     * Constructor: creates a new Barnes-Hut tree with no Particle. 
-     * Each BHTree represents a quadrant and an aggregate Particle 
-     * that represents all Particle inside the quadrant.
+     * Rebuilds the tree over quadrant q by inserting every body of the
+     * store that lies inside it, then computes the quadrupole moments
+     * if they are in use.
      *
-     * @param q the quadrant this node is contained within
+     * @param q    the quadrant the root is contained within
+     * @param pool unused: insertion is serial
      */
-    public BHTree(Quad q) {
-        this.quad = q;
-        this.particle = null;
-        this.NW = null;
-        this.NE = null;
-        this.SW = null;
-        this.SE = null;
+    @Override
+    public void build(Quad q, ForkJoinPool pool) {
+        reset(q);
+        for (int i = 0; i < store.size(); i++) {
+            if (store.in(i, q))
+                insert(i);
+        }
+        compact();
+        if (quadrupole)
+            computeMoments(0, size);
     }
- 
+
 
     /**
-     * Adds the Particle b to the invoking Barnes-Hut tree.
+     * Rebuilds the tree over quadrant q from bodies sorted by Morton
+     * key, instead of inserting them one at a time. Every cell of the
+     * tree is a contiguous run of the sorted keys, so the children of
+     * a node are found by binary search on the next key digit.
+     *
+     * The top of the tree is built serially until the runs are small
+     * enough to share among the workers. Each remaining subtree is then
+     * sized, given its own slice of the node pool, built, and has its
+     * mass moments computed bottom-up in parallel; the nodes above the
+     * subtrees are summed last. A run of at most leafSize keys, or of
+     * keys that share a cell at the deepest key level, becomes one
+     * external node, whose bodies take the same slots in slot[] as
+     * their keys.
+     *
+     * @param q    the quadrant the keys are relative to
+     * @param keys the sorted Morton keys of the bodies to insert
+     * @param pool the pool to build on, or null to build on this thread
      */
-    public void insert(Particle b) {
+    public void build(Quad q, MortonKeys keys, ForkJoinPool pool) {
+        reset(q);
+        chained = false;
+        int n = keys.size();
+        if (n == 0)
+            return;
+
+        int workers = pool == null ? 1 : pool.getParallelism();
+        int cutoff = workers == 1 ? n : Math.max(1024, n / (8 * workers));
+
+        // serial top levels; runs of at most cutoff keys are deferred
+        subtrees = 0;
+        buildTop(0, 0, n, 0, keys, cutoff);
+        int top = size;
+
+        // give each deferred subtree a slice of the pool
+        if (subtrees > 0) {
+            if (pool == null)
+                sizeSubtree(0, keys);
+            else
+                pool.invoke(new SubtreeTask(0, subtrees, keys, SubtreeTask.COUNT));
+            for (int t = 0; t < subtrees; t++) {
+                int nodes = subtreeFirst[t];
+                subtreeFirst[t] = size;
+                size += nodes;
+            }
+            ensureCapacity(size);
+
+            if (pool == null)
+                buildSubtree(0, keys);
+            else
+                pool.invoke(new SubtreeTask(0, subtrees, keys, SubtreeTask.BUILD));
+        }
+
+        // the nodes above the subtrees
+        computeMoments(0, top);
+    }
+
+    private void buildTop(int node, int lo, int hi, int level, MortonKeys keys, int cutoff) {
+        if (isLeafRange(lo, hi, level)) {
+            buildRange(node, lo, hi, level, keys, 0);
+            return;
+        }
 
-        // if this node does not contain a Particle, put the new Particle b here
-        if (particle == null) {
-            particle = b;
+        // small enough to hand to a worker
+        if (hi - lo <= cutoff) {
+            if (subtrees == subtreeNode.length) {
+                int capacity = 2 * subtrees;
+                subtreeNode = Arrays.copyOf(subtreeNode, capacity);
+                subtreeLo = Arrays.copyOf(subtreeLo, capacity);
+                subtreeHi = Arrays.copyOf(subtreeHi, capacity);
+                subtreeLevel = Arrays.copyOf(subtreeLevel, capacity);
+                subtreeFirst = Arrays.copyOf(subtreeFirst, capacity);
+            }
+            subtreeNode[subtrees] = node;
+            subtreeLo[subtrees] = lo;
+            subtreeHi[subtrees] = hi;
+            subtreeLevel[subtrees] = level;
+            subtrees++;
             return;
         }
-  
-        // internal node
-        if (! isExternal()) {
-            // update the center-of-mass and total mass
-            particle = particle.plus(b);
-        
-            // recursively insert Particle b into the appropriate quadrant
-            putParticle(b);
+
+        split(node);
+        int first = child[node];
+        int start = lo;
+        for (int d = 0; d < 4; d++) {
+            int end = keys.upperBound(start, hi, level, d);
+            if (end > start)
+                buildTop(first + DIGIT_TO_CHILD[d], start, end, level + 1, keys, cutoff);
+            start = end;
         }
+    }
 
-        // external node
-        else {
-            // subdivide the region further by creating four children
-            NW = new BHTree(quad.NW());
-            NE = new BHTree(quad.NE());
-            SE = new BHTree(quad.SE());
-            SW = new BHTree(quad.SW());
+    private boolean isLeafRange(int lo, int hi, int level) {
+        return hi - lo <= leafSize || level == MAX_DEPTH;
+    }
+
+    /**
+     * Builds the subtree of node over keys [lo, hi) at the given level,
+     * placing the children from pool slot cursor on. Returns the next
+     * free slot.
+     */
+    private int buildRange(int node, int lo, int hi, int level, MortonKeys keys, int cursor) {
+        if (isLeafRange(lo, hi, level)) {
+            start[node] = lo;
+            count[node] = hi - lo;
+            for (int k = lo; k < hi; k++) {
+                slot[k] = keys.body(k);
+                leaf[slot[k]] = node;
+            }
+            return cursor;
+        }
+
+        int first = cursor;
+        split(node, first);
+        cursor += 4;
+
+        int start = lo;
+        for (int d = 0; d < 4; d++) {
+            int end = keys.upperBound(start, hi, level, d);
+            if (end > start)
+                cursor = buildRange(first + DIGIT_TO_CHILD[d], start, end, level + 1, keys, cursor);
+            start = end;
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the number of pool slots buildRange() takes below a node
+     * over keys [lo, hi) at the given level.
+     */
+    private int countNodes(int lo, int hi, int level, MortonKeys keys) {
+        if (isLeafRange(lo, hi, level))
+            return 0;
+        int nodes = 4;
+        int start = lo;
+        for (int d = 0; d < 4; d++) {
+            int end = keys.upperBound(start, hi, level, d);
+            if (end > start)
+                nodes += countNodes(start, end, level + 1, keys);
+            start = end;
+        }
+        return nodes;
+    }
+
+    /**
+     * Sizes or builds the deferred subtrees [lo, hi).
+     */
+    private class SubtreeTask extends RecursiveAction {
+        static final int COUNT = 0;
+        static final int BUILD = 1;
+
+        private final int lo, hi, mode;
+        private final MortonKeys keys;
+
+        SubtreeTask(int lo, int hi, MortonKeys keys, int mode) {
+            this.lo = lo;
+            this.hi = hi;
+            this.keys = keys;
+            this.mode = mode;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new SubtreeTask(lo, mid, keys, mode), new SubtreeTask(mid, hi, keys, mode));
+                return;
+            }
+            if (mode == COUNT)
+                sizeSubtree(lo, keys);
+            else
+                buildSubtree(lo, keys);
+        }
+    }
+
+    private void sizeSubtree(int t, MortonKeys keys) {
+        subtreeFirst[t] = countNodes(subtreeLo[t], subtreeHi[t], subtreeLevel[t], keys);
+    }
+
+    private void buildSubtree(int t, MortonKeys keys) {
+        int end = buildRange(subtreeNode[t], subtreeLo[t], subtreeHi[t], subtreeLevel[t], keys, subtreeFirst[t]);
+        computeMoments(subtreeFirst[t], end);
+    }
+
+    /**
+     * Updates the tree for the bodies' new positions instead of building
+     * it again. A body that is still strictly inside the square of its
+     * external node stays there; every other body is unlinked and, if
+     * it is still inside the root, inserted again from the root. Then
+     * the buckets are laid out again and the mass moments of every node
+     * are recomputed bottom-up.
+     *
+     * Emptied nodes are kept, so the tree drifts from the one a full
+     * build would give. The refit is refused when too many bodies moved
+     * in this step, or in total since the last full build, and the
+     * caller should build the tree again instead.
+     *
+     * @param q the quadrant the root represents
+     * @return true if the tree was refitted, false if it must be rebuilt
+     */
+    public boolean refit(Quad q) {
+        if (size == 0 || xmid[0] != q.getXmid() || ymid[0] != q.getYmid() || length[0] != q.getLength())
+            return false;
+
+        int n = store.size();
+        int count = 0;
+        for (int b = 0; b < n; b++) {
+            boolean stays = leaf[b] == -1 ? !store.in(b, q) : inside(leaf[b], b);
+            if (!stays)
+                movers[count++] = b;
+        }
+        if (count > REFIT_STEP_LIMIT * n || moved + count > REFIT_TOTAL_LIMIT * n)
+            return false;
+
+        if (!chained)
+            chain();
+        for (int k = 0; k < count; k++) {
+            int b = movers[k];
+            if (leaf[b] != -1)
+                unlink(b);
+        }
+        for (int k = 0; k < count; k++) {
+            int b = movers[k];
+            if (store.in(b, q))
+                insert(b);
+        }
+        moved += count;
+
+        compact();
+        computeMoments(0, size);
+        return true;
+    }
 
-            // recursively insert both this Particle and Particle b into the appropriate quadrant
-            putParticle(this.particle);
-            putParticle(b);
+    /**
+     * Returns true iff body b is strictly inside the square of node.
+     */
+    private boolean inside(int node, int b) {
+        double half = length[node] / 2.0;
+        double x = store.rx(b);
+        double y = store.ry(b);
+        return x > xmid[node] - half && x < xmid[node] + half
+            && y > ymid[node] - half && y < ymid[node] + half;
+    }
 
-            // update the center-of-mass and total mass
-            particle = particle.plus(b);
+    /**
+     * Removes body b from the chain of its external node.
+     */
+    private void unlink(int b) {
+        int node = leaf[b];
+        if (head[node] == b) {
+            head[node] = next[b];
         }
+        else {
+            int j = head[node];
+            while (next[j] != b)
+                j = next[j];
+            next[j] = next[b];
+        }
+        next[b] = -1;
+        leaf[b] = -1;
     }
 
 
     /**
-     * Inserts a Particle into the appropriate quadrant.
-     */ 
-    private void putParticle(Particle b) {
-        if (b.in(quad.NW()))
-            NW.insert(b);
-        else if (b.in(quad.NE()))
-            NE.insert(b);
-        else if (b.in(quad.SE()))
-            SE.insert(b);
-        else if (b.in(quad.SW()))
-            SW.insert(b);
+     * Recomputes the mass moments of every node bottom-up. Bodies added
+     * with insert() only update the monopoles on the way down, and are
+     * laid out for the walks here, so this must be called after
+     * inserting.
+     */
+    public void computeMoments() {
+        if (chained)
+            compact();
+        computeMoments(0, size);
+    }
+
+    /**
+     * Recomputes the total mass and center-of-mass of nodes [from, to)
+     * from their bodies or children, and their second moments if
+     * quadrupoles are in use. The children of a node always sit at
+     * higher slots than the node, so walking the range backwards visits
+     * every child before its parent.
+     */
+    private void computeMoments(int from, int to) {
+        for (int node = to - 1; node >= from; node--) {
+            double m = 0.0, x = 0.0, y = 0.0;
+            int bodies = 0;
+            if (isExternal(node)) {
+                for (int k = start[node]; k < start[node] + count[node]; k++) {
+                    int j = slot[k];
+                    m += store.mass(j);
+                    x += store.rx(j) * store.mass(j);
+                    y += store.ry(j) * store.mass(j);
+                    bodies++;
+                }
+            }
+            else {
+                for (int c = child[node]; c < child[node] + 4; c++) {
+                    m += mass[c];
+                    x += comX[c] * mass[c];
+                    y += comY[c] * mass[c];
+                    bodies += count[c];
+                }
+            }
+            mass[node] = m;
+            count[node] = bodies;
+            comX[node] = m > 0.0 ? x / m : xmid[node];
+            comY[node] = m > 0.0 ? y / m : ymid[node];
+            if (quadrupole)
+                computeQuadrupole(node);
+        }
+    }
+
+    /**
+     * Sums the second moments of a node about its center-of-mass, from
+     * its bodies or, by the parallel axis theorem, from its children.
+     */
+    private void computeQuadrupole(int node) {
+        double xx = 0.0, xy = 0.0, yy = 0.0;
+        if (isExternal(node)) {
+            for (int k = start[node]; k < start[node] + count[node]; k++) {
+                int j = slot[k];
+                double sx = store.rx(j) - comX[node];
+                double sy = store.ry(j) - comY[node];
+                xx += store.mass(j) * sx * sx;
+                xy += store.mass(j) * sx * sy;
+                yy += store.mass(j) * sy * sy;
+            }
+        }
+        else {
+            for (int c = child[node]; c < child[node] + 4; c++) {
+                double sx = comX[c] - comX[node];
+                double sy = comY[c] - comY[node];
+                xx += qxx[c] + mass[c] * sx * sx;
+                xy += qxy[c] + mass[c] * sx * sy;
+                yy += qyy[c] + mass[c] * sy * sy;
+            }
+        }
+        qxx[node] = xx;
+        qxy[node] = xy;
+        qyy[node] = yy;
     }
 
 
     /**
      * Returns true iff this tree node is external.
      */
-    private boolean isExternal() {
-        // a node is external iff all four children are null
-        return (NW == null && NE == null && SW == null && SE == null);
+    private boolean isExternal(int node) {
+        // a node is external iff it has no children
+        return child[node] == -1;
+    }
+
+
+    /**
+     * Sets the threshold on s / d below which a node is treated as a
+     * single body: s is the width of the node and d the distance from
+     * the body to the node's center-of-mass. Smaller is more accurate.
+     *
+     * @param theta the new threshold
+     */
+    public void setTheta(double theta) {
+        if (!(theta >= 0))
+            throw new IllegalArgumentException("theta must not be negative: " + theta);
+        this.Theta = theta;
+    }
+
+
+    /**
+     * Sets how the walk decides whether to open a node. The default is
+     * GEOMETRIC, the s / d test.
+     *
+     * @param criterion the opening criterion
+     */
+    public void setOpeningCriterion(OpeningCriterion criterion) {
+        if (criterion == null)
+            throw new IllegalArgumentException("criterion must not be null");
+        this.criterion = criterion;
+    }
+
+
+    /**
+     * Sets the most bodies an external node holds before it is split.
+     * Larger buckets give a shallower tree with fewer nodes to visit,
+     * and more bodies summed directly. Takes effect at the next build.
+     *
+     * @param leafSize the bucket size, at least 1
+     */
+    public void setLeafSize(int leafSize) {
+        if (leafSize < 1)
+            throw new IllegalArgumentException("leaf size must be positive: " + leafSize);
+        this.leafSize = leafSize;
     }
 
 
     /**
-     * Approximates the net force acting on Particle b from all Particle
+     * Sets whether accepted nodes act with their quadrupole moments as
+     * well as their mass. Quadrupoles make a node far more accurate at
+     * the same Theta, so a larger Theta opens fewer nodes for the same
+     * error. Takes effect at the next build.
+     *
+     * @param quadrupole true to use quadrupole moments
+     */
+    public void setQuadrupole(boolean quadrupole) {
+        this.quadrupole = quadrupole;
+    }
+
+
+    /**
+     * Approximates the net force acting on body b from all bodies
      * in the invoking Barnes-Hut tree, and updates b's force accordingly.
      */
-    public void updateForce(Particle b) {
-    
-        if (particle == null || b.equals(particle))
-            return;
+    public void updateForce(int b) {
+        updateForce(0, b, new WalkCounters());
+    }
+
+
+    /**
+     * As updateForce(b), counting the interactions and the nodes opened.
+     */
+    @Override
+    public void updateForce(int b, WalkCounters counters) {
+        updateForce(0, b, counters);
+    }
+
+
+    private void updateForce(int node, int b, WalkCounters counters) {
+
+        // if the current node is external and holds at most one body,
+        // update net force acting on b
+        if (isExternal(node) && count[node] <= 1) {
+            for (int k = start[node]; k < start[node] + count[node]; k++) {
+                int j = slot[k];
+                if (j != b) {
+                    store.addForce(b, j);
+                    counters.interactions++;
+                }
+            }
+        }
 
-        // if the current node is external, update net force acting on b
-        if (isExternal()) 
-            b.addForce(particle);
- 
-        // for internal nodes
+        // for internal nodes and buckets
         else {
-    
-            // width of region represented by internal node
-            double s = quad.length();
 
-            // distance between Particle b and this node's center-of-mass
-            double d = particle.distanceTo(b);
+            // width of region represented by the node
+            double s = length[node];
+
+            // distance between body b and this node's center-of-mass
+            double dx = comX[node] - store.rx(b);
+            double dy = comY[node] - store.ry(b);
+            double d = Math.sqrt(dx * dx + dy * dy);
+
+            // compare ratio (s / d) to threshold value Theta, or d to s / Theta
+            // plus the offset of the center-of-mass from the node center
+            boolean far;
+            if (criterion == OpeningCriterion.GEOMETRIC) {
+                far = (s / d) < Theta;
+            }
+            else {
+                double delta = Math.hypot(comX[node] - xmid[node], comY[node] - ymid[node]);
+                far = d > s / Theta + delta;
+            }
+
+            // b is far away
+            if (far && quadrupole)
+                store.addForce(b, comX[node], comY[node], mass[node], qxx[node], qxy[node], qyy[node]);
+            else if (far)
+                store.addForce(b, comX[node], comY[node], mass[node]);
+
+            // a bucket that is too close: every body of it acts on b
+            else if (isExternal(node)) {
+                for (int k = start[node]; k < start[node] + count[node]; k++) {
+                    int j = slot[k];
+                    if (j != b) {
+                        store.addForce(b, j);
+                        counters.interactions++;
+                    }
+                }
+                return;
+            }
 
-            // compare ratio (s / d) to threshold value Theta
-            if ((s / d) < Theta)
-                b.addForce(particle);   // b is far away
-            
             // recurse on each of current node's children
             else {
-                NW.updateForce(b);
-                NE.updateForce(b);
-                SW.updateForce(b);
-                SE.updateForce(b);
+                int first = child[node];
+                counters.openings++;
+                updateForce(first + NW, b, counters);
+                updateForce(first + NE, b, counters);
+                updateForce(first + SW, b, counters);
+                updateForce(first + SE, b, counters);
+                return;
+            }
+            counters.interactions++;
+        }
+    }
+
+
+    /**
+     * Adds the short-range part of the force on body b (see
+     * ParticleStore.addShortForce()) from the bodies in the tree. Nodes
+     * whose region lies wholly farther than cutoff from b are skipped,
+     * and the others are opened or accepted as in updateForce(), always
+     * acting as point masses.
+     *
+     * @param b        the index of the body
+     * @param rs       the scale of the split between short and long range
+     * @param cutoff   the distance beyond which the short-range force is dropped
+     * @param counters where the work is counted
+     */
+    public void updateShortForce(int b, double rs, double cutoff, WalkCounters counters) {
+        updateShortForce(0, b, rs, cutoff, counters);
+    }
+
+
+    private void updateShortForce(int node, int b, double rs, double cutoff, WalkCounters counters) {
+        double half = length[node] / 2.0;
+        double ox = Math.max(Math.abs(store.rx(b) - xmid[node]) - half, 0.0);
+        double oy = Math.max(Math.abs(store.ry(b) - ymid[node]) - half, 0.0);
+        if (ox * ox + oy * oy > cutoff * cutoff || count[node] == 0)
+            return;
+
+        if (isExternal(node) && count[node] <= 1) {
+            shortBodies(node, b, rs, counters);
+            return;
+        }
+
+        double s = length[node];
+        double dx = comX[node] - store.rx(b);
+        double dy = comY[node] - store.ry(b);
+        double d = Math.sqrt(dx * dx + dy * dy);
+        boolean far;
+        if (criterion == OpeningCriterion.GEOMETRIC) {
+            far = (s / d) < Theta;
+        }
+        else {
+            double delta = Math.hypot(comX[node] - xmid[node], comY[node] - ymid[node]);
+            far = d > s / Theta + delta;
+        }
+
+        if (far) {
+            store.addShortForce(b, comX[node], comY[node], mass[node], rs);
+            counters.interactions++;
+        }
+        else if (isExternal(node)) {
+            shortBodies(node, b, rs, counters);
+        }
+        else {
+            int first = child[node];
+            counters.openings++;
+            updateShortForce(first + NW, b, rs, cutoff, counters);
+            updateShortForce(first + NE, b, rs, cutoff, counters);
+            updateShortForce(first + SW, b, rs, cutoff, counters);
+            updateShortForce(first + SE, b, rs, cutoff, counters);
+        }
+    }
+
+
+    /**
+     * Adds the short-range force of every body of an external node on b.
+     */
+    private void shortBodies(int node, int b, double rs, WalkCounters counters) {
+        for (int k = start[node]; k < start[node] + count[node]; k++) {
+            int j = slot[k];
+            if (j != b) {
+                store.addShortForce(b, store.rx(j), store.ry(j), store.mass(j), rs);
+                counters.interactions++;
+            }
+        }
+    }
+
+
+    /**
+     * Splits the bodies into groups for updateGroupForce(): each group
+     * is the bodies below the highest node with at most maxBodies of
+     * them. Bodies that are not in the tree get a group of their own.
+     * Call after the tree is built, and again after every build.
+     *
+     * @param maxBodies the largest number of bodies in a group
+     * @return the number of groups
+     */
+    public int findGroups(int maxBodies) {
+        groups = 0;
+        int filled = 0;
+        if (size > 0)
+            filled = findGroups(0, maxBodies, filled);
+        for (int b = 0; b < store.size(); b++) {
+            if (leaf[b] == -1) {
+                startGroup(filled);
+                groupBody[filled++] = b;
+            }
+        }
+        groupStart[groups] = filled;
+        return groups;
+    }
+
+    private int findGroups(int node, int maxBodies, int filled) {
+        if (count[node] == 0)
+            return filled;
+        if (count[node] > maxBodies && !isExternal(node)) {
+            for (int c = child[node]; c < child[node] + 4; c++)
+                filled = findGroups(c, maxBodies, filled);
+            return filled;
+        }
+        startGroup(filled);
+        return collect(node, filled);
+    }
+
+    /**
+     * Starts a group at slot filled of groupBody, leaving room for the
+     * end of the last group.
+     */
+    private void startGroup(int filled) {
+        if (groups + 1 >= groupStart.length)
+            groupStart = Arrays.copyOf(groupStart, 2 * groupStart.length);
+        groupStart[groups++] = filled;
+    }
+
+    /**
+     * Appends the bodies below node to groupBody from slot filled on,
+     * and returns the next free slot.
+     */
+    private int collect(int node, int filled) {
+        if (isExternal(node)) {
+            System.arraycopy(slot, start[node], groupBody, filled, count[node]);
+            return filled + count[node];
+        }
+        for (int c = child[node]; c < child[node] + 4; c++)
+            filled = collect(c, filled);
+        return filled;
+    }
+
+
+    /**
+     * Sets the net force on every body of group g, found by
+     * findGroups(). The tree is walked once for the whole group: a node
+     * is accepted only if the opening criterion holds for the point of
+     * the group's bounding box nearest to its center-of-mass, so it
+     * holds for every body of the group, and the bodies of every opened
+     * external node are listed individually. The list is then applied
+     * to each body in turn.
+     *
+     * @param g        the group
+     * @param list     scratch space for the interaction list, owned by the calling thread
+     * @param counters where the work is counted, owned by the calling thread
+     */
+    public void updateGroupForce(int g, InteractionList list, WalkCounters counters) {
+        int from = groupStart[g];
+        int to = groupStart[g + 1];
+
+        double x0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY;
+        double y0 = Double.POSITIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for (int k = from; k < to; k++) {
+            int b = groupBody[k];
+            x0 = Math.min(x0, store.rx(b));
+            x1 = Math.max(x1, store.rx(b));
+            y0 = Math.min(y0, store.ry(b));
+            y1 = Math.max(y1, store.ry(b));
+        }
+
+        list.clear();
+        if (size > 0)
+            collect(0, x0, x1, y0, y1, list, counters);
+
+        for (int k = from; k < to; k++) {
+            int b = groupBody[k];
+            store.resetForce(b);
+            store.addForces(b, list, quadrupole);
+        }
+        counters.interactions += (long) (to - from) * (list.bodies() + list.nodes());
+    }
+
+    private void collect(int node, double x0, double x1, double y0, double y1, InteractionList list,
+                         WalkCounters counters) {
+        if (count[node] == 0)
+            return;
+
+        if (isExternal(node) && count[node] == 1) {
+            int j = slot[start[node]];
+            list.addBody(store.rx(j), store.ry(j), store.mass(j));
+            return;
+        }
+
+        // distance from the center-of-mass to the nearest point of the box
+        double dx = Math.max(0.0, Math.max(x0 - comX[node], comX[node] - x1));
+        double dy = Math.max(0.0, Math.max(y0 - comY[node], comY[node] - y1));
+        double d = Math.sqrt(dx * dx + dy * dy);
+        double s = length[node];
+
+        boolean far;
+        if (criterion == OpeningCriterion.GEOMETRIC) {
+            far = (s / d) < Theta;
+        }
+        else {
+            double delta = Math.hypot(comX[node] - xmid[node], comY[node] - ymid[node]);
+            far = d > s / Theta + delta;
+        }
+
+        if (far) {
+            list.addNode(comX[node], comY[node], mass[node], qxx[node], qxy[node], qyy[node]);
+            return;
+        }
+        if (isExternal(node)) {
+            for (int k = start[node]; k < start[node] + count[node]; k++) {
+                int j = slot[k];
+                list.addBody(store.rx(j), store.ry(j), store.mass(j));
             }
+            return;
         }
+        counters.openings++;
+        for (int c = child[node]; c < child[node] + 4; c++)
+            collect(c, x0, x1, y0, y1, list, counters);
+    }
+
+
+    /**
+     * Fills list with the bodies and nodes of the tree that a body
+     * anywhere in the box [x0, x1] x [y0, y1] would interact with: the
+     * part of the tree that is essential to that box. Nodes are chosen
+     * the way the group walk chooses them, so a walk of the list is at
+     * least as accurate as a walk of the tree for every point of the box.
+     *
+     * @param x0       the left edge of the box
+     * @param x1       the right edge of the box
+     * @param y0       the bottom edge of the box
+     * @param y1       the top edge of the box
+     * @param list     receives the bodies and nodes, after being cleared
+     * @param counters where the nodes opened are counted
+     */
+    public void collectEssential(double x0, double x1, double y0, double y1, InteractionList list,
+                                 WalkCounters counters) {
+        list.clear();
+        if (size > 0)
+            collect(0, x0, x1, y0, y1, list, counters);
+    }
+
+
+    /**
+     * Returns the number of levels below the root. Every level halves
+     * the side length exactly, so the depth of a node is read from the
+     * exponent of its side.
+     */
+    @Override
+    public int depth() {
+        int depth = 0;
+        for (int node = 1; node < size; node++)
+            depth = Math.max(depth, Math.getExponent(length[0]) - Math.getExponent(length[node]));
+        return depth;
+    }
+
+
+    @Override
+    public int nodes() {
+        return size;
     }
 
 
@@ -145,10 +1206,21 @@ public class BHTree {
      * @return a string representation of this quadtree
      */
     public String toString() {
-        if (isExternal()) 
-            return " " + particle + "\n";
-        else
-            return "*" + particle + "\n" + NW + NE + SW + SE;
+        StringBuilder sb = new StringBuilder();
+        if (size > 0)
+            toString(0, sb);
+        return sb.toString();
+    }
+
+
+    private void toString(int node, StringBuilder sb) {
+        sb.append(isExternal(node) ? " " : "*");
+        sb.append(String.format("%10.3E %10.3E %10.3E", comX[node], comY[node], mass[node]));
+        sb.append("\n");
+        if (!isExternal(node)) {
+            for (int c = child[node]; c < child[node] + 4; c++)
+                toString(c, sb);
+        }
     }
 
 }
@@ -0,0 +1,259 @@
+/**
+ * Checkpoint.java
+ *
+ * Binary snapshot of a simulation: the wall, the simulated time, the
+ * step count and every body. The file is a fixed 64-byte header
+ * followed by one column per field, all little-endian:
+ *
+ *   offset  0  int     magic "NBCK"
+ *           4  int     format version
+ *           8  double  wall x-center, y-center, side length
+ *          32  double  time
+ *          40  long    step
+ *          48  long    number of bodies n
+ *          56          reserved
+ *          64  double  rx[n], ry[n], vx[n], vy[n], mass[n], r[n]
+ *              int     color[n]
+ *
+ * Both directions go through memory-mapped regions of a FileChannel,
+ * one column at a time, so there is no parsing and the cost is bounded
+ * by the disk. Bodies are written in the order of their ids, so a
+ * system whose store was reordered writes the same file as one whose
+ * store was not. A write goes to a temporary file that then replaces the
+ * target, so a crash mid-write leaves the previous checkpoint intact.
+ *
+ * map() opens a checkpoint to be simulated in place instead: its
+ * bodies are an OffHeapParticleStore over the columns of the file.
+ *
+ * Dependencies: ParticleStore.java Quad.java CollisionSystem.java OffHeapParticleStore.java
+ */
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class Checkpoint {
+
+    public static final int MAGIC = 0x4E42434B;    // "NBCK"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 64;
+    private static final int DOUBLE_COLUMNS = 6;
+
+    // offsets of header fields rewritten by OffHeapParticleStore.sync()
+    static final int TIME_OFFSET = 32;
+    static final int STEP_OFFSET = 40;
+    private static final int COUNT_OFFSET = 48;
+
+    private final Quad wall;
+    private final double time;
+    private final long step;
+    private final ParticleStore particles;
+
+    /**
+     * Constructor: bundles the state of a simulation.
+     *
+     * @param wall      the wall
+     * @param time      the simulated time
+     * @param step      the number of steps taken
+     * @param particles the bodies
+     */
+    public Checkpoint(Quad wall, double time, long step, ParticleStore particles) {
+        this.wall = wall;
+        this.time = time;
+        this.step = step;
+        this.particles = particles;
+    }
+
+    public Quad wall() {
+        return wall;
+    }
+
+    public double time() {
+        return time;
+    }
+
+    public long step() {
+        return step;
+    }
+
+    public ParticleStore particles() {
+        return particles;
+    }
+
+    /**
+     * Writes the current state of the system to path.
+     *
+     * @param path   the file to write
+     * @param system the system to save
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path path, CollisionSystem system) throws IOException {
+        new Checkpoint(system.wall(), system.time(), system.steps(), system.particles()).write(path);
+    }
+
+    /**
+     * Writes this checkpoint to path.
+     *
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path path) throws IOException {
+        int n = particles.size();
+        checkSize(n);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putDouble(wall.getXmid());
+            header.putDouble(wall.getYmid());
+            header.putDouble(wall.getLength());
+            header.putDouble(time);
+            header.putLong(step);
+            header.putLong(n);
+            header.force();
+
+            for (int c = 0; c < DOUBLE_COLUMNS; c++) {
+                MappedByteBuffer bytes = map(channel, FileChannel.MapMode.READ_WRITE, columnOffset(c, n), 8L * n);
+                DoubleBuffer column = bytes.asDoubleBuffer();
+                for (int i = 0; i < n; i++)
+                    column.put(i, get(c, particles.indexOf(i)));
+                bytes.force();
+            }
+
+            MappedByteBuffer bytes = map(channel, FileChannel.MapMode.READ_WRITE, columnOffset(DOUBLE_COLUMNS, n), 4L * n);
+            IntBuffer colors = bytes.asIntBuffer();
+            for (int i = 0; i < n; i++)
+                colors.put(i, particles.color(particles.indexOf(i)));
+            bytes.force();
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a checkpoint written by write().
+     *
+     * @param path the file to read
+     * @return the checkpoint
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    public static Checkpoint read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer header = header(path, channel, FileChannel.MapMode.READ_ONLY);
+            Quad wall = new Quad(header.getDouble(), header.getDouble(), header.getDouble());
+            double time = header.getDouble();
+            long step = header.getLong();
+            int n = (int) header.getLong();
+
+            DoubleBuffer[] columns = new DoubleBuffer[DOUBLE_COLUMNS];
+            for (int c = 0; c < DOUBLE_COLUMNS; c++)
+                columns[c] = map(channel, FileChannel.MapMode.READ_ONLY, columnOffset(c, n), 8L * n).asDoubleBuffer();
+            IntBuffer colors = map(channel, FileChannel.MapMode.READ_ONLY, columnOffset(DOUBLE_COLUMNS, n), 4L * n).asIntBuffer();
+
+            ParticleStore particles = new ParticleStore(n);
+            for (int i = 0; i < n; i++) {
+                particles.set(i, columns[5].get(i), columns[0].get(i), columns[1].get(i),
+                              columns[2].get(i), columns[3].get(i), columns[4].get(i), colors.get(i));
+            }
+            return new Checkpoint(wall, time, step, particles);
+        }
+    }
+
+    /**
+     * Opens a checkpoint to be simulated in place. Nothing is read up
+     * front: the bodies are an OffHeapParticleStore whose columns are
+     * the columns of the file, mapped read-write, so the simulation
+     * changes the file as it runs, and OffHeapParticleStore.sync()
+     * makes it a checkpoint of the current state.
+     *
+     * @param path the file to open
+     * @return the checkpoint, whose particles are mapped from the file
+     * @throws IOException if the file cannot be opened or is not a checkpoint
+     */
+    public static Checkpoint map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer header = header(path, channel, FileChannel.MapMode.READ_WRITE);
+            Quad wall = new Quad(header.getDouble(), header.getDouble(), header.getDouble());
+            double time = header.getDouble();
+            long step = header.getLong();
+            int n = (int) header.getLong();
+
+            MappedByteBuffer[] columns = new MappedByteBuffer[DOUBLE_COLUMNS + 1];
+            for (int c = 0; c < DOUBLE_COLUMNS; c++)
+                columns[c] = map(channel, FileChannel.MapMode.READ_WRITE, columnOffset(c, n), 8L * n);
+            columns[DOUBLE_COLUMNS] = map(channel, FileChannel.MapMode.READ_WRITE, columnOffset(DOUBLE_COLUMNS, n), 4L * n);
+
+            // the mappings stay valid once the channel is closed
+            return new Checkpoint(wall, time, step, OffHeapParticleStore.map(n, header, columns));
+        }
+    }
+
+    /**
+     * Maps the header of a checkpoint and checks that the file is a
+     * whole checkpoint of this version. Returns the header positioned
+     * at the wall.
+     */
+    private static MappedByteBuffer header(Path path, FileChannel channel, FileChannel.MapMode mode)
+            throws IOException {
+        if (channel.size() < HEADER_BYTES)
+            throw new IOException(path + " is too short to be a checkpoint");
+
+        MappedByteBuffer header = map(channel, mode, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC)
+            throw new IOException(path + " is not a checkpoint");
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException(path + " has unsupported checkpoint version " + version);
+        long count = header.getLong(COUNT_OFFSET);
+        checkSize(count);
+        int n = (int) count;
+        if (channel.size() < columnOffset(DOUBLE_COLUMNS, n) + 4L * n)
+            throw new IOException(path + " is truncated");
+        return header;
+    }
+
+    /**
+     * Returns field c of body i, in column order.
+     */
+    private double get(int c, int i) {
+        switch (c) {
+            case 0: return particles.rx(i);
+            case 1: return particles.ry(i);
+            case 2: return particles.vx(i);
+            case 3: return particles.vy(i);
+            case 4: return particles.mass(i);
+            default: return particles.radius(i);
+        }
+    }
+
+    private static long columnOffset(int c, int n) {
+        return HEADER_BYTES + 8L * n * c;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset, long length)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, offset, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * A column is mapped in one piece, so it must fit in 2 GB.
+     */
+    private static void checkSize(long n) throws IOException {
+        if (n < 0 || 8L * n > Integer.MAX_VALUE)
+            throw new IOException("cannot checkpoint " + n + " bodies");
+    }
+}
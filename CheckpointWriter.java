@@ -0,0 +1,44 @@
+/**
+ * CheckpointWriter.java
+ *
+ * Saves a Checkpoint of the system every k steps, so a long run can be
+ * resumed after it dies. Each checkpoint replaces the previous one at
+ * the same path. Writing happens on the simulation thread.
+ *
+ * Dependencies: Checkpoint.java SimulationListener.java CollisionSystem.java
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+public class CheckpointWriter implements SimulationListener {
+
+    private final Path path;     // file the checkpoints go to
+    private final long every;    // steps between checkpoints
+
+    /**
+     * Constructor: creates a writer that saves to path every k steps.
+     *
+     * @param path  the checkpoint file
+     * @param every the number of steps between checkpoints
+     */
+    public CheckpointWriter(Path path, long every) {
+        if (every < 1)
+            throw new IllegalArgumentException("every must be positive: " + every);
+        this.path = path;
+        this.every = every;
+    }
+
+    @Override
+    public void stepped(CollisionSystem system) {
+        if (system.steps() % every != 0)
+            return;
+        try {
+            Checkpoint.write(path, system);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("cannot write checkpoint " + path, e);
+        }
+    }
+}
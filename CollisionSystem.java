@@ -1,105 +1,1062 @@
-import edu.princeton.cs.algs4.StdDraw;
 import edu.princeton.cs.algs4.StdIn;
+import edu.princeton.cs.algs4.StdRandom;
 
-import java.awt.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CollisionSystem.java
+ *
+ * Runs the simulation: Barnes-Hut gravity, integration, and collisions
+ * between bodies and with the wall. The engine itself is headless; it
+ * is driven through step(), run() and runFor(), and anything that wants
+ * to watch it, such as StdDrawRenderer, registers a SimulationListener.
+ *
+ * Dependencies: ParticleStore.java BHTree.java Quad.java SpatialHash.java
+ *               EventCollisionEngine.java MortonKeys.java SimulationListener.java
+ *               GravitySolver.java FmmSolver.java PmSolver.java StepMetrics.java
+ *               WalkCounters.java MetricsReporter.java OffHeapParticleStore.java
+ */
 
 public class CollisionSystem {
 
-    private Particle[] particles;
+    private ParticleStore particles;
+
+    // Barnes-Hut tree, rebuilt in place every step
+    private final BHTree tree;
+
+    // where forces come from: the tree, or another solver over the same bodies
+    private GravitySolver solver;
+
+    // sorted Morton keys when the tree is built from them, else null
+    private MortonKeys keys;
+
+    // whether the tree is refitted between steps instead of rebuilt
+    private boolean incremental;
+
+    // steps between reorderings of the store along the Morton curve, or 0,
+    // with the keys and the new order of the bodies
+    private long reorderEvery;
+    private MortonKeys curve;
+    private int[] order;
+
+    // whether forces come from one tree walk per group of nearby bodies,
+    // and each worker's interaction list for it
+    private boolean groupWalk;
+    private final ThreadLocal<InteractionList> lists = ThreadLocal.withInitial(InteractionList::new);
+
+    // most bodies sharing one walk of the tree
+    private static final int GROUP_SIZE = 32;
+
+    // whether the parallel walk is split into ranges of equal cost
+    // instead of equal length, the interactions and openings of each
+    // body in its last walk, and the first body of each range
+    private boolean costzones = true;
+    private long[] cost, costSpare;
+    private int[] zones;
+
+    // ranges of equal cost per worker
+    private static final int ZONES_PER_WORKER = 8;
+
+    // phase timings and work counts, or null when they are off, and
+    // each worker's counts for the task it is running
+    private StepMetrics metrics;
+    private final ThreadLocal<WalkCounters> counters = ThreadLocal.withInitial(WalkCounters::new);
+
+    // broad phase for particle-particle collisions, rebuilt every step
+    private final SpatialHash grid;
 
-    public static Quad wall;
+    // event-driven collisions instead of overlap correction, or null
+    private EventCollisionEngine events;
 
-    public CollisionSystem(Particle[] particles) {
+    // whether bodies attract each other
+    private boolean gravity = true;
+
+    // block timesteps: deepest level, accuracy parameter, and the level
+    // of every body, or null while the bodies share one step
+    private int maxLevel;
+    private double eta;
+    private int[] level;
+    private boolean leveled;       // whether every body has a force and a level
+    private int[] active;          // bodies whose step ends at the current sub-step
+
+    private double time;       // simulated time
+    private long steps;        // steps taken
+    private final List<SimulationListener> listeners = new ArrayList<SimulationListener>();
+    private final double[] wallHit = new double[2];
+
+    // pool that evaluates forces in parallel, or null to run on the calling thread
+    private final ForkJoinPool pool;
+
+    // bodies per force task once the range is split
+    private final int grain;
+
+    // the box the bodies bounce inside
+    private final Quad wall;
+
+    public CollisionSystem(ParticleStore particles, Quad wall) {
+        this(particles, wall, 1);
+    }
+
+    /**
+     * Creates a system whose force phase runs on the given number of
+     * worker threads. With one worker everything runs on the thread
+     * that calls simulate().
+     *
+     * @param particles the bodies of the system
+     * @param wall      the box the bodies bounce inside
+     * @param workers   the number of threads evaluating forces
+     */
+    public CollisionSystem(ParticleStore particles, Quad wall, int workers) {
+        this(particles, wall, workers, null);
+    }
+
+    /**
+     * Creates a system that takes over the scratch buffers of another
+     * one that will not be run again: the node pool of its tree and the
+     * arrays of its collision grid. A thread that runs one simulation
+     * after another then only allocates when a scene is larger than all
+     * the ones before it.
+     *
+     * @param particles the bodies of the system
+     * @param wall      the box the bodies bounce inside
+     * @param workers   the number of threads evaluating forces
+     * @param spare     a finished system whose buffers are reused, or null
+     */
+    public CollisionSystem(ParticleStore particles, Quad wall, int workers, CollisionSystem spare) {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        if (wall == null)
+            throw new IllegalArgumentException("wall must not be null");
         this.particles = particles;
+        this.wall = wall;
+        this.tree = new BHTree(particles, spare == null ? null : spare.tree);
+        this.solver = tree;
+        this.grid = spare == null ? new SpatialHash(particles.size()) : spare.grid;
+        this.pool = workers > 1 ? new ForkJoinPool(workers) : null;
+        this.grain = Math.max(64, particles.size() / (8 * workers));
     }
 
-    // dt:time quantum
-    public void simulate(double dt, int n) {
-        for (double t = 0.0; t< 10000; t = t + dt) {
+    /**
+     * Computes the net force on bodies [lo, hi) by splitting the range
+     * in halves until it is at most grain bodies long. Every task only
+     * reads the tree and writes the force of its own bodies. With an
+     * index array, the bodies are index[lo] to index[hi - 1] instead.
+     */
+    private class ForceTask extends RecursiveAction {
+        private final int lo, hi;
+        private final int[] index;
 
-            BHTree tree = new BHTree(wall);
+        ForceTask(int lo, int hi, int[] index) {
+            this.lo = lo;
+            this.hi = hi;
+            this.index = index;
+        }
 
-            // build the Barnes-Hut tree
-            for (int i = 0; i < n; i++) {
-                if (particles[i].in(wall))
-                    tree.insert(particles[i]);
+        @Override
+        protected void compute() {
+            if (hi - lo <= grain) {
+                updateForces(lo, hi, index);
+                return;
             }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ForceTask(lo, mid, index), new ForceTask(mid, hi, index));
+        }
+    }
 
-            // update the forces, positions, velocities, and accelerations
-            for (int i = 0; i < n; i++) {
-                particles[i].resetForce();
-                tree.updateForce(particles[i]);
-                particles[i].update(dt); //Updates the velocity and position of the invoking Particle using leapfrom method, with timestep dt.
+    /**
+     * Computes the net force on the bodies of cost zones [lo, hi),
+     * splitting the range in halves down to a single zone.
+     */
+    private class ZoneTask extends RecursiveAction {
+        private final int lo, hi;
+
+        ZoneTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= 1) {
+                updateForces(zones[lo], zones[hi], null);
+                return;
             }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ZoneTask(lo, mid), new ZoneTask(mid, hi));
+        }
+    }
+
+    /**
+     * Computes the net force on the bodies of groups [lo, hi), splitting
+     * the range until it covers about grain bodies.
+     */
+    private class GroupTask extends RecursiveAction {
+        private final int lo, hi;
 
+        GroupTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if ((hi - lo) * GROUP_SIZE <= grain) {
+                updateGroupForces(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new GroupTask(lo, mid), new GroupTask(mid, hi));
+        }
+    }
+
+    private void updateGroupForces(int lo, int hi) {
+        long start = System.nanoTime();
+        InteractionList list = lists.get();
+        WalkCounters work = counters.get();
+        for (int g = lo; g < hi; g++)
+            tree.updateGroupForce(g, list, work);
+        work.nanos += System.nanoTime() - start;
+        report(work);
+    }
+
+    private void updateForces(int lo, int hi, int[] index) {
+        long start = System.nanoTime();
+        WalkCounters work = counters.get();
+        long[] cost = this.cost;
+        for (int k = lo; k < hi; k++) {
+            int i = index == null ? k : index[k];
+            long before = work.interactions + work.openings;
+            particles.resetForce(i);
+            solver.updateForce(i, work);
+            if (cost != null)
+                cost[i] = work.interactions + work.openings - before;
+        }
+        work.nanos += System.nanoTime() - start;
+        report(work);
+    }
+
+    /**
+     * Hands the counts of a finished task to the metrics, if they are on.
+     */
+    private void report(WalkCounters work) {
+        StepMetrics m = metrics;
+        if (m != null)
+            m.add(work);
+        else
+            work.clear();
+    }
+
+    /**
+     * Turns phase timing and work counting on or off. Metrics start
+     * from zero every time they are turned on.
+     *
+     * @param on true to collect metrics
+     */
+    public void setMetrics(boolean on) {
+        metrics = on ? new StepMetrics(pool == null ? 1 : pool.getParallelism()) : null;
+    }
 
-            //TO CONSIDER COLLISION!
-            for(int i = 0 ; i < n ;i++){
-                for(int j = i+1 ; j < n ; j++){
-                    if(particles[i].collideWithP(particles[j])){
-                        particles[i].bounceOff(particles[j],Particle.alreadyCollideTimeWithP(particles[i],particles[j]));
+    /**
+     * Returns the metrics of this system, or null if they are off.
+     */
+    public StepMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts timing a phase, if metrics are on.
+     */
+    private PhaseEvent begin(StepMetrics.Phase phase) {
+        return metrics == null ? null : metrics.begin(phase);
+    }
+
+    private void end(StepMetrics.Phase phase, PhaseEvent event) {
+        if (event != null && metrics != null)
+            metrics.end(phase, event);
+    }
+
+    /**
+     * Chooses how the tree is built every step: from bodies sorted by
+     * Morton key, in parallel when there are workers, or by inserting
+     * the bodies one at a time.
+     *
+     * @param morton true to build from Morton keys
+     */
+    public void setMortonBuild(boolean morton) {
+        keys = morton ? new MortonKeys(particles.size()) : null;
+    }
+
+    /**
+     * Chooses whether the tree is kept from step to step and refitted,
+     * moving only the bodies that left their node, instead of being
+     * built again. It is still built in full when too many bodies move.
+     *
+     * @param incremental true to refit the tree between steps
+     */
+    public void setIncrementalBuild(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Chooses how the per-body force walk is split between the workers:
+     * into ranges of bodies of about equal cost, measured by the work
+     * each body's walk did the step before (costzones), or into ranges
+     * of equal length. Bodies in a dense core open many more nodes than
+     * those on the outskirts, so ranges of equal length leave workers
+     * waiting for the one that got the core. Costzones are on by
+     * default; they only apply with more than one worker and not to the
+     * group walk. How well the work was spread shows as the balance in
+     * the metrics (see StepMetrics.balance()).
+     *
+     * @param costzones true to split the walk by cost
+     */
+    public void setCostzones(boolean costzones) {
+        this.costzones = costzones;
+        if (!costzones)
+            cost = null;
+    }
+
+    /**
+     * Moves the bodies in the store to the order of their Morton keys
+     * every k steps, so that bodies close in space are close in memory
+     * and the tree walks, which visit nearby bodies one after another,
+     * read memory in order. Bodies outside the wall go last. Bodies
+     * keep their id (see ParticleStore.id()), and checkpoints and
+     * trajectories are written in id order. A store mapped from a
+     * checkpoint keeps the order of the file and cannot be reordered.
+     *
+     * @param every the steps between reorderings, or 0 to never reorder
+     * @throws IllegalStateException if every is positive and the store is mapped from a checkpoint
+     */
+    public void setReorder(long every) {
+        if (every < 0)
+            throw new IllegalArgumentException("every must not be negative: " + every);
+        if (every > 0)
+            checkReorderable();
+        this.reorderEvery = every;
+    }
+
+    /**
+     * Moves the bodies in the store to the order of their Morton keys
+     * over the wall now, along with the state kept for each body.
+     *
+     * @throws IllegalStateException if the store is mapped from a checkpoint
+     */
+    public void reorder() {
+        checkReorderable();
+        int n = particles.size();
+        if (curve == null) {
+            curve = new MortonKeys(n);
+            order = new int[n];
+        }
+        curve.compute(particles, wall, pool);
+        int count = curve.size();
+        for (int k = 0; k < count; k++)
+            order[k] = curve.body(k);
+        for (int i = 0; i < n; i++) {
+            if (!particles.in(i, wall))
+                order[count++] = i;
+        }
+        particles.permute(order);
+
+        // everything else that knows bodies by index
+        if (level != null) {
+            for (int k = 0; k < n; k++)
+                active[k] = level[order[k]];
+            int[] swap = level;
+            level = active;
+            active = swap;
+        }
+        if (cost != null) {
+            if (costSpare == null || costSpare.length != n)
+                costSpare = new long[n];
+            for (int k = 0; k < n; k++)
+                costSpare[k] = cost[order[k]];
+            long[] swap = cost;
+            cost = costSpare;
+            costSpare = swap;
+        }
+        tree.invalidate();
+    }
+
+    private void checkReorderable() {
+        if (particles instanceof OffHeapParticleStore && ((OffHeapParticleStore) particles).isMapped())
+            throw new IllegalStateException("a store mapped from a checkpoint cannot be reordered");
+    }
+
+    /**
+     * Chooses the gravity solver. By default forces come from the
+     * Barnes-Hut tree, and the tree options (Theta, opening criterion,
+     * quadrupoles, Morton and incremental builds, group walk) only
+     * apply to it.
+     *
+     * @param solver a solver over this system's particles, or null for the tree
+     */
+    public void setSolver(GravitySolver solver) {
+        this.solver = solver == null ? tree : solver;
+    }
+
+    /**
+     * Builds the gravity solver over the bodies inside the wall.
+     */
+    void buildTree() {
+        PhaseEvent event = begin(StepMetrics.Phase.BUILD);
+        if (solver != tree) {
+            solver.build(wall, pool);
+        }
+        else if (incremental && tree.refit(wall)) {
+            // refitted in place
+        }
+        else if (keys != null) {
+            keys.compute(particles, wall, pool);
+            tree.build(wall, keys, pool);
+        }
+        else {
+            tree.build(wall, pool);
+        }
+        if (metrics != null)
+            metrics.setTree(solver.depth(), solver.nodes());
+        end(StepMetrics.Phase.BUILD, event);
+    }
+
+    /**
+     * Updates the force on every body from the tree. No body moves
+     * until every walk of the tree is done.
+     */
+    void computeForces() {
+        PhaseEvent event = begin(StepMetrics.Phase.FORCE);
+        if (!groupWalk || solver != tree) {
+            computeForces(particles.size(), null);
+        }
+        else {
+            int groups = tree.findGroups(GROUP_SIZE);
+            if (pool == null)
+                updateGroupForces(0, groups);
+            else
+                pool.invoke(new GroupTask(0, groups));
+        }
+        end(StepMetrics.Phase.FORCE, event);
+    }
+
+    /**
+     * Updates the force on bodies index[0] to index[count - 1], or on
+     * bodies 0 to count - 1 if index is null.
+     */
+    private void computeForces(int count, int[] index) {
+        if (pool == null)
+            updateForces(0, count, index);
+        else if (costzones && index == null)
+            pool.invoke(new ZoneTask(0, splitZones(count)));
+        else
+            pool.invoke(new ForceTask(0, count, index));
+    }
+
+    /**
+     * Splits bodies [0, n) into ranges of about equal cost, counting
+     * for each body the interactions and openings of its last walk,
+     * plus one so that bodies not walked yet count as well. Range z is
+     * zones[z] to zones[z + 1] - 1. Since the bodies of a range are
+     * contiguous, once the store is in Morton order (see setReorder())
+     * every range is also a compact region of space.
+     *
+     * @return the number of ranges
+     */
+    private int splitZones(int n) {
+        if (cost == null || cost.length != n)
+            cost = new long[n];
+        int parts = Math.max(1, Math.min(n, ZONES_PER_WORKER * pool.getParallelism()));
+        if (zones == null || zones.length < parts + 1)
+            zones = new int[parts + 1];
+
+        long total = 0;
+        for (int i = 0; i < n; i++)
+            total += cost[i] + 1;
+        long sum = 0;
+        int z = 1;
+        zones[0] = 0;
+        for (int i = 0; i < n && z < parts; i++) {
+            sum += cost[i] + 1;
+            while (z < parts && sum * parts >= total * z)
+                zones[z++] = i + 1;
+        }
+        while (z <= parts)
+            zones[z++] = n;
+        return parts;
+    }
+
+    /**
+     * Updates the positions and velocities of all bodies.
+     */
+    void integrate(double dt) {
+        PhaseEvent event = begin(StepMetrics.Phase.INTEGRATE);
+        for (int i = 0; i < particles.size(); i++) {
+            if (gravity)
+                particles.update(i, dt); //Updates the velocity and position of the invoking Particle using leapfrom method, with timestep dt.
+            else
+                particles.move(i, dt);
+        }
+        end(StepMetrics.Phase.INTEGRATE, event);
+    }
+
+    /**
+     * Bounces every pair of overlapping bodies off each other.
+     */
+    void resolveCollisions() {
+        PhaseEvent event = begin(StepMetrics.Phase.COLLISIONS);
+        grid.build(particles);
+        long collisions = 0;
+        for (int i = 0; i < particles.size(); i++)
+            collisions += collide(i);
+        if (metrics != null)
+            metrics.addCollisions(collisions, 0);
+        end(StepMetrics.Phase.COLLISIONS, event);
+    }
+
+    /**
+     * Bounces every body that overlaps the wall back inside.
+     */
+    void resolveWalls() {
+        PhaseEvent event = begin(StepMetrics.Phase.WALLS);
+        long hits = 0;
+        for (int i = 0; i < particles.size(); i++) {
+            if (particles.bounceOffWall(i, wall, wallHit))
+                hits++;
+        }
+        if (metrics != null)
+            metrics.addCollisions(0, hits);
+        end(StepMetrics.Phase.WALLS, event);
+    }
+
+    /**
+     * Sets the Barnes-Hut opening threshold.
+     */
+    public void setTheta(double theta) {
+        tree.setTheta(theta);
+    }
+
+    /**
+     * Sets how the tree walk decides whether to open a node.
+     */
+    public void setOpeningCriterion(OpeningCriterion criterion) {
+        tree.setOpeningCriterion(criterion);
+    }
+
+    /**
+     * Chooses how forces are computed. By default the tree is walked
+     * once for every body. With the group walk it is walked once for
+     * each group of up to 32 nearby bodies, building a list of bodies
+     * and nodes that is then applied to every body of the group. A node
+     * is accepted for the group only if it would be accepted for every
+     * body in it, so the group walk is at least as accurate. Block
+     * timesteps still walk the tree for each active body.
+     *
+     * @param groupWalk true to walk the tree once per group
+     */
+    public void setGroupWalk(boolean groupWalk) {
+        this.groupWalk = groupWalk;
+    }
+
+    /**
+     * Sets whether tree nodes act with their quadrupole moments.
+     */
+    public void setQuadrupole(boolean quadrupole) {
+        tree.setQuadrupole(quadrupole);
+    }
+
+    /**
+     * Sets the most bodies an external node of the tree holds.
+     */
+    public void setLeafSize(int leafSize) {
+        tree.setLeafSize(leafSize);
+    }
+
+    /**
+     * Bounces body i off every body j > i it overlaps. Only the bodies
+     * in the grid cell of i and the eight cells around it are tested.
+     * Returns the number of bounces.
+     */
+    private int collide(int i) {
+        int bounces = 0;
+        int cx = grid.cellX(i);
+        int cy = grid.cellY(i);
+        for (int x = cx - 1; x <= cx + 1; x++) {
+            for (int y = cy - 1; y <= cy + 1; y++) {
+                int b = grid.bucket(x, y);
+                int end = grid.start(b + 1);
+                for (int slot = grid.start(b); slot < end; slot++) {
+                    int j = grid.body(slot);
+                    if (j <= i || grid.cellX(j) != x || grid.cellY(j) != y)
+                        continue;
+                    if (particles.collideWithP(i, j)) {
+                        particles.bounceOff(i, j, particles.alreadyCollideTimeWithP(i, j));
+                        bounces++;
                     }
                 }
-                if(particles[i].alreadyCollideTimeWithW()[0]==1){
-                    particles[i].bounceOffVerticalWall(particles[i].alreadyCollideTimeWithW()[1]);
-                } else if (particles[i].alreadyCollideTimeWithW()[0]==2){
-                    particles[i].bounceOffHorizontalWall(particles[i].alreadyCollideTimeWithW()[1]);
-                } else{
-                    particles[i].bounceOffVerticalWall(particles[i].alreadyCollideTimeWithW()[1]);
-                    particles[i].bounceOffHorizontalWall(particles[i].alreadyCollideTimeWithW()[1]);
-                }
             }
+        }
+        return bounces;
+    }
+
+    /**
+     * Chooses how collisions are handled. By default bodies are moved a
+     * whole step and overlapping bodies are rewound and bounced. In
+     * event-driven mode collisions are predicted and run in time order
+     * within each step, so fast bodies cannot pass through each other.
+     *
+     * @param eventDriven true for event-driven collisions
+     */
+    public void setEventDriven(boolean eventDriven) {
+        events = eventDriven ? new EventCollisionEngine(particles, wall) : null;
+    }
+
+    /**
+     * Turns gravity on or off. Without gravity no tree is built.
+     *
+     * @param gravity true if bodies attract each other
+     */
+    public void setGravity(boolean gravity) {
+        this.gravity = gravity;
+    }
+
+    /**
+     * Gives every body its own timestep, a power-of-two fraction of the
+     * step dt: body i moves in steps of dt / 2^level[i], with level[i]
+     * between 0 and maxLevel, chosen so that the step is at most
+     *
+     *   eta * min(sqrt(r / |a|), r / |v|)
+     *
+     * for radius r, acceleration a and velocity v. Every step is split
+     * into 2^maxLevel sub-steps; each body is integrated with
+     * kick-drift-kick leapfrog over its own step, and the tree is walked
+     * only for the bodies whose step ends at the current sub-step. All
+     * bodies drift, and collisions are resolved, at the end of every
+     * step of the finest level in use.
+     * A body moves to a finer level at the end of any of its steps, and
+     * to a coarser one only where the coarser steps line up. Has no
+     * effect in event-driven mode or without gravity.
+     *
+     * @param maxLevel the deepest level, or 0 for one shared timestep
+     * @param eta      the accuracy parameter, smaller is more accurate
+     */
+    public void setBlockTimesteps(int maxLevel, double eta) {
+        if (maxLevel < 0 || maxLevel > 30)
+            throw new IllegalArgumentException("maxLevel must be between 0 and 30: " + maxLevel);
+        if (!(eta > 0))
+            throw new IllegalArgumentException("eta must be positive: " + eta);
+        this.maxLevel = maxLevel;
+        this.eta = eta;
+        this.level = maxLevel > 0 ? new int[particles.size()] : null;
+        this.active = maxLevel > 0 ? new int[particles.size()] : null;
+        this.leveled = false;
+    }
+
+    /**
+     * Returns the timestep level of body i: it moves in steps of
+     * dt / 2^level. Without block timesteps every level is 0.
+     */
+    public int level(int i) {
+        return level == null ? 0 : level[i];
+    }
+
+    /**
+     * Returns the finest level at which the timestep of body i is
+     * within the accuracy criterion, or maxLevel.
+     */
+    private int levelFor(int i, double dt) {
+        double r = particles.radius(i);
+        double a = Math.hypot(particles.fx(i), particles.fy(i)) / particles.mass(i);
+        double v = Math.hypot(particles.vx(i), particles.vy(i));
+        double limit = Double.POSITIVE_INFINITY;
+        if (a > 0.0)
+            limit = eta * Math.sqrt(r / a);
+        if (v > 0.0)
+            limit = Math.min(limit, eta * r / v);
+
+        int l = 0;
+        while (l < maxLevel && dt / (1L << l) > limit)
+            l++;
+        return l;
+    }
+
+    /**
+     * Advances the system by dt in 2^maxLevel sub-steps, integrating
+     * each body over its own block timestep.
+     */
+    private void blockStep(double dt) {
+        int n = particles.size();
+        if (!leveled) {
+            buildTree();
+            computeForces();
+            for (int i = 0; i < n; i++)
+                level[i] = levelFor(i, dt);
+            leveled = true;
+        }
+
+        int subs = 1 << maxLevel;
+        double h = dt / subs;
+        int s = 0;
+        while (s < subs) {
+
+            // opening half kick for the bodies whose step starts now;
+            // nothing happens until the end of the shortest step
+            PhaseEvent event = begin(StepMetrics.Phase.INTEGRATE);
+            int deepest = 0;
+            for (int i = 0; i < n; i++) {
+                int span = subs >> level[i];
+                if (s % span == 0)
+                    particles.kick(i, 0.5 * h * span);
+                deepest = Math.max(deepest, level[i]);
+            }
+            int jump = subs >> deepest;
 
-            // draw the Particle
-            StdDraw.clear();
+            for (int i = 0; i < n; i++)
+                particles.move(i, h * jump);
+            end(StepMetrics.Phase.INTEGRATE, event);
+            resolveCollisions();
+            resolveWalls();
+            s += jump;
+
+            // bodies whose step ends now
+            int count = 0;
             for (int i = 0; i < n; i++) {
-                particles[i].draw();
+                if (s % (subs >> level[i]) == 0)
+                    active[count++] = i;
+            }
+
+            buildTree();
+            event = begin(StepMetrics.Phase.FORCE);
+            computeForces(count, active);
+            end(StepMetrics.Phase.FORCE, event);
+            event = begin(StepMetrics.Phase.INTEGRATE);
+            for (int k = 0; k < count; k++) {
+                int i = active[k];
+                particles.kick(i, 0.5 * h * (subs >> level[i]));
+
+                // finer at any time, coarser only where the new step lines up
+                int l = levelFor(i, dt);
+                while (l < level[i] && s % (subs >> l) != 0)
+                    l++;
+                level[i] = l;
+            }
+            end(StepMetrics.Phase.INTEGRATE, event);
+        }
+    }
+
+    /**
+     * Stops the worker threads. The system cannot simulate afterwards.
+     */
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    public ParticleStore particles() {
+        return particles;
+    }
+
+    public Quad wall() {
+        return wall;
+    }
+
+    /**
+     * Returns the simulated time.
+     */
+    public double time() {
+        return time;
+    }
+
+    /**
+     * Returns the number of steps taken so far.
+     */
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * Sets the simulated time and step count, for a system that
+     * resumes from a Checkpoint.
+     */
+    public void setClock(double time, long steps) {
+        this.time = time;
+        this.steps = steps;
+    }
+
+    /**
+     * Registers a listener that is called after every step.
+     */
+    public void addListener(SimulationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SimulationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Runs the given number of steps.
+     *
+     * @param dt    time quantum
+     * @param count the number of steps
+     */
+    public void run(double dt, long count) {
+        for (long k = 0; k < count; k++)
+            step(dt);
+    }
+
+    /**
+     * Runs steps until the given amount of simulated time has passed.
+     *
+     * @param dt       time quantum
+     * @param duration the simulated time to run for
+     */
+    public void runFor(double dt, double duration) {
+        double end = time + duration;
+        while (time < end)
+            step(dt);
+    }
+
+    /**
+     * Advances the system by one step and notifies the listeners.
+     *
+     * @param dt time quantum
+     */
+    public void step(double dt) {
+        if (reorderEvery > 0 && steps % reorderEvery == 0) {
+            PhaseEvent event = begin(StepMetrics.Phase.BUILD);
+            reorder();
+            end(StepMetrics.Phase.BUILD, event);
+        }
+        if (level != null && gravity && events == null)
+            blockStep(dt);
+        else
+            sharedStep(dt);
+
+        time += dt;
+        steps++;
+        PhaseEvent event = begin(StepMetrics.Phase.RENDER);
+        for (int k = 0; k < listeners.size(); k++)
+            listeners.get(k).stepped(this);
+        end(StepMetrics.Phase.RENDER, event);
+        if (metrics != null)
+            metrics.endStep();
+    }
+
+    /**
+     * Advances every body by the same step dt.
+     */
+    private void sharedStep(double dt) {
+        leveled = false;
+        if (gravity) {
+            buildTree();
+            computeForces();
+        }
+
+        // move the bodies through this step's collisions in time order
+        if (events != null) {
+            if (gravity) {
+                PhaseEvent event = begin(StepMetrics.Phase.INTEGRATE);
+                for (int i = 0; i < particles.size(); i++)
+                    particles.kick(i, dt);
+                end(StepMetrics.Phase.INTEGRATE, event);
             }
+            PhaseEvent event = begin(StepMetrics.Phase.COLLISIONS);
+            long collisions = events.collisions();
+            long hits = events.wallHits();
+            events.predictAll(dt);
+            events.advance(dt);
+            if (metrics != null)
+                metrics.addCollisions(events.collisions() - collisions, events.wallHits() - hits);
+            end(StepMetrics.Phase.COLLISIONS, event);
+        }
 
-            StdDraw.show();
-            StdDraw.pause(10);
+        else {
+            integrate(dt);
+            resolveCollisions();
+            resolveWalls();
         }
     }
 
-    public static void main(String[] args) {
+    /**
+     * Usage: java CollisionSystem [n] [-input file] [-resume file] [-map file] [-checkpoint file] [-every k]
+     *                               [-trajectory file] [-frames k] [-encoding raw|quantized|delta]
+     *                               [-solver bh|fmm|pm|treepm] [-order p] [-grid g] [-metrics k]
+     *                               [-reorder k] [-fps f]
+     *
+     * Creates n random bodies, resumes from a checkpoint, or reads the
+     * initial conditions from a file or from standard input. With -checkpoint the state
+     * is saved every k steps (default 1000). With -trajectory the positions and velocities
+     * are recorded every k steps (default 10). With -solver fmm gravity comes from the fast
+     * multipole method with expansions of order p (default 8) instead of the Barnes-Hut tree.
+     * With -solver pm it comes from a particle-mesh solver on a grid of g x g points (default
+     * 256), and with -solver treepm from the grid and a tree for the short range.
+     * With -metrics a summary of where the time went is printed to standard error every k steps.
+     * With -reorder the bodies are sorted in memory along the Morton curve every k steps.
+     * With -map a checkpoint is simulated in place: the bodies stay in the file, outside the
+     * heap, and the file is brought up to date every k steps of -every and when the run ends;
+     * it cannot be combined with -reorder, since the file keeps the bodies in id order.
+     * The system is drawn at up to f frames per second (default 60); with -fps 0 nothing is
+     * drawn and no display is needed, for batch runs on a server.
+     */
+    public static void main(String[] args) throws IOException {
+
+        // the bodies of the system and the box they are in
+        ParticleStore particles;
+        Quad wall;
+        int n;
+
+        Path input = null, resume = null, mapped = null, checkpoint = null, trajectory = null;
+        long every = 1000, frames = 10;
+        int encoding = TrajectoryWriter.DELTA;
+        String solver = "bh";
+        int order = FmmSolver.DEFAULT_ORDER;
+        int grid = PmSolver.DEFAULT_GRID;
+        long report = 0, reorder = 0;
+        double fps = 60;
+        String count = null;
+        for (int k = 0; k < args.length; k++) {
+            if (args[k].equals("-input"))
+                input = Paths.get(args[++k]);
+            else if (args[k].equals("-resume"))
+                resume = Paths.get(args[++k]);
+            else if (args[k].equals("-fps"))
+                fps = Double.parseDouble(args[++k]);
+            else if (args[k].equals("-map"))
+                mapped = Paths.get(args[++k]);
+            else if (args[k].equals("-checkpoint"))
+                checkpoint = Paths.get(args[++k]);
+            else if (args[k].equals("-every"))
+                every = Long.parseLong(args[++k]);
+            else if (args[k].equals("-trajectory"))
+                trajectory = Paths.get(args[++k]);
+            else if (args[k].equals("-frames"))
+                frames = Long.parseLong(args[++k]);
+            else if (args[k].equals("-encoding"))
+                encoding = Arrays.asList("raw", "quantized", "delta").indexOf(args[++k]);
+            else if (args[k].equals("-solver"))
+                solver = args[++k];
+            else if (args[k].equals("-order"))
+                order = Integer.parseInt(args[++k]);
+            else if (args[k].equals("-grid"))
+                grid = Integer.parseInt(args[++k]);
+            else if (args[k].equals("-metrics"))
+                report = Long.parseLong(args[++k]);
+            else if (args[k].equals("-reorder"))
+                reorder = Long.parseLong(args[++k]);
+            else
+                count = args[k];
+        }
+
+        Checkpoint restart = null;
+        int workers = Runtime.getRuntime().availableProcessors();
 
-        StdDraw.enableDoubleBuffering();
-        //StdDraw.setCanvasSize(600, 600);
+        // resume a previous run
+        if (resume != null) {
+            restart = Checkpoint.read(resume);
+            wall = restart.wall();
+            particles = restart.particles();
+            n = particles.size();
+        }
+
+        // simulate a checkpoint in place
+        else if (mapped != null) {
+            if (reorder > 0)
+                throw new IllegalArgumentException("-map cannot be combined with -reorder");
+            restart = Checkpoint.map(mapped);
+            wall = restart.wall();
+            particles = restart.particles();
+            n = particles.size();
+        }
 
-        // the array of particles
-        Particle[] particles;
+        // parse a scene file in parallel
+        else if (input != null) {
+            ForkJoinPool loader = new ForkJoinPool(workers);
+            Checkpoint scene = SceneReader.read(input, loader);
+            loader.shutdown();
+            wall = scene.wall();
+            particles = scene.particles();
+            n = particles.size();
+        }
 
         // create n random particles
-        if (args.length == 1) {
+        else if (count != null) {
             wall = new Quad(0.5 , 0.5,1);
-            int n = Integer.parseInt(args[0]);
-            particles = new Particle[n];
-            for (int i = 0; i < n; i++)
-                particles[i] = new Particle();
+            n = Integer.parseInt(count);
+            particles = new ParticleStore(n);
+            for (int i = 0; i < n; i++) {
+                double rx = StdRandom.uniform(0.0, 1.0);
+                double ry = StdRandom.uniform(0.0, 1.0);
+                double vx = StdRandom.uniform(-0.005, 0.005);
+                double vy = StdRandom.uniform(-0.005, 0.005);
+                particles.set(i, 0.02, rx, ry, vx, vy, 0.5, ParticleStore.packColor(0, 0, 0));
+            }
         }
 
-        String type = StdIn.readString(); //TODO
-        int square = StdIn.readInt();
-        wall = new Quad(square/2 , square/2 ,square);
+        else {
+            String type = StdIn.readString(); //TODO
+            int square = StdIn.readInt();
+            wall = new Quad(square/2 , square/2 ,square);
 
-        int n = StdIn.readInt();
-        particles = new Particle[n];
-        for (int i = 0; i < n; i++) {
-            double rx = StdIn.readDouble();
-            double ry = StdIn.readDouble();
-            double vx = StdIn.readDouble();
-            double vy = StdIn.readDouble();
-            double radius = StdIn.readDouble();
-            double mass = StdIn.readDouble();
-            int r = StdIn.readInt();
-            int g = StdIn.readInt();
-            int b = StdIn.readInt();
-            Color color = new Color(r, g, b);
-            particles[i] = new Particle(radius, rx, ry, vx, vy, mass, color);
-        }
-
-
-        CollisionSystem system = new CollisionSystem(particles);
-        system.simulate(0.1,n);
+            n = StdIn.readInt();
+            particles = new ParticleStore(n);
+            for (int i = 0; i < n; i++) {
+                double rx = StdIn.readDouble();
+                double ry = StdIn.readDouble();
+                double vx = StdIn.readDouble();
+                double vy = StdIn.readDouble();
+                double radius = StdIn.readDouble();
+                double mass = StdIn.readDouble();
+                int r = StdIn.readInt();
+                int g = StdIn.readInt();
+                int b = StdIn.readInt();
+                particles.set(i, radius, rx, ry, vx, vy, mass, ParticleStore.packColor(r, g, b));
+            }
+        }
+
+
+        CollisionSystem system = new CollisionSystem(particles, wall, workers);
+        if (restart != null)
+            system.setClock(restart.time(), restart.step());
+        if (solver.equals("fmm"))
+            system.setSolver(new FmmSolver(particles, order));
+        else if (solver.equals("pm"))
+            system.setSolver(new PmSolver(particles, grid, null));
+        else if (solver.equals("treepm"))
+            system.setSolver(new PmSolver(particles, grid, new BHTree(particles)));
+        system.setReorder(reorder);
+        if (report > 0) {
+            system.setMetrics(true);
+            system.addListener(new MetricsReporter(system, System.err, report));
+        }
+        if (checkpoint != null)
+            system.addListener(new CheckpointWriter(checkpoint, every));
+        if (mapped != null) {
+            OffHeapParticleStore store = (OffHeapParticleStore) particles;
+            long syncEvery = every;
+            system.addListener(s -> {
+                if (s.steps() % syncEvery == 0)
+                    store.sync(s.time(), s.steps());
+            });
+        }
+        TrajectoryWriter recorder = null;
+        if (trajectory != null) {
+            recorder = new TrajectoryWriter(trajectory, system, frames, encoding, 2);
+            system.addListener(recorder);
+        }
+        if (fps > 0)
+            system.addListener(new StdDrawRenderer(fps));
+        system.runFor(0.1, 10000 - system.time());
+
+        // the mapped columns already hold the last step; the header must too
+        if (mapped != null)
+            ((OffHeapParticleStore) particles).sync(system.time(), system.steps());
+        if (recorder != null)
+            recorder.close();
     }
 }
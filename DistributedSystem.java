@@ -0,0 +1,1117 @@
+/**
+ * DistributedSystem.java
+ *
+ * Runs one simulation across several processes, so a scene too large
+ * for one JVM can be split among many. The plane is divided among the
+ * ranks by orthogonal recursive bisection (OrbDecomposition), and each
+ * rank owns the bodies in its domain. A step on every rank goes
+ *
+ *   1. forces: the ranks swap the bounding boxes of their bodies, and
+ *      each sends every other rank the part of its own tree that is
+ *      essential to that rank's box (BHTree.collectEssential()). The
+ *      bodies and nodes received are added to the local tree as point
+ *      masses, and the tree is walked for every owned body.
+ *   2. integrate, as CollisionSystem does.
+ *   3. collisions: each rank asks the others for the bodies in the
+ *      collision grid cells within a halo of its own, and runs the
+ *      collision pass of CollisionSystem over its bodies and these
+ *      ghosts, in order of body index (see below).
+ *   4. walls, as CollisionSystem does.
+ *   5. every few steps the domains are bisected again from a sample of
+ *      the bodies, and then bodies that left their domain move to the
+ *      rank that owns them now.
+ *
+ * Rank 0 drives the run: it scatters the bodies, and run(), gather()
+ * and close() on rank 0 send the same command to the other ranks,
+ * which wait for commands in serve(). Messages go through a Transport,
+ * by default SocketTransport on the loopback interface.
+ *
+ * Collisions. The collision pass of CollisionSystem resolves pairs one
+ * at a time in order of body index, and a bounce moves both bodies, so
+ * the outcome for a body can depend on bodies several cells away. Every
+ * rank therefore uses the same grid cells as one process would, orders
+ * its bodies and ghosts by their index in the whole system, and marks
+ * as tainted every ghost next to a cell whose bodies it did not get.
+ * A body tested against a tainted body is tainted in turn. The pass is
+ * redone with a halo twice as wide while any owned body is tainted, so
+ * every owned body ends the pass exactly as it would in one process,
+ * given the same positions and velocities going in. Without gravity a
+ * distributed run therefore matches one process bit for bit. With
+ * gravity it does not: the forces come from a different tree, so they
+ * differ from the single-process forces by about the error of the tree
+ * itself, and the trajectories drift apart at that level.
+ *
+ * Only the shared timestep with overlap correction is distributed;
+ * block timesteps, event-driven collisions, quadrupoles and the other
+ * solvers run in one process only. Each rank computes forces on one
+ * thread.
+ *
+ * Dependencies: Transport.java SocketTransport.java OrbDecomposition.java ParticleStore.java
+ *               BHTree.java InteractionList.java SpatialHash.java Quad.java WalkCounters.java
+ *               Distributions.java CollisionSystem.java
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DistributedSystem {
+
+    // commands rank 0 sends the other ranks
+    private static final int RUN = 1;
+    private static final int GATHER = 2;
+    private static final int STOP = 3;
+
+    // bytes of a body in a message: index, rx, ry, vx, vy, mass, radius, color
+    private static final int BODY_BYTES = 4 + 6 * 8 + 4;
+
+    // sample points each rank contributes to a decomposition
+    private static final int SAMPLES = 1024;
+
+    // steps a halo must suffice before a narrower one is tried
+    private static final int NARROW_AFTER = 16;
+
+    // figures each rank reports after a run
+    private static final int BODIES = 0, GHOSTS = 1, IMPORTED = 2, HALO = 3, ROUNDS = 4, MIGRATED = 5,
+                             FORCE_NANOS = 6, COLLISION_NANOS = 7, RUN_NANOS = 8, FIGURES = 9;
+
+    private final Transport transport;
+    private final int rank;
+    private final int size;
+    private final Quad wall;
+    private final double cellSize;   // side of a collision grid cell, as one process would choose it
+    private final int total;         // number of bodies on all ranks
+
+    private OrbDecomposition orb;
+
+    // the owned bodies are slots [0, count) of store, and id[] is the
+    // index of each in the whole system; the other slots are parked
+    // outside the wall, or hold imported bodies and nodes while forces
+    // are computed
+    private ParticleStore store;
+    private int[] id;
+    private int count;
+    private BHTree tree;
+
+    // settings, sent with every run
+    private boolean gravity = true;
+    private double theta = 0.5;
+    private int rebalance = 20;
+
+    private double time;       // simulated time
+    private long steps;        // steps taken
+
+    // the bodies of the collision pass: owned bodies and ghosts in order
+    // of index, and for each the slot of store it came from, or -1
+    private ParticleStore local = new ParticleStore(0);
+    private int[] localSlot = new int[0];
+    private boolean[] tainted = new boolean[0];
+    private int passed;        // bodies in the last pass
+
+    // width of the halo in grid cells, and steps since it last had to widen
+    private int halo = 1;
+    private int calm;
+    private final SpatialHash grid = new SpatialHash(16);
+
+    // ghosts as they arrive, before being merged into local
+    private ParticleStore ghosts = new ParticleStore(0);
+    private int[] ghostId = new int[0];
+
+    // scratch
+    private final InteractionList essential = new InteractionList();
+    private final WalkCounters work = new WalkCounters();
+    private final ByteBuffer[] outbox;
+    private final double[] wallHit = new double[2];
+    private int[] cellX = new int[0], cellY = new int[0];
+    private long[] keys = new long[0];
+
+    // figures of this rank, and of every rank on rank 0 after a run
+    private final long[] figures = new long[FIGURES];
+    private long[][] balance;
+
+    private DistributedSystem(Transport transport, Quad wall, double cellSize, int total, OrbDecomposition orb) {
+        this.transport = transport;
+        this.rank = transport.rank();
+        this.size = transport.size();
+        this.wall = wall;
+        this.cellSize = cellSize;
+        this.total = total;
+        this.orb = orb;
+        this.outbox = new ByteBuffer[size];
+        this.store = new ParticleStore(0);
+        this.id = new int[0];
+        this.tree = new BHTree(store);
+    }
+
+    /**
+     * Splits the bodies among the ranks and returns rank 0's part of
+     * the system. Called on rank 0 while the other ranks are in serve().
+     *
+     * @param transport the transport of rank 0
+     * @param wall      the wall
+     * @param bodies    every body of the system
+     * @return the system of rank 0
+     * @throws IOException if a rank cannot be reached
+     */
+    public static DistributedSystem scatter(Transport transport, Quad wall, ParticleStore bodies) throws IOException {
+        if (transport.rank() != 0)
+            throw new IllegalStateException("only rank 0 scatters");
+        int n = bodies.size();
+        int size = transport.size();
+        double rmax = 0.0;
+        for (int i = 0; i < n; i++)
+            rmax = Math.max(rmax, bodies.radius(i));
+
+        int stride = Math.max(1, n / (SAMPLES * size));
+        int samples = (n + stride - 1) / stride;
+        double[] x = new double[samples];
+        double[] y = new double[samples];
+        double[] weight = new double[samples];
+        for (int k = 0; k < samples; k++) {
+            x[k] = bodies.rx(k * stride);
+            y[k] = bodies.ry(k * stride);
+            weight[k] = 1.0;
+        }
+        OrbDecomposition orb = OrbDecomposition.build(x, y, weight, samples, size);
+
+        DistributedSystem system = new DistributedSystem(transport, wall, SpatialHash.cellSize(rmax, 0.0), n, orb);
+        int[] owner = new int[n];
+        int[] owned = new int[size];
+        for (int i = 0; i < n; i++) {
+            owner[i] = orb.owner(bodies.rx(i), bodies.ry(i));
+            owned[owner[i]]++;
+        }
+        for (int r = 1; r < size; r++) {
+            ByteBuffer out = system.outbox(r, 36 + orb.bytes() + 4 + owned[r] * BODY_BYTES);
+            out.putDouble(wall.getXmid());
+            out.putDouble(wall.getYmid());
+            out.putDouble(wall.getLength());
+            out.putDouble(system.cellSize);
+            out.putInt(n);
+            orb.write(out);
+            out.putInt(owned[r]);
+        }
+        system.ensureCapacity(owned[0]);
+        for (int i = 0; i < n; i++) {
+            if (owner[i] == 0) {
+                copy(bodies, i, system.store, system.count);
+                system.id[system.count++] = i;
+            }
+            else {
+                putBody(system.outbox[owner[i]], bodies, i, i);
+            }
+        }
+        for (int r = 1; r < size; r++) {
+            system.outbox[r].flip();
+            transport.send(r, system.outbox[r]);
+        }
+        return system;
+    }
+
+    /**
+     * Receives this rank's part of the system from rank 0, then runs the
+     * commands rank 0 sends until it closes the system. Called on every
+     * rank but 0.
+     *
+     * @param transport the transport of this rank
+     * @throws IOException if a rank cannot be reached
+     */
+    public static void serve(Transport transport) throws IOException {
+        if (transport.rank() == 0)
+            throw new IllegalStateException("rank 0 drives the run");
+        ByteBuffer in = transport.receive(0);
+        Quad wall = new Quad(in.getDouble(), in.getDouble(), in.getDouble());
+        double cellSize = in.getDouble();
+        int n = in.getInt();
+        OrbDecomposition orb = OrbDecomposition.read(in);
+        DistributedSystem system = new DistributedSystem(transport, wall, cellSize, n, orb);
+        system.receiveBodies(in);
+
+        while (true) {
+            ByteBuffer command = transport.receive(0);
+            switch (command.getInt()) {
+                case RUN:
+                    double dt = command.getDouble();
+                    long count = command.getLong();
+                    system.gravity = command.getInt() != 0;
+                    system.theta = command.getDouble();
+                    system.rebalance = command.getInt();
+                    system.runSteps(dt, count);
+                    break;
+                case GATHER:
+                    system.gatherBodies();
+                    break;
+                case STOP:
+                    transport.close();
+                    return;
+                default:
+                    throw new IOException("unknown command from rank 0");
+            }
+        }
+    }
+
+    /**
+     * Sends a command and its arguments to every other rank.
+     */
+    private void command(ByteBuffer message) throws IOException {
+        message.flip();
+        for (int r = 1; r < size; r++)
+            transport.send(r, message);
+    }
+
+    /**
+     * Turns gravity on or off for the following runs.
+     */
+    public void setGravity(boolean gravity) {
+        this.gravity = gravity;
+    }
+
+    /**
+     * Sets the Barnes-Hut opening threshold for the following runs.
+     */
+    public void setTheta(double theta) {
+        if (!(theta >= 0))
+            throw new IllegalArgumentException("theta must not be negative: " + theta);
+        this.theta = theta;
+    }
+
+    /**
+     * Sets how many steps pass between two bisections of the domains,
+     * or 0 to keep the first domains.
+     */
+    public void setRebalance(int every) {
+        if (every < 0)
+            throw new IllegalArgumentException("every must not be negative: " + every);
+        this.rebalance = every;
+    }
+
+    /**
+     * Runs the given number of steps on every rank. Called on rank 0.
+     *
+     * @param dt    time quantum
+     * @param count the number of steps
+     * @throws IOException if a rank cannot be reached
+     */
+    public void run(double dt, long count) throws IOException {
+        ByteBuffer message = outbox(1 % size, 32);
+        message.putInt(RUN);
+        message.putDouble(dt);
+        message.putLong(count);
+        message.putInt(gravity ? 1 : 0);
+        message.putDouble(theta);
+        message.putInt(rebalance);
+        command(message);
+        runSteps(dt, count);
+    }
+
+    private void runSteps(double dt, long count) throws IOException {
+        Arrays.fill(figures, 0);
+        tree.setTheta(theta);
+        long start = System.nanoTime();
+        for (long k = 0; k < count; k++)
+            step(dt);
+        figures[BODIES] = this.count;
+        figures[RUN_NANOS] = System.nanoTime() - start;
+        report();
+    }
+
+    /**
+     * Advances the bodies of this rank by dt, in step with the other ranks.
+     */
+    private void step(double dt) throws IOException {
+        if (gravity) {
+            long start = System.nanoTime();
+            computeForces();
+            figures[FORCE_NANOS] += System.nanoTime() - start;
+        }
+        for (int i = 0; i < count; i++) {
+            if (gravity)
+                store.update(i, dt);
+            else
+                store.move(i, dt);
+        }
+
+        long start = System.nanoTime();
+        resolveCollisions();
+        figures[COLLISION_NANOS] += System.nanoTime() - start;
+        for (int i = 0; i < count; i++)
+            store.bounceOffWall(i, wall, wallHit);
+
+        time += dt;
+        steps++;
+        if (rebalance > 0 && steps % rebalance == 0)
+            bisect();
+        migrate();
+    }
+
+    /**
+     * Computes the net force on every owned body, from the local tree
+     * and the essential parts of the trees of the other ranks.
+     */
+    private void computeForces() throws IOException {
+        double[] boxes = boxes();
+        tree.build(wall, null);
+        for (int r = 0; r < size; r++) {
+            if (r == rank)
+                continue;
+            if (boxes[4 * r] > boxes[4 * r + 1])
+                essential.clear();
+            else
+                tree.collectEssential(boxes[4 * r], boxes[4 * r + 1], boxes[4 * r + 2], boxes[4 * r + 3],
+                                      essential, work);
+            int items = essential.bodies() + essential.nodes();
+            ByteBuffer out = outbox(r, 4 + 24 * items);
+            out.putInt(items);
+            for (int k = 0; k < essential.bodies(); k++) {
+                out.putDouble(essential.bx[k]);
+                out.putDouble(essential.by[k]);
+                out.putDouble(essential.bm[k]);
+            }
+            for (int k = 0; k < essential.nodes(); k++) {
+                out.putDouble(essential.nx[k]);
+                out.putDouble(essential.ny[k]);
+                out.putDouble(essential.nm[k]);
+            }
+            out.flip();
+        }
+        ByteBuffer[] in = exchange();
+
+        // what the other ranks sent joins the tree as point masses
+        int items = 0;
+        for (int r = 0; r < size; r++) {
+            if (r != rank)
+                items += in[r].getInt(0);
+        }
+        ensureCapacity(count + items);
+        int slot = count;
+        for (int r = 0; r < size; r++) {
+            if (r == rank)
+                continue;
+            ByteBuffer b = in[r];
+            for (int k = b.getInt(); k > 0; k--)
+                store.set(slot++, 0.0, b.getDouble(), b.getDouble(), 0.0, 0.0, b.getDouble(), 0);
+        }
+        figures[IMPORTED] = items;
+
+        tree.build(wall, null);
+        for (int i = 0; i < count; i++) {
+            store.resetForce(i);
+            tree.updateForce(i, work);
+        }
+        work.clear();
+        for (int s = count; s < slot; s++)
+            park(s);
+    }
+
+    /**
+     * Returns the bounding box of the bodies of every rank, as x0, x1,
+     * y0, y1 of rank r at 4 r. The box of a rank without bodies is empty,
+     * with x0 > x1.
+     */
+    private double[] boxes() throws IOException {
+        double x0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY;
+        double y0 = Double.POSITIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            x0 = Math.min(x0, store.rx(i));
+            x1 = Math.max(x1, store.rx(i));
+            y0 = Math.min(y0, store.ry(i));
+            y1 = Math.max(y1, store.ry(i));
+        }
+        for (int r = 0; r < size; r++) {
+            if (r == rank)
+                continue;
+            ByteBuffer out = outbox(r, 32);
+            out.putDouble(x0).putDouble(x1).putDouble(y0).putDouble(y1);
+            out.flip();
+        }
+        ByteBuffer[] in = exchange();
+        double[] boxes = new double[4 * size];
+        for (int r = 0; r < size; r++) {
+            for (int k = 0; k < 4; k++)
+                boxes[4 * r + k] = r == rank ? (k == 0 ? x0 : k == 1 ? x1 : k == 2 ? y0 : y1) : in[r].getDouble();
+        }
+        return boxes;
+    }
+
+    /**
+     * Runs the collision pass over the owned bodies and the ghosts
+     * around them, widening the halo of ghosts until no owned body is
+     * tainted, then keeps the result for the owned bodies. A step
+     * usually needs one round, as the halo is kept from step to step. Every rank
+     * takes part in every round, answering the requests of the ranks
+     * that are not done yet.
+     */
+    private void resolveCollisions() throws IOException {
+        if (cellX.length < count) {
+            cellX = new int[store.size()];
+            cellY = new int[store.size()];
+        }
+        int ox0 = Integer.MAX_VALUE, ox1 = Integer.MIN_VALUE;
+        int oy0 = Integer.MAX_VALUE, oy1 = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            cellX[i] = (int) Math.floor(store.rx(i) / cellSize);
+            cellY[i] = (int) Math.floor(store.ry(i) / cellSize);
+            ox0 = Math.min(ox0, cellX[i]);
+            ox1 = Math.max(ox1, cellX[i]);
+            oy0 = Math.min(oy0, cellY[i]);
+            oy1 = Math.max(oy1, cellY[i]);
+        }
+
+        // start from the halo that was wide enough last time, now and then a narrower one
+        if (++calm >= NARROW_AFTER && halo > 1) {
+            halo /= 2;
+            calm = 0;
+        }
+        boolean done = count == 0;
+        int rounds = 0;
+        while (true) {
+            for (int r = 0; r < size; r++) {
+                if (r == rank)
+                    continue;
+                ByteBuffer out = outbox(r, 20);
+                out.putInt(done ? 0 : 1);
+                out.putInt(ox0 - halo).putInt(ox1 + halo).putInt(oy0 - halo).putInt(oy1 + halo);
+                out.flip();
+            }
+            ByteBuffer[] requests = exchange();
+            boolean all = done;
+            for (int r = 0; r < size; r++) {
+                if (r != rank && requests[r].getInt(0) != 0)
+                    all = false;
+            }
+            if (all)
+                break;
+
+            for (int r = 0; r < size; r++) {
+                if (r != rank && requests[r].getInt() != 0) {
+                    answer(r, requests[r].getInt(), requests[r].getInt(), requests[r].getInt(), requests[r].getInt());
+                    transport.send(r, outbox[r]);
+                }
+            }
+            if (done)
+                continue;
+
+            ByteBuffer[] answers = new ByteBuffer[size];
+            for (int r = 0; r < size; r++) {
+                if (r != rank)
+                    answers[r] = transport.receive(r);
+            }
+            rounds++;
+            done = pass(answers, ox0 - halo, ox1 + halo, oy0 - halo, oy1 + halo);
+            if (!done) {
+                halo *= 2;
+                calm = 0;
+            }
+        }
+
+        // only now, as the other ranks may have asked for ghosts until the last round
+        for (int k = 0; k < passed; k++) {
+            if (localSlot[k] >= 0)
+                copy(local, k, store, localSlot[k]);
+        }
+        passed = 0;
+        figures[HALO] = halo;
+        figures[ROUNDS] = Math.max(figures[ROUNDS], rounds);
+    }
+
+    /**
+     * Writes to the outbox of rank r the owned bodies in the cells
+     * [x0, x1] x [y0, y1], and the cells just outside that box which
+     * hold owned bodies.
+     */
+    private void answer(int r, int x0, int x1, int y0, int y1) {
+        int inside = 0;
+        int shell = 0;
+        for (int i = 0; i < count; i++) {
+            int cx = cellX[i], cy = cellY[i];
+            if (cx >= x0 && cx <= x1 && cy >= y0 && cy <= y1) {
+                inside++;
+            }
+            else if (cx >= x0 - 1 && cx <= x1 + 1 && cy >= y0 - 1 && cy <= y1 + 1) {
+                if (shell == keys.length)
+                    keys = Arrays.copyOf(keys, Math.max(16, 2 * shell));
+                keys[shell++] = cellKey(cx, cy);
+            }
+        }
+        Arrays.sort(keys, 0, shell);
+        int distinct = 0;
+        for (int k = 0; k < shell; k++) {
+            if (k == 0 || keys[k] != keys[k - 1])
+                keys[distinct++] = keys[k];
+        }
+
+        ByteBuffer out = outbox(r, 8 + inside * BODY_BYTES + 8 * distinct);
+        out.putInt(inside);
+        for (int i = 0; i < count; i++) {
+            int cx = cellX[i], cy = cellY[i];
+            if (cx >= x0 && cx <= x1 && cy >= y0 && cy <= y1)
+                putBody(out, store, i, id[i]);
+        }
+        out.putInt(distinct);
+        for (int k = 0; k < distinct; k++)
+            out.putLong(keys[k]);
+        out.flip();
+    }
+
+    /**
+     * Runs one collision pass over the owned bodies and the ghosts in
+     * the answers, which cover the cells [x0, x1] x [y0, y1]. Returns
+     * true if none of the owned bodies is tainted.
+     */
+    private boolean pass(ByteBuffer[] answers, int x0, int x1, int y0, int y1) {
+        int g = 0;
+        for (int r = 0; r < size; r++) {
+            if (r != rank)
+                g += answers[r].getInt(0);
+        }
+        if (ghosts.size() < g) {
+            ghosts = new ParticleStore(Math.max(g, 2 * ghosts.size()));
+            ghostId = new int[ghosts.size()];
+        }
+        int shells = 0;
+        int filled = 0;
+        for (int r = 0; r < size; r++) {
+            if (r == rank)
+                continue;
+            ByteBuffer in = answers[r];
+            for (int k = in.getInt(); k > 0; k--) {
+                ghostId[filled] = getBody(in, ghosts, filled);
+                filled++;
+            }
+            int cells = in.getInt();
+            if (keys.length < shells + cells)
+                keys = Arrays.copyOf(keys, Math.max(2 * keys.length, shells + cells));
+            for (int k = 0; k < cells; k++)
+                keys[shells++] = in.getLong();
+        }
+        long[] shell = Arrays.copyOf(keys, shells);
+        Arrays.sort(shell);
+        figures[GHOSTS] = g;
+
+        // owned bodies and ghosts in order of index
+        int n = count + g;
+        if (local.size() < n) {
+            local = new ParticleStore(Math.max(n, 2 * local.size()));
+            localSlot = new int[local.size()];
+            tainted = new boolean[local.size()];
+        }
+        if (keys.length < n)
+            keys = new long[Math.max(n, 2 * keys.length)];
+        for (int i = 0; i < count; i++)
+            keys[i] = ((long) id[i] << 32) | i;
+        for (int k = 0; k < g; k++)
+            keys[count + k] = ((long) ghostId[k] << 32) | (count + k);
+        Arrays.sort(keys, 0, n);
+        for (int k = 0; k < n; k++) {
+            int from = (int) keys[k];
+            if (from < count) {
+                copy(store, from, local, k);
+                localSlot[k] = from;
+            }
+            else {
+                copy(ghosts, from - count, local, k);
+                localSlot[k] = -1;
+            }
+        }
+
+        // ghosts next to a cell whose bodies are not here start tainted
+        grid.build(local, n, cellSize);
+        for (int k = 0; k < n; k++) {
+            tainted[k] = false;
+            int cx = grid.cellX(k), cy = grid.cellY(k);
+            if (localSlot[k] >= 0 || (cx != x0 && cx != x1 && cy != y0 && cy != y1))
+                continue;
+            for (int x = cx - 1; x <= cx + 1; x++) {
+                for (int y = cy - 1; y <= cy + 1; y++) {
+                    boolean outside = x < x0 || x > x1 || y < y0 || y > y1;
+                    if (outside && Arrays.binarySearch(shell, cellKey(x, y)) >= 0)
+                        tainted[k] = true;
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++)
+            collide(i);
+
+        passed = n;
+        for (int k = 0; k < n; k++) {
+            if (localSlot[k] >= 0 && tainted[k])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Bounces body i of the pass off every body j > i it overlaps, as
+     * CollisionSystem.collide() does, and taints both bodies of every
+     * pair it tests if either is tainted.
+     */
+    private void collide(int i) {
+        int cx = grid.cellX(i);
+        int cy = grid.cellY(i);
+        for (int x = cx - 1; x <= cx + 1; x++) {
+            for (int y = cy - 1; y <= cy + 1; y++) {
+                int b = grid.bucket(x, y);
+                int end = grid.start(b + 1);
+                for (int slot = grid.start(b); slot < end; slot++) {
+                    int j = grid.body(slot);
+                    if (j <= i || grid.cellX(j) != x || grid.cellY(j) != y)
+                        continue;
+                    if (tainted[i] || tainted[j]) {
+                        tainted[i] = true;
+                        tainted[j] = true;
+                    }
+                    if (local.collideWithP(i, j))
+                        local.bounceOff(i, j, local.alreadyCollideTimeWithP(i, j));
+                }
+            }
+        }
+    }
+
+    private static long cellKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Bisects the domains again from a sample of the bodies of every
+     * rank, gathered on rank 0.
+     */
+    private void bisect() throws IOException {
+        int stride = Math.max(1, count / SAMPLES);
+        int samples = (count + stride - 1) / stride;
+        double weight = samples == 0 ? 0.0 : (double) count / samples;
+
+        if (rank != 0) {
+            ByteBuffer out = outbox(0, 4 + 24 * samples);
+            out.putInt(samples);
+            for (int k = 0; k < samples; k++)
+                out.putDouble(store.rx(k * stride)).putDouble(store.ry(k * stride)).putDouble(weight);
+            out.flip();
+            transport.send(0, out);
+            orb = OrbDecomposition.read(transport.receive(0));
+            return;
+        }
+
+        ByteBuffer[] in = new ByteBuffer[size];
+        int all = samples;
+        for (int r = 1; r < size; r++) {
+            in[r] = transport.receive(r);
+            all += in[r].getInt();
+        }
+        double[] x = new double[all];
+        double[] y = new double[all];
+        double[] w = new double[all];
+        int k = 0;
+        for (; k < samples; k++) {
+            x[k] = store.rx(k * stride);
+            y[k] = store.ry(k * stride);
+            w[k] = weight;
+        }
+        for (int r = 1; r < size; r++) {
+            while (in[r].hasRemaining()) {
+                x[k] = in[r].getDouble();
+                y[k] = in[r].getDouble();
+                w[k++] = in[r].getDouble();
+            }
+        }
+        orb = orb.rebalance(x, y, w, all);
+        ByteBuffer out = outbox(0, orb.bytes());
+        orb.write(out);
+        out.flip();
+        for (int r = 1; r < size; r++)
+            transport.send(r, out);
+    }
+
+    /**
+     * Sends every body that is outside the domain of this rank to the
+     * rank that owns it, and takes in the bodies sent here.
+     */
+    private void migrate() throws IOException {
+        if (cellX.length < count)
+            cellX = new int[store.size()];
+        int[] owner = cellX;
+        int[] leaving = new int[size];
+        for (int i = 0; i < count; i++) {
+            owner[i] = orb.owner(store.rx(i), store.ry(i));
+            leaving[owner[i]]++;
+        }
+        for (int r = 0; r < size; r++) {
+            if (r != rank)
+                outbox(r, 4 + leaving[r] * BODY_BYTES).putInt(leaving[r]);
+        }
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (owner[i] == rank) {
+                if (kept != i) {
+                    copy(store, i, store, kept);
+                    id[kept] = id[i];
+                }
+                kept++;
+            }
+            else {
+                putBody(outbox[owner[i]], store, i, id[i]);
+            }
+        }
+        figures[MIGRATED] += count - kept;
+        for (int s = kept; s < count; s++)
+            park(s);
+        count = kept;
+
+        for (int r = 0; r < size; r++) {
+            if (r != rank)
+                outbox[r].flip();
+        }
+        receiveBodies(exchange());
+    }
+
+    /**
+     * Appends the bodies of every message to the owned bodies.
+     */
+    private void receiveBodies(ByteBuffer... in) {
+        for (ByteBuffer b : in) {
+            if (b == null)
+                continue;
+            int arriving = b.getInt();
+            ensureCapacity(count + arriving);
+            for (int k = 0; k < arriving; k++) {
+                id[count] = getBody(b, store, count);
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Returns every body of the system at its index, on rank 0, and
+     * null on the other ranks.
+     *
+     * @return the bodies of all ranks
+     * @throws IOException if a rank cannot be reached
+     */
+    public ParticleStore gather() throws IOException {
+        ByteBuffer message = outbox(1 % size, 4);
+        message.putInt(GATHER);
+        command(message);
+        return gatherBodies();
+    }
+
+    private ParticleStore gatherBodies() throws IOException {
+        if (rank != 0) {
+            ByteBuffer out = outbox(0, 4 + count * BODY_BYTES);
+            out.putInt(count);
+            for (int i = 0; i < count; i++)
+                putBody(out, store, i, id[i]);
+            out.flip();
+            transport.send(0, out);
+            return null;
+        }
+        ParticleStore all = new ParticleStore(total);
+        for (int i = 0; i < count; i++)
+            copy(store, i, all, id[i]);
+        for (int r = 1; r < size; r++) {
+            ByteBuffer in = transport.receive(r);
+            for (int k = in.getInt(); k > 0; k--)
+                getBody(in, all, -1);
+        }
+        return all;
+    }
+
+    /**
+     * Sends the figures of the last run to rank 0.
+     */
+    private void report() throws IOException {
+        if (rank != 0) {
+            ByteBuffer out = outbox(0, 8 * FIGURES);
+            for (long f : figures)
+                out.putLong(f);
+            out.flip();
+            transport.send(0, out);
+            return;
+        }
+        balance = new long[size][];
+        balance[0] = figures.clone();
+        for (int r = 1; r < size; r++) {
+            ByteBuffer in = transport.receive(r);
+            balance[r] = new long[FIGURES];
+            for (int f = 0; f < FIGURES; f++)
+                balance[r][f] = in.getLong();
+        }
+    }
+
+    /**
+     * Returns a table of the figures of every rank over the last run:
+     * bodies owned at the end, ghosts and imported tree items of the
+     * last step, the halo of the last step in grid cells, the most
+     * collision rounds of any step, bodies sent away, and the time
+     * spent on forces, collisions and in total. Called on rank 0.
+     */
+    public String balance() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%4s %10s %8s %8s %4s %6s %8s %10s %10s %10s%n", "rank", "bodies", "ghosts",
+                                "imported", "halo", "rounds", "migrated", "force ms", "collide ms", "total ms"));
+        for (int r = 0; balance != null && r < size; r++) {
+            long[] f = balance[r];
+            sb.append(String.format("%4d %10d %8d %8d %4d %6d %8d %10.1f %10.1f %10.1f%n", r, f[BODIES], f[GHOSTS],
+                                    f[IMPORTED], f[HALO], f[ROUNDS], f[MIGRATED], f[FORCE_NANOS] / 1e6,
+                                    f[COLLISION_NANOS] / 1e6, f[RUN_NANOS] / 1e6));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stops the other ranks and closes the transport. Called on rank 0.
+     */
+    public void close() throws IOException {
+        ByteBuffer message = outbox(1 % size, 4);
+        message.putInt(STOP);
+        command(message);
+        transport.close();
+    }
+
+    public int rank() {
+        return rank;
+    }
+
+    /**
+     * Returns the number of bodies this rank owns.
+     */
+    public int bodies() {
+        return count;
+    }
+
+    public double time() {
+        return time;
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * Sends every message in the outboxes to the other ranks, and
+     * returns the message from each, by rank.
+     */
+    private ByteBuffer[] exchange() throws IOException {
+        for (int r = 0; r < size; r++) {
+            if (r != rank)
+                transport.send(r, outbox[r]);
+        }
+        ByteBuffer[] in = new ByteBuffer[size];
+        for (int r = 0; r < size; r++) {
+            if (r != rank)
+                in[r] = transport.receive(r);
+        }
+        return in;
+    }
+
+    /**
+     * Returns the cleared outbox of rank r, with room for at least the
+     * given number of bytes.
+     */
+    private ByteBuffer outbox(int r, int bytes) {
+        if (outbox[r] == null || outbox[r].capacity() < bytes) {
+            int capacity = Math.max(bytes, outbox[r] == null ? 256 : 2 * outbox[r].capacity());
+            outbox[r] = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        outbox[r].clear();
+        return outbox[r];
+    }
+
+    /**
+     * Makes room for n bodies in the store, keeping the owned ones.
+     */
+    private void ensureCapacity(int n) {
+        if (n <= store.size())
+            return;
+        ParticleStore grown = new ParticleStore(Math.max(n, 2 * store.size()));
+        for (int i = 0; i < count; i++)
+            copy(store, i, grown, i);
+        for (int s = count; s < grown.size(); s++)
+            park(grown, s);
+        store = grown;
+        id = Arrays.copyOf(id, grown.size());
+        tree = new BHTree(store);
+        tree.setTheta(theta);
+    }
+
+    private void park(int slot) {
+        park(store, slot);
+    }
+
+    /**
+     * Empties a slot: a body with no mass at no position is never
+     * inside the wall, so no tree holds it.
+     */
+    private static void park(ParticleStore s, int slot) {
+        s.set(slot, 0.0, Double.NaN, Double.NaN, 0.0, 0.0, 0.0, 0);
+    }
+
+    private static void copy(ParticleStore from, int i, ParticleStore to, int j) {
+        to.set(j, from.radius(i), from.rx(i), from.ry(i), from.vx(i), from.vy(i), from.mass(i), from.color(i));
+    }
+
+    private static void putBody(ByteBuffer out, ParticleStore s, int i, int id) {
+        out.putInt(id);
+        out.putDouble(s.rx(i)).putDouble(s.ry(i)).putDouble(s.vx(i)).putDouble(s.vy(i));
+        out.putDouble(s.mass(i)).putDouble(s.radius(i));
+        out.putInt(s.color(i));
+    }
+
+    /**
+     * Reads a body written by putBody() into a slot of the store, or
+     * into the slot of its index if slot is negative, and returns its
+     * index.
+     */
+    private static int getBody(ByteBuffer in, ParticleStore s, int slot) {
+        int id = in.getInt();
+        double rx = in.getDouble(), ry = in.getDouble(), vx = in.getDouble(), vy = in.getDouble();
+        double mass = in.getDouble(), r = in.getDouble();
+        s.set(slot < 0 ? id : slot, r, rx, ry, vx, vy, mass, in.getInt());
+        return id;
+    }
+
+    /**
+     * Starts the other ranks as JVMs on this machine, running this
+     * class with the same class path and heap settings, and connects
+     * to them. Returns the transport of rank 0.
+     *
+     * @param size      the number of ranks, including this process
+     * @param processes receives the processes started
+     */
+    public static Transport launch(int size, List<Process> processes) throws IOException {
+        ServerSocket server = SocketTransport.listen();
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> options = new ArrayList<String>();
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (option.startsWith("-Xm") || option.startsWith("-Xss"))
+                options.add(option);
+        }
+        try {
+            for (int r = 1; r < size; r++) {
+                List<String> command = new ArrayList<String>();
+                command.add(java);
+                command.addAll(options);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(DistributedSystem.class.getName());
+                command.add("-worker");
+                command.add(Integer.toString(server.getLocalPort()));
+                command.add(Integer.toString(r));
+                command.add(Integer.toString(size));
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            return SocketTransport.accept(server, size);
+        }
+        catch (IOException e) {
+            server.close();
+            for (Process p : processes)
+                p.destroy();
+            throw e;
+        }
+    }
+
+    /**
+     * Usage: java DistributedSystem [n] [-processes p] [-dist uniform|plummer|disks] [-steps k] [-dt 0.1]
+     *                               [-gravity true|false] [-theta 0.5] [-rebalance k] [-check]
+     *
+     * Creates n bodies (default 10000) from the given distribution, starts p - 1 more JVMs
+     * (default p = 2), and runs k steps (default 100) across them. The figures of every rank
+     * are printed at the end. With -check the same bodies are also run in one process with
+     * CollisionSystem, and the two results are compared body by body.
+     *
+     * Each of the other JVMs runs: java DistributedSystem -worker port rank size
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 4 && args[0].equals("-worker")) {
+            Transport transport = SocketTransport.connect(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                                                          Integer.parseInt(args[3]));
+            serve(transport);
+            return;
+        }
+
+        int n = 10000;
+        int processes = 2;
+        String dist = Distributions.UNIFORM;
+        long count = 100;
+        double dt = 0.1;
+        boolean gravity = true;
+        double theta = 0.5;
+        int rebalance = 20;
+        boolean check = false;
+        for (int k = 0; k < args.length; k++) {
+            if (args[k].equals("-processes"))
+                processes = Integer.parseInt(args[++k]);
+            else if (args[k].equals("-dist"))
+                dist = args[++k];
+            else if (args[k].equals("-steps"))
+                count = Long.parseLong(args[++k]);
+            else if (args[k].equals("-dt"))
+                dt = Double.parseDouble(args[++k]);
+            else if (args[k].equals("-gravity"))
+                gravity = Boolean.parseBoolean(args[++k]);
+            else if (args[k].equals("-theta"))
+                theta = Double.parseDouble(args[++k]);
+            else if (args[k].equals("-rebalance"))
+                rebalance = Integer.parseInt(args[++k]);
+            else if (args[k].equals("-check"))
+                check = true;
+            else
+                n = Integer.parseInt(args[k]);
+        }
+
+        Quad wall = new Quad(0.5, 0.5, 1.0);
+        ParticleStore bodies = Distributions.create(dist, n, wall, 42);
+        ParticleStore single = null;
+        if (check) {
+            single = new ParticleStore(n);
+            for (int i = 0; i < n; i++)
+                copy(bodies, i, single, i);
+        }
+
+        List<Process> workers = new ArrayList<Process>();
+        ParticleStore result = null;
+        try {
+            DistributedSystem system = scatter(launch(processes, workers), wall, bodies);
+            bodies = null;
+            system.setGravity(gravity);
+            system.setTheta(theta);
+            system.setRebalance(rebalance);
+            system.run(dt, count);
+            System.out.print(system.balance());
+            if (check)
+                result = system.gather();
+            system.close();
+            for (Process p : workers)
+                p.waitFor();
+        }
+        finally {
+            for (Process p : workers)
+                p.destroy();
+        }
+
+        if (check) {
+            CollisionSystem reference = new CollisionSystem(single, wall);
+            reference.setGravity(gravity);
+            reference.setTheta(theta);
+            long start = System.nanoTime();
+            reference.run(dt, count);
+            double ms = (System.nanoTime() - start) / 1e6;
+
+            int same = 0;
+            double worst = 0.0;
+            for (int i = 0; i < n; i++) {
+                if (single.rx(i) == result.rx(i) && single.ry(i) == result.ry(i)
+                        && single.vx(i) == result.vx(i) && single.vy(i) == result.vy(i))
+                    same++;
+                worst = Math.max(worst, Math.hypot(single.rx(i) - result.rx(i), single.ry(i) - result.ry(i)));
+            }
+            System.out.printf("one process: %.1f ms; %d of %d bodies identical, largest distance %.3e%n",
+                              ms, same, n, worst);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Distributions.java
+ *
+ * Generates reproducible initial conditions inside a wall: a uniform
+ * gas, a Plummer cluster, and a handful of clustered rotating disks.
+ * The same name, body count, wall and seed always give the same bodies.
+ *
+ * Dependencies: ParticleStore.java Quad.java
+ */
+
+import java.util.Random;
+
+public class Distributions {
+
+    public static final String UNIFORM = "uniform";
+    public static final String PLUMMER = "plummer";
+    public static final String DISKS = "disks";
+
+    // number of disks in the clustered distribution
+    private static final int DISK_COUNT = 8;
+
+    private Distributions() { }
+
+    /**
+     * Creates n bodies drawn from the named distribution.
+     *
+     * @param name one of UNIFORM, PLUMMER or DISKS
+     * @param n    the number of bodies
+     * @param wall the region the bodies are placed in
+     * @param seed the random seed
+     * @return the bodies
+     */
+    public static ParticleStore create(String name, int n, Quad wall, long seed) {
+        Random random = new Random(seed);
+        ParticleStore store = new ParticleStore(n);
+        double len = wall.getLength();
+        double left = wall.getXmid() - len / 2.0;
+        double bottom = wall.getYmid() - len / 2.0;
+
+        // radius such that the bodies cover about a fifth of the wall
+        double radius = 0.25 * len / Math.sqrt(Math.max(1, n));
+        double speed = 0.005 * len;
+        int black = ParticleStore.packColor(0, 0, 0);
+
+        if (UNIFORM.equals(name)) {
+            for (int i = 0; i < n; i++) {
+                double rx = left + len * random.nextDouble();
+                double ry = bottom + len * random.nextDouble();
+                double vx = speed * (2 * random.nextDouble() - 1);
+                double vy = speed * (2 * random.nextDouble() - 1);
+                store.set(i, radius, rx, ry, vx, vy, 0.5, black);
+            }
+        }
+
+        else if (PLUMMER.equals(name)) {
+            double a = len / 20.0;
+            for (int i = 0; i < n; i++) {
+                double rx, ry;
+                do {
+                    double u = random.nextDouble();
+                    double r = a / Math.sqrt(Math.pow(u, -2.0 / 3.0) - 1.0);
+                    double phi = 2 * Math.PI * random.nextDouble();
+                    rx = wall.getXmid() + r * Math.cos(phi);
+                    ry = wall.getYmid() + r * Math.sin(phi);
+                } while (!wall.contains(rx, ry));
+                double vx = speed * random.nextGaussian();
+                double vy = speed * random.nextGaussian();
+                store.set(i, radius, rx, ry, vx, vy, 0.5, black);
+            }
+        }
+
+        else if (DISKS.equals(name)) {
+            double diskRadius = len / 16.0;
+            double[] cx = new double[DISK_COUNT];
+            double[] cy = new double[DISK_COUNT];
+            for (int k = 0; k < DISK_COUNT; k++) {
+                cx[k] = left + diskRadius + (len - 2 * diskRadius) * random.nextDouble();
+                cy[k] = bottom + diskRadius + (len - 2 * diskRadius) * random.nextDouble();
+            }
+            for (int i = 0; i < n; i++) {
+                int k = i % DISK_COUNT;
+                double r = diskRadius * Math.sqrt(random.nextDouble());
+                double phi = 2 * Math.PI * random.nextDouble();
+                double rx = cx[k] + r * Math.cos(phi);
+                double ry = cy[k] + r * Math.sin(phi);
+
+                // rotate about the disk center
+                double v = speed * r / diskRadius;
+                double vx = -v * Math.sin(phi);
+                double vy = v * Math.cos(phi);
+                store.set(i, radius, rx, ry, vx, vy, 0.5, black);
+            }
+        }
+
+        else {
+            throw new IllegalArgumentException("unknown distribution: " + name);
+        }
+
+        return store;
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * EnsembleRunner.java
+ *
+ * Runs many independent simulations in one JVM, for parameter sweeps
+ * over scenes, seeds, Theta and dt. Every run is a CollisionSystem of
+ * its own, simulated on one thread from start to finish; the runs are
+ * what happens in parallel, on a fixed number of worker threads, so a
+ * sweep pays for JVM startup and warm-up once instead of once per scene.
+ *
+ * Each worker keeps the last system it finished and hands its scratch
+ * buffers, the node pool of the tree and the arrays of the collision
+ * grid, to the next system it runs, so a worker running scenes of the
+ * same size allocates them only once.
+ *
+ * Results come back in the order the runs finish (see take()), each
+ * with the final state of the run, its metrics and how long it took. A
+ * run that fails gives a result holding the exception, and the others
+ * go on.
+ *
+ * Usage: java EnsembleRunner [-bodies 500] [-dist uniform,plummer,disks] [-seeds 10]
+ *                            [-theta 0.5] [-dt 0.1] [-steps 200] [-workers k]
+ *
+ * runs every combination of the listed values, with seeds 1 to the
+ * given number, and prints a line per run as it finishes.
+ *
+ * Dependencies: CollisionSystem.java Distributions.java ParticleStore.java Quad.java
+ *               Checkpoint.java StepMetrics.java
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EnsembleRunner implements AutoCloseable {
+
+    /**
+     * One simulation of a sweep: a scene from Distributions, and the
+     * parameters it is run with.
+     */
+    public static final class Run {
+        private final String distribution;
+        private final int bodies;
+        private final long seed;
+        private final double theta;
+        private final double dt;
+        private final long steps;
+
+        /**
+         * @param distribution the name of the initial distribution
+         * @param bodies       the number of bodies
+         * @param seed         the seed of the initial conditions
+         * @param theta        the Barnes-Hut threshold
+         * @param dt           the timestep
+         * @param steps        the number of steps to run
+         */
+        public Run(String distribution, int bodies, long seed, double theta, double dt, long steps) {
+            this.distribution = distribution;
+            this.bodies = bodies;
+            this.seed = seed;
+            this.theta = theta;
+            this.dt = dt;
+            this.steps = steps;
+        }
+
+        public String distribution() {
+            return distribution;
+        }
+
+        public int bodies() {
+            return bodies;
+        }
+
+        public long seed() {
+            return seed;
+        }
+
+        public double theta() {
+            return theta;
+        }
+
+        public double dt() {
+            return dt;
+        }
+
+        public long steps() {
+            return steps;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s n=%d seed=%d theta=%s dt=%s steps=%d",
+                    distribution, bodies, seed, theta, dt, steps);
+        }
+    }
+
+    /**
+     * What a run left behind: its final state and metrics, or the
+     * exception it failed with, and the time it took.
+     */
+    public static final class Result {
+        private final Run run;
+        private final Checkpoint state;
+        private final StepMetrics metrics;
+        private final long nanos;
+        private final RuntimeException failure;
+
+        private Result(Run run, Checkpoint state, StepMetrics metrics, long nanos, RuntimeException failure) {
+            this.run = run;
+            this.state = state;
+            this.metrics = metrics;
+            this.nanos = nanos;
+            this.failure = failure;
+        }
+
+        public Run run() {
+            return run;
+        }
+
+        /**
+         * Returns the wall, clock and bodies at the end of the run, or
+         * null if it failed.
+         */
+        public Checkpoint state() {
+            return state;
+        }
+
+        /**
+         * Returns the metrics of the whole run, or null if it failed.
+         */
+        public StepMetrics metrics() {
+            return metrics;
+        }
+
+        /**
+         * Returns the time the run took on its worker, scene creation included.
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the exception the run failed with, or null.
+         */
+        public RuntimeException failure() {
+            return failure;
+        }
+    }
+
+    // the box every scene is created in
+    private static final Quad WALL = new Quad(0.5, 0.5, 1.0);
+
+    private final ExecutorService workers;
+    private final CompletionService<Result> finished;
+    private int pending;
+
+    // the last system each worker finished, whose buffers the next one takes over
+    private final ThreadLocal<CollisionSystem> spare = new ThreadLocal<CollisionSystem>();
+
+    /**
+     * Creates a runner with a fixed number of worker threads. They are
+     * daemon threads, so a runner that is not closed does not keep the
+     * JVM alive.
+     *
+     * @param threads the number of runs simulated at once
+     */
+    public EnsembleRunner(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        AtomicInteger number = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "ensemble worker " + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.workers = Executors.newFixedThreadPool(threads, factory);
+        this.finished = new ExecutorCompletionService<Result>(workers);
+    }
+
+    /**
+     * Queues a run. It starts as soon as a worker is free.
+     */
+    public void submit(Run run) {
+        finished.submit(() -> execute(run));
+        pending++;
+    }
+
+    /**
+     * Returns the number of runs submitted whose result has not been taken.
+     */
+    public int pending() {
+        return pending;
+    }
+
+    /**
+     * Returns the result of the next run to finish, waiting for it if
+     * none has finished yet.
+     *
+     * @return the result
+     * @throws IllegalStateException if no run is pending
+     * @throws InterruptedException  if interrupted while waiting
+     */
+    public Result take() throws InterruptedException {
+        if (pending == 0)
+            throw new IllegalStateException("no run is pending");
+        try {
+            Result result = finished.take().get();
+            pending--;
+            return result;
+        }
+        catch (ExecutionException e) {
+            // execute() catches what a run throws, so only errors get here
+            pending--;
+            throw new IllegalStateException("worker failed", e.getCause());
+        }
+    }
+
+    private Result execute(Run run) {
+        long start = System.nanoTime();
+        try {
+            ParticleStore particles = Distributions.create(run.distribution(), run.bodies(), WALL, run.seed());
+            CollisionSystem system = new CollisionSystem(particles, WALL, 1, spare.get());
+            spare.set(system);
+            system.setTheta(run.theta());
+            system.setMetrics(true);
+            system.run(run.dt(), run.steps());
+            Checkpoint state = new Checkpoint(WALL, system.time(), system.steps(), particles);
+            return new Result(run, state, system.metrics(), System.nanoTime() - start, null);
+        }
+        catch (RuntimeException e) {
+            return new Result(run, null, null, System.nanoTime() - start, e);
+        }
+    }
+
+    /**
+     * Stops the workers once the runs already submitted are done.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put("bodies", "500");
+        options.put("dist", Distributions.UNIFORM + "," + Distributions.PLUMMER + "," + Distributions.DISKS);
+        options.put("seeds", "10");
+        options.put("theta", "0.5");
+        options.put("dt", "0.1");
+        options.put("steps", "200");
+        options.put("workers", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String key = args[k].replaceFirst("^-+", "");
+            if (!options.containsKey(key))
+                throw new IllegalArgumentException("unknown option: " + args[k]);
+            options.put(key, args[k + 1]);
+        }
+
+        List<Run> runs = new ArrayList<Run>();
+        long seeds = Long.parseLong(options.get("seeds"));
+        long steps = Long.parseLong(options.get("steps"));
+        for (String dist : options.get("dist").split(","))
+            for (String bodies : options.get("bodies").split(","))
+                for (String theta : options.get("theta").split(","))
+                    for (String dt : options.get("dt").split(","))
+                        for (long seed = 1; seed <= seeds; seed++)
+                            runs.add(new Run(dist, Integer.parseInt(bodies), seed,
+                                    Double.parseDouble(theta), Double.parseDouble(dt), steps));
+
+        int threads = Integer.parseInt(options.get("workers"));
+        System.out.printf("%-8s %7s %6s %6s %8s %7s %10s %11s %10s %12s%n",
+                "dist", "bodies", "seed", "theta", "dt", "steps", "ms", "collisions", "wall hits", "interactions");
+        long start = System.nanoTime(), busy = 0;
+        int failed = 0;
+        try (EnsembleRunner runner = new EnsembleRunner(threads)) {
+            for (Run run : runs)
+                runner.submit(run);
+            while (runner.pending() > 0) {
+                Result result = runner.take();
+                Run run = result.run();
+                busy += result.nanos();
+                if (result.failure() != null) {
+                    failed++;
+                    System.out.printf("%s failed: %s%n", run, result.failure());
+                    continue;
+                }
+                StepMetrics m = result.metrics();
+                System.out.printf("%-8s %7d %6d %6s %8s %7d %10.1f %11d %10d %12d%n",
+                        run.distribution(), run.bodies(), run.seed(), run.theta(), run.dt(), run.steps(),
+                        result.nanos() / 1e6, m.totalCollisions(), m.totalWallHits(), m.totalInteractions());
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d runs (%d failed) on %d workers in %.2f s: %.1f runs/s, %.2f s of work%n",
+                runs.size(), failed, threads, elapsed, runs.size() / elapsed, busy / 1e9);
+    }
+}
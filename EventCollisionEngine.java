@@ -0,0 +1,311 @@
+/**
+ * EventCollisionEngine.java
+ *
+ * Event-driven collision handling. Instead of finding overlaps after
+ * every step and rewinding, it predicts when each body will next touch
+ * another body or the wall, keeps the predictions in a priority queue,
+ * and moves time forward from one collision to the next. Bodies only
+ * touched by the events are advanced when an event happens; the rest
+ * keep the time they were last brought up to date and are moved in
+ * one pass at the end of advance().
+ *
+ * A prediction goes stale when one of its bodies collides with
+ * something else first. Stale events are not removed from the queue;
+ * every event remembers the collision count of its bodies when it was
+ * predicted and is dropped when it comes up if either count changed.
+ *
+ * Predictions reach a finite window ahead, and the candidate partners
+ * of a body are the bodies in its own and the eight neighbouring cells
+ * of a grid built at the start of the window, with cells wide enough
+ * for how far a body at the fastest speed of the window can move in
+ * it. A collision can speed a body up past that speed, and such a
+ * body can then leave its cell; it is put on a short list of fast
+ * bodies that every prediction tests as well, so it is never missed.
+ *
+ * The collision physics are those of ParticleStore.bounceOff,
+ * bounceOffVerticalWall and bounceOffHorizontalWall, applied at the
+ * moment of contact.
+ *
+ * Dependencies: ParticleStore.java Quad.java SpatialHash.java
+ */
+
+import java.util.PriorityQueue;
+
+public class EventCollisionEngine {
+
+    // kinds of event
+    private static final int PARTICLE = 0;
+    private static final int VERTICAL_WALL = 1;
+    private static final int HORIZONTAL_WALL = 2;
+
+    private final ParticleStore store;
+    private final Quad wall;
+    private final PriorityQueue<Event> pq = new PriorityQueue<Event>();
+    private final SpatialHash grid;
+
+    private final int[] count;     // collisions each body took part in
+    private final double[] last;   // time each body was last moved to
+    private double time;           // simulation clock
+    private long collisions;       // collisions run between bodies, and with the wall
+    private long wallHits;
+    private double horizon;        // no predictions are made past this time
+
+    // whether the grid holds the bodies for the current window, the
+    // fastest speed it allows for, and the bodies that went faster
+    private boolean gridded;
+    private double vmax;
+    private final boolean[] isFast;
+    private final int[] fast;
+    private int fastCount;
+
+    /**
+     * A predicted collision of body a with body b or with a wall.
+     */
+    private static class Event implements Comparable<Event> {
+        private final double time;
+        private final int a, b, kind;
+        private final int countA, countB;
+
+        Event(double time, int a, int b, int kind, int countA, int countB) {
+            this.time = time;
+            this.a = a;
+            this.b = b;
+            this.kind = kind;
+            this.countA = countA;
+            this.countB = countB;
+        }
+
+        @Override
+        public int compareTo(Event that) {
+            return Double.compare(this.time, that.time);
+        }
+    }
+
+    /**
+     * Constructor: creates an engine over the bodies of the store,
+     * bounded by the wall. Call predictAll() before the first advance().
+     *
+     * @param store the bodies
+     * @param wall  the walls the bodies bounce off
+     */
+    public EventCollisionEngine(ParticleStore store, Quad wall) {
+        this.store = store;
+        this.wall = wall;
+        this.grid = new SpatialHash(store.size());
+        this.count = new int[store.size()];
+        this.last = new double[store.size()];
+        this.isFast = new boolean[store.size()];
+        this.fast = new int[store.size()];
+    }
+
+    public double time() {
+        return time;
+    }
+
+    /**
+     * Returns the number of collisions between bodies run so far.
+     */
+    public long collisions() {
+        return collisions;
+    }
+
+    /**
+     * Returns the number of bounces off the wall run so far.
+     */
+    public long wallHits() {
+        return wallHits;
+    }
+
+    /**
+     * Throws away every prediction and predicts again from the current
+     * velocities. Call this after velocities were changed from outside,
+     * for example by a gravity kick, and at the start of every window.
+     *
+     * Only collisions up to window from now are predicted. With a finite
+     * window the candidate pairs come from a grid whose cells cover how
+     * far the bodies can move in that time, otherwise every pair is
+     * tested, now and after every event.
+     *
+     * @param window how far ahead to predict, or Double.POSITIVE_INFINITY
+     */
+    public void predictAll(double window) {
+        pq.clear();
+        int n = store.size();
+        horizon = time + window;
+        for (int k = 0; k < fastCount; k++)
+            isFast[fast[k]] = false;
+        fastCount = 0;
+        gridded = !Double.isInfinite(window);
+
+        if (!gridded) {
+            for (int i = 0; i < n; i++) {
+                predictWalls(i);
+                for (int j = i + 1; j < n; j++)
+                    predictPair(i, j);
+            }
+            return;
+        }
+
+        vmax = 0.0;
+        for (int i = 0; i < n; i++)
+            vmax = Math.max(vmax, speed(i));
+        grid.build(store, vmax * window);
+
+        for (int i = 0; i < n; i++) {
+            predictWalls(i);
+            predictNeighbours(i, true);
+        }
+    }
+
+    /**
+     * Predicts the collisions of body i with the bodies in its own and
+     * the neighbouring cells of the grid. With half, only the cells
+     * after its own and the bodies after it in its own cell are
+     * visited, so that a loop over every body sees each pair once.
+     */
+    private void predictNeighbours(int i, boolean half) {
+        int cx = grid.cellX(i);
+        int cy = grid.cellY(i);
+        for (int x = cx - 1; x <= cx + 1; x++) {
+            for (int y = cy - 1; y <= cy + 1; y++) {
+                if (half && (x < cx || (x == cx && y < cy)))
+                    continue;
+                boolean own = x == cx && y == cy;
+                int b = grid.bucket(x, y);
+                int end = grid.start(b + 1);
+                for (int slot = grid.start(b); slot < end; slot++) {
+                    int j = grid.body(slot);
+                    if (j != i && grid.cellX(j) == x && grid.cellY(j) == y && (!half || !own || j > i))
+                        predictPair(i, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the collisions of the next dt time units and moves every
+     * body to the end of that interval.
+     *
+     * @param dt the time to advance by
+     */
+    public void advance(double dt) {
+        double end = time + dt;
+
+        while (!pq.isEmpty() && pq.peek().time <= end) {
+            Event e = pq.poll();
+            if (count[e.a] != e.countA || (e.kind == PARTICLE && count[e.b] != e.countB))
+                continue;
+
+            time = e.time;
+            moveTo(e.a);
+            if (e.kind == PARTICLE) {
+                moveTo(e.b);
+                store.bounceOff(e.a, e.b, 0.0);
+                collisions++;
+                count[e.a]++;
+                count[e.b]++;
+                predict(e.a);
+                predict(e.b);
+            }
+            else {
+                if (e.kind == VERTICAL_WALL)
+                    store.bounceOffVerticalWall(e.a, 0.0);
+                else
+                    store.bounceOffHorizontalWall(e.a, 0.0);
+                wallHits++;
+                count[e.a]++;
+                predict(e.a);
+            }
+        }
+
+        time = end;
+        for (int i = 0; i < store.size(); i++)
+            moveTo(i);
+    }
+
+    /**
+     * Brings body i up to the current time.
+     */
+    private void moveTo(int i) {
+        store.move(i, time - last[i]);
+        last[i] = time;
+    }
+
+    /**
+     * Predicts the next collisions of body i with the walls and with
+     * the bodies it can reach in the window: those in the neighbouring
+     * cells and the fast ones, or every other body if i itself has
+     * become too fast for the grid or there is no grid.
+     */
+    private void predict(int i) {
+        predictWalls(i);
+        if (gridded && !isFast[i] && speed(i) > vmax) {
+            isFast[i] = true;
+            fast[fastCount++] = i;
+        }
+        if (!gridded || isFast[i]) {
+            for (int j = 0; j < store.size(); j++) {
+                if (j != i)
+                    predictPair(i, j);
+            }
+            return;
+        }
+        predictNeighbours(i, false);
+        for (int k = 0; k < fastCount; k++) {
+            if (fast[k] != i)
+                predictPair(i, fast[k]);
+        }
+    }
+
+    private double speed(int i) {
+        double vx = store.vx(i), vy = store.vy(i);
+        return Math.sqrt(vx * vx + vy * vy);
+    }
+
+    private void predictWalls(int i) {
+        double half = wall.getLength() / 2.0;
+        double x = store.rx(i) + store.vx(i) * (time - last[i]);
+        double y = store.ry(i) + store.vy(i) * (time - last[i]);
+        double r = store.radius(i);
+
+        double dtX = timeToWall(x, store.vx(i), r, wall.getXmid() - half, wall.getXmid() + half);
+        if (time + dtX <= horizon)
+            pq.add(new Event(time + dtX, i, -1, VERTICAL_WALL, count[i], 0));
+
+        double dtY = timeToWall(y, store.vy(i), r, wall.getYmid() - half, wall.getYmid() + half);
+        if (time + dtY <= horizon)
+            pq.add(new Event(time + dtY, i, -1, HORIZONTAL_WALL, count[i], 0));
+    }
+
+    /**
+     * Returns how long until a body at x moving with velocity v touches
+     * the wall at lo or hi, or infinity if it never does.
+     */
+    private static double timeToWall(double x, double v, double r, double lo, double hi) {
+        double t;
+        if (v > 0)
+            t = (hi - r - x) / v;
+        else if (v < 0)
+            t = (lo + r - x) / v;
+        else
+            return Double.POSITIVE_INFINITY;
+        return Math.max(0.0, t);
+    }
+
+    private void predictPair(int i, int j) {
+        double dx  = (store.rx(j) + store.vx(j) * (time - last[j])) - (store.rx(i) + store.vx(i) * (time - last[i]));
+        double dy  = (store.ry(j) + store.vy(j) * (time - last[j])) - (store.ry(i) + store.vy(i) * (time - last[i]));
+        double dvx = store.vx(j) - store.vx(i);
+        double dvy = store.vy(j) - store.vy(i);
+        double dvdr = dx*dvx + dy*dvy;
+        if (dvdr >= 0) return;
+        double dvdv = dvx*dvx + dvy*dvy;
+        double drdr = dx*dx + dy*dy;
+        double sigma = store.radius(i) + store.radius(j);
+        double d = (dvdr*dvdr) - dvdv * (drdr - sigma*sigma);
+        if (d < 0) return;
+        double dt = -(dvdr + Math.sqrt(d)) / dvdv;
+        if (dt <= 0 || time + dt > horizon) return;
+        pq.add(new Event(time + dt, i, j, PARTICLE, count[i], count[j]));
+    }
+}
@@ -0,0 +1,668 @@
+/**
+ * FmmSolver.java
+ *
+ * A 2D fast multipole method for the softened kernel of ParticleStore.
+ * The bodies inside the wall are sorted by Morton key and binned into
+ * the cells of a quadtree of uniform depth over the wall, the same
+ * partitioning BHTree uses, with the depth chosen to balance the direct
+ * sums between leaves against the translations (see chooseDepth()).
+ * Only the occupied cells are stored: the cells of a level are sorted
+ * by Morton code, and every cell is a contiguous run of the cells, or
+ * of the sorted bodies, one level down.
+ *
+ * The force on a body is minus the gradient of U(t) = sum m_j Phi(|t - s_j|),
+ * where Phi(r) = atan(r / EPS) / EPS has Phi'(r) = 1 / (r^2 + EPS^2).
+ * Phi is not harmonic, so the complex expansions of the classic 2D FMM
+ * do not apply; the expansions here are Cartesian Taylor series, of
+ * total degree at most the order p, in the offset from the cell center
+ * measured in units of the cell side:
+ *
+ *   multipole  M_a = sum m_j d_j^a                 (P2M, then M2M upwards)
+ *   local      L_c = sum_a (-1)^|a| C(a + c, c) T_(a + c) M_a   (M2L)
+ *   evaluation U(z + y) = sum_c L_c y^c            (L2L downwards, then L2P)
+ *
+ * with a and c multi-indices, C the product of the binomials of their
+ * components and T the Taylor coefficients of Phi(|x0 + y|) in y, x0
+ * being the offset between the two cell centers. T comes from jet
+ * arithmetic: |x0 + y|^2 = |x0|^2 + delta(y) is a polynomial, and the
+ * composition with F(s) = Phi(sqrt(s)) is sum F^(k)(|x0|^2) delta^k / k!
+ * truncated to degree p, with the derivatives of F in closed form. The
+ * cells of a level all have the same size, so T is computed once per
+ * level for each of the 40 offsets an interaction list can have.
+ *
+ * A cell takes the multipoles of the children of its parent's
+ * neighbours that are not its own neighbours. The neighbours of a leaf
+ * act body by body. Bodies outside the wall are not in the tree and
+ * get the direct sum over the bodies inside it.
+ *
+ * Dependencies: GravitySolver.java ParticleStore.java MortonKeys.java Quad.java
+ *               WalkCounters.java
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class FmmSolver implements GravitySolver {
+
+    // expansion order used unless one is given
+    public static final int DEFAULT_ORDER = 8;
+
+    // cost of one term of a translation relative to one body-body interaction
+    private static final double TRANSLATION_COST = 0.1;
+
+    // cells per task once a level is split among the workers
+    private static final int GRAIN = 64;
+
+    // offsets between a cell and the members of its interaction list are in [-3, 3]
+    private static final int SPAN = 7;
+
+    private final ParticleStore store;
+    private final MortonKeys keys;
+    private final int order;
+    private final int terms;       // number of multi-indices of degree at most order
+
+    // M2M and L2L as flat lists of (out term, in term, monomial of the child
+    // offset, coefficient)
+    private final int[] m2mOut, m2mIn, m2mPow;
+    private final double[] m2mCoef;
+    private final int[] l2lOut, l2lIn, l2lPow;
+    private final double[] l2lCoef;
+
+    // M2L is computed as L_c = (1 / c!) sum_a W_a D_(a + c), with W_a =
+    // (-1)^|a| M_a / a! and D_v = v! T_v, so that for a fixed c and degree
+    // of a both W and D are read at consecutive terms
+    private final int m2lTerms;            // multiply-adds of one M2L translation
+    private final double[] weight;         // (-1)^|a| / a!, by term
+    private final double[] inverse;        // 1 / c!, by term
+
+    // monomials of the offset of a child's center from its parent's, in
+    // units of the parent side, by Morton digit
+    private final double[][] shift = new double[4][];
+
+    // the tree
+    private double left, bottom, side;
+    private int depth;
+    private final int[] cells = new int[MortonKeys.LEVELS + 1];
+    private final int[][] code = new int[MortonKeys.LEVELS + 1][];
+    private final int[][] start = new int[MortonKeys.LEVELS + 1][];   // first child, or first sorted body at the leaves
+    private final int[][] parent = new int[MortonKeys.LEVELS + 1][];
+    private final double[][] multipole = new double[MortonKeys.LEVELS + 1][];
+    private final double[][] weighted = new double[MortonKeys.LEVELS + 1][];  // W of each multipole
+    private final double[][] local = new double[MortonKeys.LEVELS + 1][];
+    private final double[][] kernel = new double[MortonKeys.LEVELS + 1][];  // D by offset
+    private int[] near = new int[0];     // the 3 x 3 block of leaves around each leaf, or -1
+    private final int[] leafOf;          // leaf of each body, or -1 if outside the wall
+
+    // scratch for kernelCoefficients()
+    private final double[] derivatives, jet, jetNext;
+
+    /**
+     * Constructor: creates a solver with the default expansion order.
+     *
+     * @param store the bodies the solver is built over
+     */
+    public FmmSolver(ParticleStore store) {
+        this(store, DEFAULT_ORDER);
+    }
+
+    /**
+     * Constructor: creates a solver whose expansions have total degree
+     * at most order. The error falls roughly geometrically with the
+     * order, and the cost of a translation grows with its fourth power.
+     *
+     * @param store the bodies the solver is built over
+     * @param order the expansion order, at least 1
+     */
+    public FmmSolver(ParticleStore store, int order) {
+        if (order < 1)
+            throw new IllegalArgumentException("order must be positive: " + order);
+        this.store = store;
+        this.order = order;
+        this.terms = (order + 1) * (order + 2) / 2;
+        this.keys = new MortonKeys(store.size());
+        this.leafOf = new int[store.size()];
+        this.derivatives = new double[order + 1];
+        this.jet = new double[terms];
+        this.jetNext = new double[terms];
+
+        int shifts = 0, locals = 0;
+        for (int t = 0; t < terms; t++) {
+            for (int u = 0; u < terms; u++) {
+                if (ex(u) <= ex(t) && ey(u) <= ey(t))
+                    shifts++;
+                if (ex(u) + ey(u) + ex(t) + ey(t) <= order)
+                    locals++;
+            }
+        }
+        m2mOut = new int[shifts];
+        m2mIn = new int[shifts];
+        m2mPow = new int[shifts];
+        m2mCoef = new double[shifts];
+        l2lOut = new int[shifts];
+        l2lIn = new int[shifts];
+        l2lPow = new int[shifts];
+        l2lCoef = new double[shifts];
+        m2lTerms = locals;
+        weight = new double[terms];
+        inverse = new double[terms];
+        for (int t = 0; t < terms; t++) {
+            inverse[t] = 1.0 / (factorial(ex(t)) * factorial(ey(t)));
+            weight[t] = ((ex(t) + ey(t)) % 2 == 0 ? 1.0 : -1.0) * inverse[t];
+        }
+
+        int s = 0;
+        for (int t = 0; t < terms; t++) {
+            for (int u = 0; u < terms; u++) {
+                if (ex(u) <= ex(t) && ey(u) <= ey(t)) {
+                    double c = binomial(ex(t), ex(u)) * binomial(ey(t), ey(u));
+                    int pow = index(ex(t) - ex(u), ey(t) - ey(u));
+                    // M_t += C(t, u) (d_child / 2)^u e^(t - u), u the child term
+                    m2mOut[s] = t;
+                    m2mIn[s] = u;
+                    m2mPow[s] = pow;
+                    m2mCoef[s] = c * Math.pow(0.5, ex(u) + ey(u));
+                    // L_u += C(t, u) e^(t - u) L_t / 2^|u|, u the child term
+                    l2lOut[s] = u;
+                    l2lIn[s] = t;
+                    l2lPow[s] = pow;
+                    l2lCoef[s] = c * Math.pow(0.5, ex(u) + ey(u));
+                    s++;
+                }
+            }
+        }
+
+        for (int d = 0; d < 4; d++) {
+            double x = (d & 1) != 0 ? 0.25 : -0.25;
+            double y = (d & 2) != 0 ? 0.25 : -0.25;
+            shift[d] = new double[terms];
+            for (int t = 0; t < terms; t++)
+                shift[d][t] = Math.pow(x, ex(t)) * Math.pow(y, ey(t));
+        }
+    }
+
+    public int order() {
+        return order;
+    }
+
+    /**
+     * Returns the depth of the leaves of the last build.
+     */
+    @Override
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Returns the number of occupied cells of the last build.
+     */
+    @Override
+    public int nodes() {
+        int nodes = 0;
+        for (int l = 0; l <= depth; l++)
+            nodes += cells[l];
+        return nodes;
+    }
+
+    // multi-indices of degree n are numbered n (n + 1) / 2 to n (n + 1) / 2 + n, by y exponent
+    private static int index(int a, int b) {
+        int n = a + b;
+        return n * (n + 1) / 2 + b;
+    }
+
+    private static int ey(int t) {
+        int n = degree(t);
+        return t - n * (n + 1) / 2;
+    }
+
+    private static int ex(int t) {
+        return degree(t) - ey(t);
+    }
+
+    private static int degree(int t) {
+        int n = 0;
+        while ((n + 1) * (n + 2) / 2 <= t)
+            n++;
+        return n;
+    }
+
+    private static double binomial(int n, int k) {
+        double c = 1.0;
+        for (int j = 1; j <= k; j++)
+            c = c * (n - k + j) / j;
+        return c;
+    }
+
+    /**
+     * Sorts the bodies inside the wall into the tree, then computes the
+     * multipoles upwards and the local expansions downwards. Every level
+     * is processed in parallel when there is a pool.
+     */
+    @Override
+    public void build(Quad wall, ForkJoinPool pool) {
+        side = wall.getLength();
+        left = wall.getXmid() - side / 2.0;
+        bottom = wall.getYmid() - side / 2.0;
+        keys.compute(store, wall, pool);
+        int n = keys.size();
+
+        depth = chooseDepth(n);
+
+        // the leaves, then every level above from the one below
+        ensure(depth, n);
+        int c = -1, last = -1;
+        for (int k = 0; k < n; k++) {
+            int p = prefix(keys.key(k), depth);
+            if (c == -1 || p != last) {
+                c++;
+                code[depth][c] = p;
+                start[depth][c] = k;
+                last = p;
+            }
+        }
+        cells[depth] = c + 1;
+        start[depth][c + 1] = n;
+        for (int l = depth - 1; l >= 0; l--) {
+            ensure(l, cells[l + 1]);
+            c = -1;
+            for (int k = 0; k < cells[l + 1]; k++) {
+                int p = code[l + 1][k] >>> 2;
+                if (c == -1 || p != code[l][c]) {
+                    c++;
+                    code[l][c] = p;
+                    start[l][c] = k;
+                }
+                parent[l + 1][k] = c;
+            }
+            cells[l] = c + 1;
+            start[l][c + 1] = cells[l + 1];
+        }
+
+        Arrays.fill(leafOf, -1);
+        for (int leaf = 0; leaf < cells[depth]; leaf++) {
+            for (int k = start[depth][leaf]; k < start[depth][leaf + 1]; k++)
+                leafOf[keys.body(k)] = leaf;
+        }
+        if (near.length < 9 * cells[depth])
+            near = new int[9 * cells[depth]];
+        for (int l = 2; l <= depth; l++)
+            kernelCoefficients(l);
+
+        run(LevelTask.UP, depth, pool);
+        for (int l = depth - 1; l >= 0; l--)
+            run(LevelTask.UP, l, pool);
+        for (int l = 2; l <= depth; l++)
+            run(LevelTask.DOWN, l, pool);
+        run(LevelTask.NEAR, depth, pool);
+    }
+
+    /**
+     * Chooses the leaf depth with the least estimated work. A deeper
+     * tree has fewer bodies per leaf, so less direct summation between
+     * neighbouring leaves, but more cells to translate expansions for.
+     * The near field is estimated as 9 sum n_c^2 over the leaves, which
+     * a clustered distribution makes far larger than its average, and
+     * the far field as 27 M2L translations per cell of every level.
+     */
+    private int chooseDepth(int n) {
+        double best = Double.POSITIVE_INFINITY, far = 0.0;
+        int chosen = 0;
+        for (int l = 0; l <= MortonKeys.LEVELS; l++) {
+            double pairs = 0.0;
+            int occupied = 0;
+            for (int k = 0; k < n; ) {
+                int p = prefix(keys.key(k), l);
+                int end = k + 1;
+                while (end < n && prefix(keys.key(end), l) == p)
+                    end++;
+                pairs += (double) (end - k) * (end - k);
+                occupied++;
+                k = end;
+            }
+            if (l >= 2)
+                far += 27.0 * occupied * m2lTerms * TRANSLATION_COST;
+            double cost = 9.0 * pairs + far + (double) n * terms;
+            if (cost < best) {
+                best = cost;
+                chosen = l;
+            }
+            else if (9.0 * pairs < far) {
+                break;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns the Morton code of the cell at level l holding a key.
+     */
+    private static int prefix(int key, int l) {
+        return l == 0 ? 0 : key >>> (2 * (MortonKeys.LEVELS - l));
+    }
+
+    /**
+     * Makes room for capacity cells at level l.
+     */
+    private void ensure(int l, int capacity) {
+        if (code[l] != null && code[l].length >= capacity)
+            return;
+        code[l] = new int[capacity];
+        start[l] = new int[capacity + 1];
+        parent[l] = new int[capacity];
+        multipole[l] = new double[capacity * terms];
+        weighted[l] = new double[capacity * terms];
+        local[l] = new double[capacity * terms];
+    }
+
+    private void run(int op, int l, ForkJoinPool pool) {
+        if (pool == null || cells[l] <= GRAIN)
+            apply(op, l, 0, cells[l]);
+        else
+            pool.invoke(new LevelTask(op, l, 0, cells[l]));
+    }
+
+    /**
+     * Applies one pass to cells [lo, hi) of level l: the cells of a
+     * level are independent of each other in every pass.
+     */
+    private class LevelTask extends RecursiveAction {
+        static final int UP = 0;       // P2M at the leaves, M2M above
+        static final int DOWN = 1;     // L2L from the parent, then M2L
+        static final int NEAR = 2;     // neighbour lists of the leaves
+
+        private final int op, l, lo, hi;
+
+        LevelTask(int op, int l, int lo, int hi) {
+            this.op = op;
+            this.l = l;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= GRAIN) {
+                apply(op, l, lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new LevelTask(op, l, lo, mid), new LevelTask(op, l, mid, hi));
+        }
+    }
+
+    private void apply(int op, int l, int lo, int hi) {
+        for (int c = lo; c < hi; c++) {
+            if (op == LevelTask.UP) {
+                if (l == depth)
+                    particleToMultipole(c);
+                else
+                    shiftMultipoles(l, c);
+                int base = c * terms;
+                for (int t = 0; t < terms; t++)
+                    weighted[l][base + t] = weight[t] * multipole[l][base + t];
+            }
+            else if (op == LevelTask.DOWN)
+                localExpansion(l, c);
+            else
+                neighbours(c);
+        }
+    }
+
+    /**
+     * P2M: the multipole of leaf c from its bodies.
+     */
+    private void particleToMultipole(int c) {
+        double[] m = multipole[depth];
+        int base = c * terms;
+        Arrays.fill(m, base, base + terms, 0.0);
+        double h = side / (1 << depth);
+        double cx = left + (MortonKeys.cellX(code[depth][c]) + 0.5) * h;
+        double cy = bottom + (MortonKeys.cellY(code[depth][c]) + 0.5) * h;
+        for (int k = start[depth][c]; k < start[depth][c + 1]; k++) {
+            int b = keys.body(k);
+            double x = (store.rx(b) - cx) / h;
+            double y = (store.ry(b) - cy) / h;
+            double py = store.mass(b);
+            for (int j = 0; j <= order; j++) {
+                double p = py;
+                for (int i = 0; i + j <= order; i++) {
+                    m[base + index(i, j)] += p;
+                    p *= x;
+                }
+                py *= y;
+            }
+        }
+    }
+
+    /**
+     * M2M: the multipole of cell c of level l from those of its children.
+     */
+    private void shiftMultipoles(int l, int c) {
+        double[] m = multipole[l];
+        double[] below = multipole[l + 1];
+        int base = c * terms;
+        Arrays.fill(m, base, base + terms, 0.0);
+        for (int k = start[l][c]; k < start[l][c + 1]; k++) {
+            double[] e = shift[code[l + 1][k] & 3];
+            int from = k * terms;
+            for (int s = 0; s < m2mOut.length; s++)
+                m[base + m2mOut[s]] += m2mCoef[s] * below[from + m2mIn[s]] * e[m2mPow[s]];
+        }
+    }
+
+    /**
+     * L2L and M2L: the local expansion of cell c of level l, from the
+     * local expansion of its parent and the multipoles of its
+     * interaction list. Levels 0 and 1 have no well separated cells.
+     */
+    private void localExpansion(int l, int c) {
+        double[] out = local[l];
+        int base = c * terms;
+        Arrays.fill(out, base, base + terms, 0.0);
+        if (l > 2) {
+            double[] above = local[l - 1];
+            double[] e = shift[code[l][c] & 3];
+            int from = parent[l][c] * terms;
+            for (int s = 0; s < l2lOut.length; s++)
+                out[base + l2lOut[s]] += l2lCoef[s] * above[from + l2lIn[s]] * e[l2lPow[s]];
+        }
+
+        int ix = MortonKeys.cellX(code[l][c]);
+        int iy = MortonKeys.cellY(code[l][c]);
+        double[] w = weighted[l];
+        double[] d = kernel[l];
+        for (int qy = (iy >> 1) - 1; qy <= (iy >> 1) + 1; qy++) {
+            for (int qx = (ix >> 1) - 1; qx <= (ix >> 1) + 1; qx++) {
+                int q = find(l - 1, qx, qy);
+                if (q == -1)
+                    continue;
+                for (int k = start[l - 1][q]; k < start[l - 1][q + 1]; k++) {
+                    int ox = ix - MortonKeys.cellX(code[l][k]);
+                    int oy = iy - MortonKeys.cellY(code[l][k]);
+                    if (Math.abs(ox) <= 1 && Math.abs(oy) <= 1)
+                        continue;
+                    int from = k * terms;
+                    int der = ((oy + 3) * SPAN + ox + 3) * terms;
+                    for (int n = 0, t = 0; n <= order; n++) {
+                        for (int cy = 0; cy <= n; cy++, t++) {
+                            double sum = 0.0;
+                            for (int da = 0; da + n <= order; da++) {
+                                int wa = from + da * (da + 1) / 2;
+                                int dv = der + (da + n) * (da + n + 1) / 2 + cy;
+                                for (int ay = 0; ay <= da; ay++)
+                                    sum += w[wa + ay] * d[dv + ay];
+                            }
+                            out[base + t] += inverse[t] * sum;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The leaves in the 3 x 3 block around leaf c, including c.
+     */
+    private void neighbours(int c) {
+        int ix = MortonKeys.cellX(code[depth][c]);
+        int iy = MortonKeys.cellY(code[depth][c]);
+        int k = 9 * c;
+        for (int y = iy - 1; y <= iy + 1; y++) {
+            for (int x = ix - 1; x <= ix + 1; x++)
+                near[k++] = find(depth, x, y);
+        }
+    }
+
+    /**
+     * Returns the index of cell (x, y) of level l, or -1 if it is empty
+     * or off the grid.
+     */
+    private int find(int l, int x, int y) {
+        if (x < 0 || y < 0 || x >= (1 << l) || y >= (1 << l))
+            return -1;
+        int key = MortonKeys.interleave(x, y);
+        int lo = 0, hi = cells[l] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (code[l][mid] < key)
+                lo = mid + 1;
+            else if (code[l][mid] > key)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Taylor coefficients of Phi(|x0 + h y|) in y, up to degree order,
+     * for every offset x0 = h (ox, oy) between well separated cells of
+     * level l, h being the side of those cells, stored as D_v = v! T_v.
+     * The factor 1 / h that every coefficient carries is applied last,
+     * so the jets work with numbers of order one.
+     */
+    private void kernelCoefficients(int l) {
+        if (kernel[l] == null)
+            kernel[l] = new double[SPAN * SPAN * terms];
+        double h = side / (1 << l);
+        double e2 = ParticleStore.EPS * ParticleStore.EPS / (h * h);
+
+        double[] g = derivatives;
+        double[] power = jet;
+        double[] next = jetNext;
+        for (int oy = -3; oy <= 3; oy++) {
+            for (int ox = -3; ox <= 3; ox++) {
+                if (Math.abs(ox) <= 1 && Math.abs(oy) <= 1)
+                    continue;
+                double r2 = ox * ox + oy * oy;
+
+                // F^(k)(s) h^(2k + 1) / k! at s = h^2 r2, where F(s) = Phi(sqrt(s))
+                // and F' = u v / 2 with u = s^(-1/2), v = 1 / (s + EPS^2)
+                g[0] = Math.atan(Math.sqrt(r2 / e2)) / Math.sqrt(e2);
+                for (int k = 1; k <= order; k++) {
+                    double sum = 0.0;
+                    double uj = 1.0 / Math.sqrt(r2);      // u^(j) h^(2j + 1)
+                    for (int j = 0; j < k; j++) {
+                        int i = k - 1 - j;
+                        double vi = Math.pow(-1.0, i) * factorial(i) / Math.pow(r2 + e2, i + 1);  // v^(i) h^(2i + 2)
+                        sum += binomial(k - 1, j) * uj * vi;
+                        uj *= (-0.5 - j) / r2;
+                    }
+                    g[k] = 0.5 * sum / factorial(k);
+                }
+
+                // sum g_k delta^k with delta(y) = 2 (ox, oy).y + |y|^2, truncated to degree order
+                int base = ((oy + 3) * SPAN + ox + 3) * terms;
+                Arrays.fill(power, 0.0);
+                power[0] = 1.0;
+                for (int t = 0; t < terms; t++)
+                    kernel[l][base + t] = 0.0;
+                kernel[l][base] = g[0];
+                for (int k = 1; k <= order; k++) {
+                    Arrays.fill(next, 0.0);
+                    for (int t = 0; t < terms; t++) {
+                        double p = power[t];
+                        if (p == 0.0)
+                            continue;
+                        int a = ex(t), b = ey(t);
+                        if (a + b + 1 <= order) {
+                            next[index(a + 1, b)] += 2.0 * ox * p;
+                            next[index(a, b + 1)] += 2.0 * oy * p;
+                        }
+                        if (a + b + 2 <= order) {
+                            next[index(a + 2, b)] += p;
+                            next[index(a, b + 2)] += p;
+                        }
+                    }
+                    double[] swap = power;
+                    power = next;
+                    next = swap;
+                    for (int t = 0; t < terms; t++)
+                        kernel[l][base + t] += g[k] * power[t];
+                }
+                for (int t = 0; t < terms; t++)
+                    kernel[l][base + t] /= h * inverse[t];
+            }
+        }
+    }
+
+    private static double factorial(int k) {
+        double f = 1.0;
+        for (int j = 2; j <= k; j++)
+            f *= j;
+        return f;
+    }
+
+    /**
+     * The bodies of the neighbouring leaves one by one, then L2P for
+     * the far field, which counts as one interaction.
+     */
+    @Override
+    public void updateForce(int b, WalkCounters counters) {
+        int c = leafOf[b];
+        if (c == -1) {
+            for (int k = 0; k < keys.size(); k++)
+                store.addForce(b, keys.body(k));
+            counters.interactions += keys.size();
+            return;
+        }
+
+        long bodies = -1;     // not b itself
+        for (int k = 9 * c; k < 9 * c + 9; k++) {
+            int leaf = near[k];
+            if (leaf == -1)
+                continue;
+            for (int s = start[depth][leaf]; s < start[depth][leaf + 1]; s++) {
+                int j = keys.body(s);
+                if (j != b)
+                    store.addForce(b, j);
+            }
+            bodies += start[depth][leaf + 1] - start[depth][leaf];
+        }
+        counters.interactions += bodies;
+        if (depth < 2)
+            return;
+        counters.interactions++;
+
+        // the gradient of sum L_t y^t, by Horner's rule in x within each power of y
+        double h = side / (1 << depth);
+        double x = (store.rx(b) - (left + (MortonKeys.cellX(code[depth][c]) + 0.5) * h)) / h;
+        double y = (store.ry(b) - (bottom + (MortonKeys.cellY(code[depth][c]) + 0.5) * h)) / h;
+        double[] l = local[depth];
+        int base = c * terms;
+        double gx = 0.0, gy = 0.0;
+        for (int j = order; j >= 0; j--) {
+            double sx = 0.0, sy = 0.0;
+            for (int i = order - j; i >= 0; i--) {
+                double coef = l[base + index(i, j)];
+                if (i >= 1)
+                    sx = sx * x + i * coef;
+                sy = sy * x + j * coef;
+            }
+            gx = gx * y + sx;
+            if (j >= 1)
+                gy = gy * y + sy;
+        }
+        store.addField(b, -gx / h, -gy / h);
+    }
+}
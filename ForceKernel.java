@@ -0,0 +1,268 @@
+/**
+ * ForceKernel.java
+ *
+ * Softened gravity from many sources on one target, for the dense
+ * inner loops of the group walk. The sources are packed arrays of
+ * positions and masses, as gathered in an InteractionList.
+ *
+ * The monopole sum runs in two passes. The first computes the scale
+ * factor m / ((d^2 + EPS^2) d) of every source into a scratch array;
+ * it has no branches and no loop-carried dependency, so C2 compiles it
+ * to SIMD square roots and divisions. The second multiplies the
+ * factors by the offsets and sums them into LANES independent
+ * accumulators. Every term is the one ParticleStore.addForce adds, so
+ * only the order of summation differs from adding the sources one at
+ * a time.
+ *
+ * The sources are plain arrays, read in order, and nothing in either
+ * pass depends on a library beyond java.lang.Math, so the kernel runs
+ * on any JDK the project builds with; the vector width is whatever the
+ * JIT picks for the machine.
+ *
+ * main() checks both kernels against ParticleStore.addForce on random
+ * sources, including sources at distance 0 and far below EPS, and
+ * fails if they differ by more than a relative tolerance.
+ *
+ * Dependencies: ParticleStore.java
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+public final class ForceKernel {
+
+    // accumulators of the summing pass
+    public static final int LANES = 4;
+
+    private static final double EPS2 = ParticleStore.EPS * ParticleStore.EPS;
+
+    // the least squared distance the kernel divides by, so a source at
+    // distance 0 gets a finite factor that its zero offset cancels; any
+    // squared distance that is a normal double is left exact
+    private static final double TINY = Double.MIN_NORMAL;
+
+    private ForceKernel() { }
+
+    /**
+     * Adds sum m_k (s_k - p) / ((d_k^2 + EPS^2) d_k) over sources
+     * [0, count) to acc[0] and acc[1], where p = (x, y), s_k is the
+     * position and m_k the mass of source k, and d_k = |s_k - p|.
+     * Multiplied by G and the target mass this is the force on the
+     * target. Sources at distance 0 add nothing.
+     *
+     * @param x       the x-coordinate of the target
+     * @param y       the y-coordinate of the target
+     * @param sx      the x-coordinates of the sources
+     * @param sy      the y-coordinates of the sources
+     * @param sm      the masses of the sources
+     * @param count   the number of sources
+     * @param scratch room for count scale factors
+     * @param acc     the sums to add to
+     */
+    public static void monopoles(double x, double y, double[] sx, double[] sy, double[] sm, int count,
+                                 double[] scratch, double[] acc) {
+        for (int k = 0; k < count; k++) {
+            double dx = sx[k] - x;
+            double dy = sy[k] - y;
+            double d2 = dx * dx + dy * dy;
+            scratch[k] = sm[k] / ((d2 + EPS2) * Math.sqrt(Math.max(d2, TINY)));
+        }
+
+        double ax0 = 0.0, ax1 = 0.0, ax2 = 0.0, ax3 = 0.0;
+        double ay0 = 0.0, ay1 = 0.0, ay2 = 0.0, ay3 = 0.0;
+        int k = 0;
+        for (; k + LANES <= count; k += LANES) {
+            ax0 += scratch[k] * (sx[k] - x);
+            ay0 += scratch[k] * (sy[k] - y);
+            ax1 += scratch[k + 1] * (sx[k + 1] - x);
+            ay1 += scratch[k + 1] * (sy[k + 1] - y);
+            ax2 += scratch[k + 2] * (sx[k + 2] - x);
+            ay2 += scratch[k + 2] * (sy[k + 2] - y);
+            ax3 += scratch[k + 3] * (sx[k + 3] - x);
+            ay3 += scratch[k + 3] * (sy[k + 3] - y);
+        }
+        double ax = (ax0 + ax1) + (ax2 + ax3);
+        double ay = (ay0 + ay1) + (ay2 + ay3);
+        for (; k < count; k++) {
+            ax += scratch[k] * (sx[k] - x);
+            ay += scratch[k] * (sy[k] - y);
+        }
+        acc[0] += ax;
+        acc[1] += ay;
+    }
+
+    /**
+     * Returns scratch if it has room for count factors, else a larger array.
+     */
+    public static double[] ensureScratch(double[] scratch, int count) {
+        return scratch.length >= count ? scratch : Arrays.copyOf(scratch, Math.max(count, 2 * scratch.length));
+    }
+
+    /**
+     * Like monopoles(), for sources that also have second moments qxx,
+     * qxy, qyy about their position, expanded to second order as in
+     * ParticleStore.addForce. Sources must not be at distance 0. The
+     * expansion is long enough to keep the CPU busy, so this loop is
+     * not unrolled.
+     *
+     * @param x     the x-coordinate of the target
+     * @param y     the y-coordinate of the target
+     * @param sx    the x-coordinates of the sources
+     * @param sy    the y-coordinates of the sources
+     * @param sm    the masses of the sources
+     * @param qxx   the xx second moments of the sources
+     * @param qxy   the xy second moments of the sources
+     * @param qyy   the yy second moments of the sources
+     * @param count the number of sources
+     * @param acc   the sums to add to
+     */
+    public static void quadrupoles(double x, double y, double[] sx, double[] sy, double[] sm,
+                                   double[] qxx, double[] qxy, double[] qyy, int count, double[] acc) {
+        double ax = 0.0, ay = 0.0;
+        for (int k = 0; k < count; k++) {
+            double dx = sx[k] - x;
+            double dy = sy[k] - y;
+            double d2 = dx * dx + dy * dy;
+            double d = Math.sqrt(d2);
+            double D = d * (d2 + EPS2);
+            double N = 3.0 * d2 + EPS2;
+            double h = 1.0 / D;
+            double h1 = -N * h * h;
+            double h2 = (2.0 * N * N - 6.0 * d * D) * h * h * h;
+            double A = h1 / d;
+            double B = (h2 - A) / d2;
+            double qx = qxx[k] * dx + qxy[k] * dy;
+            double qy = qxy[k] * dx + qyy[k] * dy;
+            double trace = qxx[k] + qyy[k];
+            double xqx = dx * qx + dy * qy;
+            ax += sm[k] * h * dx + 0.5 * (A * (2.0 * qx + trace * dx) + B * xqx * dx);
+            ay += sm[k] * h * dy + 0.5 * (A * (2.0 * qy + trace * dy) + B * xqx * dy);
+        }
+        acc[0] += ax;
+        acc[1] += ay;
+    }
+
+    /**
+     * Usage: java ForceKernel [-sources 1000] [-targets 200] [-tolerance 1e-12] [-seed 1]
+     *
+     * Packs random sources in the unit box, and for each random target
+     * compares monopoles() and quadrupoles() with the sum of
+     * ParticleStore.addForce over the same sources, one at a time. Among
+     * the sources of every target are some at distance 0 and at
+     * distances from 1e-3 down to 1e-150, far below EPS; quadrupoles()
+     * is given those down to 1e-20, as it must not be given sources at
+     * distance 0 and its expansion overflows long before 1e-150, in
+     * ParticleStore as here. The difference
+     * is measured relative to the sum of the magnitudes of the terms,
+     * so that cancellation cannot hide it. Prints the largest relative
+     * difference of each kernel and exits with status 1 if it is above
+     * the tolerance.
+     */
+    public static void main(String[] args) {
+        int sources = 1000, targets = 200;
+        double tolerance = 1e-12;
+        long seed = 1;
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            if (args[k].equals("-sources"))
+                sources = Integer.parseInt(args[k + 1]);
+            else if (args[k].equals("-targets"))
+                targets = Integer.parseInt(args[k + 1]);
+            else if (args[k].equals("-tolerance"))
+                tolerance = Double.parseDouble(args[k + 1]);
+            else if (args[k].equals("-seed"))
+                seed = Long.parseLong(args[k + 1]);
+            else
+                throw new IllegalArgumentException("unknown option: " + args[k]);
+        }
+
+        // offsets from the target of the close sources; the second
+        // derivative of h overflows nearer than about 1e-60, so quadrupoles()
+        // gets only those at nearest or more
+        double nearest = 1e-20;
+        double[] close = { 0.0, 1e-3, 1e-9, 1e-20, 1e-100, 1e-150 };
+
+        Random random = new Random(seed);
+        double[] sx = new double[sources + close.length], sy = new double[sx.length], sm = new double[sx.length];
+        double[] qxx = new double[sx.length], qxy = new double[sx.length], qyy = new double[sx.length];
+        double[] scratch = new double[sx.length];
+        double[] acc = new double[2];
+        ParticleStore target = new ParticleStore(1);
+        double worstMonopole = 0.0, worstQuadrupole = 0.0;
+
+        for (int t = 0; t < targets; t++) {
+            // every other target is at the corner, the only place in the box
+            // where the tiny offsets below are not lost to rounding
+            double x = t % 2 == 0 ? random.nextDouble() : 0.0;
+            double y = t % 2 == 0 ? random.nextDouble() : 0.0;
+            double mass = 0.5 + random.nextDouble();
+            int count = 0;
+            for (int k = 0; k < sources; k++) {
+                sx[count] = random.nextDouble();
+                sy[count] = random.nextDouble();
+                sm[count] = 0.5 + random.nextDouble();
+                double spread = 1e-3 * random.nextDouble();
+                qxx[count] = sm[count] * spread * spread * random.nextDouble();
+                qyy[count] = sm[count] * spread * spread * random.nextDouble();
+                qxy[count] = 0.5 * Math.sqrt(qxx[count] * qyy[count]) * (2.0 * random.nextDouble() - 1.0);
+                count++;
+            }
+            for (double d : close) {
+                double angle = 2.0 * Math.PI * random.nextDouble();
+                sx[count] = x + d * Math.cos(angle);
+                sy[count] = y + d * Math.sin(angle);
+                sm[count] = 0.5 + random.nextDouble();
+                qxx[count] = 0.0;
+                qxy[count] = 0.0;
+                qyy[count] = 0.0;
+                count++;
+            }
+
+            // monopoles, over every source
+            target.set(0, 0.0, x, y, 0.0, 0.0, mass, 0);
+            double norm = 0.0;
+            for (int k = 0; k < count; k++) {
+                target.addForce(0, sx[k], sy[k], sm[k]);
+                double dx = sx[k] - x, dy = sy[k] - y;
+                norm += ParticleStore.G * mass * sm[k] / (dx * dx + dy * dy + EPS2);
+            }
+            acc[0] = 0.0;
+            acc[1] = 0.0;
+            monopoles(x, y, sx, sy, sm, count, scratch, acc);
+            double g = ParticleStore.G * mass;
+            double error = Math.hypot(g * acc[0] - target.fx(0), g * acc[1] - target.fy(0)) / norm;
+            worstMonopole = Math.max(worstMonopole, error);
+
+            // quadrupoles, over the sources the expansion is finite for
+            target.resetForce(0);
+            norm = 0.0;
+            int packed = 0;
+            for (int k = 0; k < count; k++) {
+                double dx = sx[k] - x, dy = sy[k] - y;
+                if (dx * dx + dy * dy < nearest * nearest)
+                    continue;
+                target.addForce(0, sx[k], sy[k], sm[k], qxx[k], qxy[k], qyy[k]);
+                norm += ParticleStore.G * mass * sm[k] / (dx * dx + dy * dy + EPS2);
+                sx[packed] = sx[k];
+                sy[packed] = sy[k];
+                sm[packed] = sm[k];
+                qxx[packed] = qxx[k];
+                qxy[packed] = qxy[k];
+                qyy[packed] = qyy[k];
+                packed++;
+            }
+            acc[0] = 0.0;
+            acc[1] = 0.0;
+            quadrupoles(x, y, sx, sy, sm, qxx, qxy, qyy, packed, acc);
+            error = Math.hypot(g * acc[0] - target.fx(0), g * acc[1] - target.fy(0)) / norm;
+            worstQuadrupole = Math.max(worstQuadrupole, error);
+        }
+
+        System.out.printf("%d targets, %d sources each: largest relative difference monopoles %.2e, quadrupoles %.2e"
+                + " (tolerance %.0e)%n", targets, sources + close.length, worstMonopole, worstQuadrupole, tolerance);
+        if (!(worstMonopole <= tolerance && worstQuadrupole <= tolerance)) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * GravitySolver.java
+ *
+ * A way of approximating the gravitational force on every body of a
+ * ParticleStore. A solver is first built over the bodies inside the
+ * wall at their current positions, then asked for the force on any
+ * body, in any order and from any number of threads at once.
+ *
+ * Implementations: BHTree (Barnes-Hut), FmmSolver (fast multipole) and
+ * PmSolver (particle-mesh, optionally TreePM).
+ *
+ * Dependencies: Quad.java WalkCounters.java
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+public interface GravitySolver {
+
+    /**
+     * Builds the solver over the bodies of its store that lie inside
+     * the wall, at their current positions.
+     *
+     * @param wall the region the bodies are inside
+     * @param pool the pool to build on, or null to build on this thread
+     */
+    void build(Quad wall, ForkJoinPool pool);
+
+    /**
+     * Adds the force on body b from every body the solver was built
+     * over, other than b itself, to the net force on b.
+     *
+     * @param b        the index of the body
+     * @param counters where the work is counted, owned by the calling thread
+     */
+    void updateForce(int b, WalkCounters counters);
+
+    /**
+     * Returns the number of levels below the root of the last tree built.
+     */
+    int depth();
+
+    /**
+     * Returns the number of nodes of the last tree built.
+     */
+    int nodes();
+}
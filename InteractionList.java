@@ -0,0 +1,91 @@
+/**
+ * InteractionList.java
+ *
+ * The bodies and tree nodes that act on a group of bodies, gathered by
+ * one walk of a BHTree for the whole group and then applied to each of
+ * its members by ParticleStore.addForces(). Every field is a packed
+ * primitive array, so applying the list is a dense loop. A list is
+ * scratch space owned by one thread and reused from group to group;
+ * the arrays only grow.
+ *
+ * Dependencies: none
+ */
+
+import java.util.Arrays;
+
+public class InteractionList {
+
+    // bodies: position and mass
+    int bodies;
+    double[] bx = new double[64];
+    double[] by = new double[64];
+    double[] bm = new double[64];
+
+    // nodes: center-of-mass, mass and second moments
+    int nodes;
+    double[] nx = new double[64];
+    double[] ny = new double[64];
+    double[] nm = new double[64];
+    double[] nqxx = new double[64];
+    double[] nqxy = new double[64];
+    double[] nqyy = new double[64];
+
+    // sums and scale factors of ForceKernel for the body being updated
+    final double[] acc = new double[2];
+    double[] scratch = new double[64];
+
+    /**
+     * Empties the list, keeping its arrays.
+     */
+    public void clear() {
+        bodies = 0;
+        nodes = 0;
+    }
+
+    public int bodies() {
+        return bodies;
+    }
+
+    public int nodes() {
+        return nodes;
+    }
+
+    /**
+     * Adds a body of mass m at (x, y).
+     */
+    public void addBody(double x, double y, double m) {
+        if (bodies == bx.length) {
+            int capacity = 2 * bodies;
+            bx = Arrays.copyOf(bx, capacity);
+            by = Arrays.copyOf(by, capacity);
+            bm = Arrays.copyOf(bm, capacity);
+        }
+        bx[bodies] = x;
+        by[bodies] = y;
+        bm[bodies] = m;
+        bodies++;
+    }
+
+    /**
+     * Adds a node of mass m with center-of-mass (x, y) and second
+     * moments qxx, qxy, qyy about it.
+     */
+    public void addNode(double x, double y, double m, double qxx, double qxy, double qyy) {
+        if (nodes == nx.length) {
+            int capacity = 2 * nodes;
+            nx = Arrays.copyOf(nx, capacity);
+            ny = Arrays.copyOf(ny, capacity);
+            nm = Arrays.copyOf(nm, capacity);
+            nqxx = Arrays.copyOf(nqxx, capacity);
+            nqxy = Arrays.copyOf(nqxy, capacity);
+            nqyy = Arrays.copyOf(nqyy, capacity);
+        }
+        nx[nodes] = x;
+        ny[nodes] = y;
+        nm[nodes] = m;
+        nqxx[nodes] = qxx;
+        nqxy[nodes] = qxy;
+        nqyy[nodes] = qyy;
+        nodes++;
+    }
+}
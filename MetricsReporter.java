@@ -0,0 +1,81 @@
+/**
+ * MetricsReporter.java
+ *
+ * Prints a summary of the StepMetrics of a system every k steps: the
+ * mean time per step of each phase and the mean work per step over
+ * the steps since the previous summary, the balance of the force
+ * phase over those steps, and the size of the last tree. The metrics
+ * of the system must be on when the reporter is created, and stay on.
+ *
+ * Dependencies: SimulationListener.java CollisionSystem.java StepMetrics.java
+ */
+
+import java.io.PrintStream;
+
+public class MetricsReporter implements SimulationListener {
+
+    private static final StepMetrics.Phase[] PHASES = StepMetrics.Phase.values();
+
+    private final StepMetrics metrics;
+    private final PrintStream out;
+    private final long every;        // steps between summaries
+
+    // totals at the previous summary
+    private long steps;
+    private final long[] nanos = new long[PHASES.length];
+    private long interactions, openings, collisions, wallHits, busy;
+
+    /**
+     * Constructor: creates a reporter that prints the metrics of system
+     * to out every k steps.
+     *
+     * @param system the system to report on
+     * @param out    where the summaries go
+     * @param every  the number of steps between summaries
+     * @throws IllegalStateException if the metrics of system are off
+     */
+    public MetricsReporter(CollisionSystem system, PrintStream out, long every) {
+        if (every < 1)
+            throw new IllegalArgumentException("every must be positive: " + every);
+        if (system.metrics() == null)
+            throw new IllegalStateException("metrics are off; call setMetrics(true) first");
+        this.metrics = system.metrics();
+        this.out = out;
+        this.every = every;
+    }
+
+    @Override
+    public void stepped(CollisionSystem system) {
+        if (system.metrics() != metrics)
+            throw new IllegalStateException("metrics have been turned off or restarted");
+        if (system.steps() % every != 0 || metrics.steps() == steps)
+            return;
+
+        double count = metrics.steps() - steps;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("steps %d-%d ms/step:", steps + 1, metrics.steps()));
+        double sum = 0;
+        long force = metrics.totalNanos(StepMetrics.Phase.FORCE) - nanos[StepMetrics.Phase.FORCE.ordinal()];
+        for (StepMetrics.Phase phase : PHASES) {
+            long total = metrics.totalNanos(phase);
+            double ms = (total - nanos[phase.ordinal()]) / count / 1e6;
+            nanos[phase.ordinal()] = total;
+            sum += ms;
+            sb.append(String.format(" %s %.2f", phase.name().toLowerCase(), ms));
+        }
+        sb.append(String.format(" total %.2f", sum));
+        sb.append(String.format(" | per step: interactions %.0f openings %.0f collisions %.1f wall hits %.1f",
+                (metrics.totalInteractions() - interactions) / count, (metrics.totalOpenings() - openings) / count,
+                (metrics.totalCollisions() - collisions) / count, (metrics.totalWallHits() - wallHits) / count));
+        sb.append(String.format(" | force balance %.2f", metrics.balance(metrics.totalBusyNanos() - busy, force)));
+        sb.append(String.format(" | tree depth %d nodes %d", metrics.treeDepth(), metrics.treeNodes()));
+        out.println(sb);
+
+        steps = metrics.steps();
+        interactions = metrics.totalInteractions();
+        openings = metrics.totalOpenings();
+        collisions = metrics.totalCollisions();
+        wallHits = metrics.totalWallHits();
+        busy = metrics.totalBusyNanos();
+    }
+}
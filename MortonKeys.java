@@ -0,0 +1,281 @@
+/**
+ * MortonKeys.java
+ *
+ * Computes a 2D Morton (Z-order) key for every body inside the wall
+ * and sorts the bodies by key with a parallel radix sort. Bodies that
+ * are close in space end up close in the sorted order, and every
+ * quadtree cell over the wall is a contiguous run of the sorted keys.
+ *
+ * A key holds LEVELS bits per axis, interleaved so that the two bits
+ * for level l (counted from the root) are (y, x) of the quadrant the
+ * body falls into at that level. The scratch arrays are kept between
+ * calls, so sorting does not allocate once they are large enough.
+ *
+ * Dependencies: ParticleStore.java Quad.java
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class MortonKeys {
+
+    // number of quadtree levels a key can distinguish
+    public static final int LEVELS = 16;
+
+    // bits sorted per radix pass, and the passes needed for 2 * LEVELS bits
+    private static final int RADIX_BITS = 8;
+    private static final int BUCKETS = 1 << RADIX_BITS;
+    private static final int PASSES = 2 * LEVELS / RADIX_BITS;
+
+    // below this many keys the sort runs on the calling thread
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    private int[] keys;       // Morton key of the k-th body in sorted order
+    private int[] bodies;     // index in the store of the k-th body in sorted order
+    private int[] keysTmp;    // scratch for the radix passes
+    private int[] bodiesTmp;
+    private int[] counts;     // per block histograms, then scatter offsets
+    private int count;        // number of keys in use
+
+    /**
+     * Constructor: creates key storage for up to capacity bodies.
+     *
+     * @param capacity the expected number of bodies
+     */
+    public MortonKeys(int capacity) {
+        keys = new int[capacity];
+        bodies = new int[capacity];
+        keysTmp = new int[capacity];
+        bodiesTmp = new int[capacity];
+        counts = new int[BUCKETS];
+    }
+
+    /**
+     * Returns the Morton key of (x, y) relative to the wall. Points
+     * outside the wall are clamped to its border cells.
+     */
+    public static int encode(double x, double y, Quad wall) {
+        double half = wall.getLength() / 2.0;
+        double scale = (1 << LEVELS) / wall.getLength();
+        int cells = (1 << LEVELS) - 1;
+        int ix = (int) Math.min(cells, Math.max(0, (x - (wall.getXmid() - half)) * scale));
+        int iy = (int) Math.min(cells, Math.max(0, (y - (wall.getYmid() - half)) * scale));
+        return (spread(iy) << 1) | spread(ix);
+    }
+
+    /**
+     * Spreads the low 16 bits of v apart so there is a zero bit
+     * between each of them.
+     */
+    private static int spread(int v) {
+        v &= 0xFFFF;
+        v = (v | (v << 8)) & 0x00FF00FF;
+        v = (v | (v << 4)) & 0x0F0F0F0F;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+
+    /**
+     * Returns the Morton code of cell (ix, iy) of a grid of 2^l by 2^l
+     * cells over the wall; it is the prefix of 2l bits shared by the
+     * keys of every body in that cell.
+     */
+    public static int interleave(int ix, int iy) {
+        return (spread(iy) << 1) | spread(ix);
+    }
+
+    /**
+     * Returns the x cell coordinate of a Morton code.
+     */
+    public static int cellX(int code) {
+        return compact(code);
+    }
+
+    /**
+     * Returns the y cell coordinate of a Morton code.
+     */
+    public static int cellY(int code) {
+        return compact(code >>> 1);
+    }
+
+    /**
+     * Inverse of spread(): gathers the even bits of v into the low 16 bits.
+     */
+    private static int compact(int v) {
+        v &= 0x55555555;
+        v = (v | (v >>> 1)) & 0x33333333;
+        v = (v | (v >>> 2)) & 0x0F0F0F0F;
+        v = (v | (v >>> 4)) & 0x00FF00FF;
+        v = (v | (v >>> 8)) & 0x0000FFFF;
+        return v;
+    }
+
+    /**
+     * Returns the quadrant digit of key at the given level: bit 1 is
+     * set for the north half and bit 0 for the east half.
+     */
+    public static int digit(int key, int level) {
+        return (key >>> (2 * (LEVELS - 1 - level))) & 3;
+    }
+
+    /**
+     * Computes the keys of all bodies of the store that lie inside
+     * the wall and sorts them.
+     *
+     * @param store the bodies
+     * @param wall  the region the keys are relative to
+     * @param pool  the pool to sort on, or null to sort on this thread
+     */
+    public void compute(ParticleStore store, Quad wall, ForkJoinPool pool) {
+        int n = store.size();
+        if (keys.length < n) {
+            keys = new int[n];
+            bodies = new int[n];
+            keysTmp = new int[n];
+            bodiesTmp = new int[n];
+        }
+
+        count = 0;
+        for (int i = 0; i < n; i++) {
+            if (store.in(i, wall))
+                bodies[count++] = i;
+        }
+        for (int k = 0; k < count; k++) {
+            int i = bodies[k];
+            keys[k] = encode(store.rx(i), store.ry(i), wall);
+        }
+
+        sort(pool);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int key(int k) {
+        return keys[k];
+    }
+
+    public int body(int k) {
+        return bodies[k];
+    }
+
+    /**
+     * Returns the first position in [lo, hi) whose key has a digit
+     * greater than d at the given level, assuming every key in the
+     * range shares the digits of the levels above.
+     */
+    public int upperBound(int lo, int hi, int level, int d) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (digit(keys[mid], level) <= d)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Least significant digit radix sort of the keys, carrying the
+     * body indices along. Each pass splits the keys into one block per
+     * worker: the blocks build their histograms in parallel, the
+     * offsets are summed serially, and the blocks scatter in parallel.
+     * The sort is stable, so equal keys keep the order of the store.
+     */
+    private void sort(ForkJoinPool pool) {
+        int blocks = (pool == null || count < PARALLEL_THRESHOLD) ? 1 : pool.getParallelism();
+        if (counts.length < blocks * BUCKETS)
+            counts = new int[blocks * BUCKETS];
+
+        for (int pass = 0; pass < PASSES; pass++) {
+            int shift = pass * RADIX_BITS;
+            if (blocks == 1) {
+                histogram(0, 1, shift);
+                offsets(1);
+                scatter(0, 1, shift);
+            }
+            else {
+                pool.invoke(new PassTask(0, blocks, blocks, shift, false));
+                offsets(blocks);
+                pool.invoke(new PassTask(0, blocks, blocks, shift, true));
+            }
+
+            int[] t = keys;
+            keys = keysTmp;
+            keysTmp = t;
+            t = bodies;
+            bodies = bodiesTmp;
+            bodiesTmp = t;
+        }
+    }
+
+    private int blockStart(int block, int blocks) {
+        return (int) ((long) count * block / blocks);
+    }
+
+    private void histogram(int block, int blocks, int shift) {
+        int base = block * BUCKETS;
+        for (int b = 0; b < BUCKETS; b++)
+            counts[base + b] = 0;
+        int end = blockStart(block + 1, blocks);
+        for (int k = blockStart(block, blocks); k < end; k++)
+            counts[base + ((keys[k] >>> shift) & (BUCKETS - 1))]++;
+    }
+
+    /**
+     * Turns the per block histograms into the position where each
+     * block writes its first key of each bucket.
+     */
+    private void offsets(int blocks) {
+        int sum = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            for (int block = 0; block < blocks; block++) {
+                int c = counts[block * BUCKETS + b];
+                counts[block * BUCKETS + b] = sum;
+                sum += c;
+            }
+        }
+    }
+
+    private void scatter(int block, int blocks, int shift) {
+        int base = block * BUCKETS;
+        int end = blockStart(block + 1, blocks);
+        for (int k = blockStart(block, blocks); k < end; k++) {
+            int pos = counts[base + ((keys[k] >>> shift) & (BUCKETS - 1))]++;
+            keysTmp[pos] = keys[k];
+            bodiesTmp[pos] = bodies[k];
+        }
+    }
+
+    /**
+     * Runs the histogram or scatter step of one radix pass for blocks [lo, hi).
+     */
+    private class PassTask extends RecursiveAction {
+        private final int lo, hi, blocks, shift;
+        private final boolean scatter;
+
+        PassTask(int lo, int hi, int blocks, int shift, boolean scatter) {
+            this.lo = lo;
+            this.hi = hi;
+            this.blocks = blocks;
+            this.shift = shift;
+            this.scatter = scatter;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                if (scatter)
+                    scatter(lo, blocks, shift);
+                else
+                    histogram(lo, blocks, shift);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new PassTask(lo, mid, blocks, shift, scatter),
+                      new PassTask(mid, hi, blocks, shift, scatter));
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * NBodyBenchmark.java
+ *
+ * Headless benchmark harness for the phases of a step. Every run is
+ * parameterized by body count, initial distribution, Theta and worker
+ * count, and measures one phase:
+ *
+ *   build       gravity solver build: BHTree by inserting bodies one at a time
+ *   morton      BHTree built from sorted Morton keys
+ *   force       GravitySolver.updateForce for every body
+ *   group       BHTree.updateGroupForce walk for every group of bodies
+ *   collisions  spatial hash collision pass
+ *   pairs       all-pairs overlap test, the old O(n^2) pass (only up to 20k bodies)
+ *   walls       wall collision pass
+ *   step        a full CollisionSystem.step
+ *
+ * Each phase is warmed up, then timed over a number of iterations of at
+ * least half a second each. Allocation per operation is read from the
+ * per-thread allocation counters of the JVM, summed over all threads.
+ * The initial conditions use fixed seeds, so results can be compared
+ * across commits; with -out they are appended as CSV.
+ *
+ * With -solver fmm the build, force and step phases use FmmSolver of
+ * the given -order instead of the Barnes-Hut tree, with -solver pm they
+ * use PmSolver on a grid of -grid points per side, and with -solver
+ * treepm the same grid plus a tree for the short range. After the force and
+ * group phases the forces are checked against direct summation on a
+ * sample of the bodies, and the relative rms error is reported, so two
+ * runs with different solvers compare accuracy as well as time on the
+ * same input. With -reorder true the bodies are sorted in memory along
+ * the Morton curve before anything is timed, and with -costzones false
+ * the parallel force walk is split into ranges of equal length instead
+ * of equal cost. With -store offheap the bodies are copied into an
+ * OffHeapParticleStore before the run.
+ *
+ * Usage: java NBodyBenchmark [-bodies 1000,100000] [-dist uniform,plummer,disks]
+ *                            [-theta 0.5] [-workers 1] [-phase force,step]
+ *                            [-criterion geometric|center_offset] [-quadrupole false] [-leaf 8]
+ *                            [-solver bh|fmm|pm|treepm] [-order 8] [-grid 256] [-reorder false]
+ *                            [-costzones true] [-store heap|offheap]
+ *                            [-warmup 3] [-iterations 5] [-out results.csv]
+ *
+ * Dependencies: CollisionSystem.java Distributions.java ParticleStore.java Quad.java
+ *               FmmSolver.java PmSolver.java BHTree.java OffHeapParticleStore.java
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class NBodyBenchmark {
+
+    private static final String[] PHASES = { "build", "morton", "force", "group", "collisions", "pairs", "walls", "step" };
+
+    // above this many bodies the all-pairs phase is skipped
+    private static final int MAX_PAIRS_BODIES = 20000;
+
+    // minimum length of a timed iteration
+    private static final long ITERATION_NANOS = 500_000_000L;
+
+    // bodies whose force is checked against direct summation
+    private static final int ERROR_SAMPLES = 1000;
+
+    private static final double DT = 0.1;
+    private static final long SEED = 42;
+
+    // tree settings shared by every run
+    private static OpeningCriterion criterion;
+    private static boolean quadrupole;
+    private static int leafSize;
+
+    // the solver, the multipole solver's order and the grid points per side
+    private static String solver;
+    private static int fmmOrder;
+    private static int grid;
+
+    // whether the store is sorted along the Morton curve before timing
+    private static boolean reorder;
+
+    // whether the parallel force walk is split by cost
+    private static boolean costzones;
+
+    // whether the bodies are kept in direct buffers instead of on the heap
+    private static boolean offHeap;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put("bodies", "1000,10000,100000,1000000");
+        options.put("dist", Distributions.UNIFORM + "," + Distributions.PLUMMER + "," + Distributions.DISKS);
+        options.put("theta", "0.5");
+        options.put("workers", "1");
+        options.put("phase", String.join(",", PHASES));
+        options.put("criterion", "geometric");
+        options.put("quadrupole", "false");
+        options.put("leaf", String.valueOf(BHTree.DEFAULT_LEAF_SIZE));
+        options.put("solver", "bh");
+        options.put("order", String.valueOf(FmmSolver.DEFAULT_ORDER));
+        options.put("grid", String.valueOf(PmSolver.DEFAULT_GRID));
+        options.put("reorder", "false");
+        options.put("costzones", "true");
+        options.put("store", "heap");
+        options.put("warmup", "3");
+        options.put("iterations", "5");
+        options.put("out", "");
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String key = args[k].replaceFirst("^-+", "");
+            if (!options.containsKey(key))
+                throw new IllegalArgumentException("unknown option: " + args[k]);
+            options.put(key, args[k + 1]);
+        }
+
+        criterion = OpeningCriterion.valueOf(options.get("criterion").toUpperCase());
+        quadrupole = Boolean.parseBoolean(options.get("quadrupole"));
+        leafSize = Integer.parseInt(options.get("leaf"));
+        solver = options.get("solver");
+        fmmOrder = Integer.parseInt(options.get("order"));
+        grid = Integer.parseInt(options.get("grid"));
+        reorder = Boolean.parseBoolean(options.get("reorder"));
+        costzones = Boolean.parseBoolean(options.get("costzones"));
+        offHeap = options.get("store").equals("offheap");
+        if (!Arrays.asList("bh", "fmm", "pm", "treepm").contains(solver))
+            throw new IllegalArgumentException("unknown solver: " + solver);
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int iterations = Integer.parseInt(options.get("iterations"));
+        PrintWriter out = options.get("out").isEmpty() ? null
+                : new PrintWriter(new FileWriter(options.get("out"), true));
+
+        System.out.printf("# %s %s, %d processors%n", System.getProperty("java.vm.name"),
+                System.getProperty("java.version"), Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-10s %-8s %9s %5s %7s %14s %12s %14s %10s %10s%n",
+                "phase", "dist", "bodies", "theta", "workers", "ns/op", "error", "bytes/op", "MB/s", "force rms");
+
+        for (String phase : options.get("phase").split(",")) {
+            if (!Arrays.asList(PHASES).contains(phase))
+                throw new IllegalArgumentException("unknown phase: " + phase);
+            for (String dist : options.get("dist").split(",")) {
+                for (String bodies : options.get("bodies").split(",")) {
+                    for (String theta : options.get("theta").split(",")) {
+                        for (String workers : options.get("workers").split(",")) {
+                            int n = Integer.parseInt(bodies);
+                            if (phase.equals("pairs") && n > MAX_PAIRS_BODIES)
+                                continue;
+                            double[] result = run(phase, dist, n, Double.parseDouble(theta),
+                                                  Integer.parseInt(workers), warmup, iterations);
+                            String rms = Double.isNaN(result[4]) ? "" : String.format("%.2e", result[4]);
+                            String line = String.format("%-10s %-8s %9d %5s %7s %14.1f %12.1f %14.1f %10.1f %10s",
+                                    phase, dist, n, theta, workers, result[0], result[1], result[2], result[3], rms);
+                            System.out.println(line);
+                            if (out != null) {
+                                out.printf("%s,%s,%d,%s,%s,%.1f,%.1f,%.1f,%.1f,%s%n",
+                                        phase, dist, n, theta, workers, result[0], result[1], result[2], result[3], rms);
+                                out.flush();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        if (out != null)
+            out.close();
+    }
+
+    /**
+     * Benchmarks one phase on a fresh system and returns the mean time
+     * per operation in nanoseconds, its standard deviation over the
+     * iterations, the bytes allocated per operation, the allocation
+     * rate in MB per second, and the relative rms error of the forces,
+     * or NaN for a phase that computes none.
+     */
+    private static double[] run(String phase, String dist, int n, double theta, int workers,
+                                int warmup, int iterations) {
+        Quad wall = new Quad(0.5, 0.5, 1.0);
+        ParticleStore particles = Distributions.create(dist, n, wall, SEED);
+        if (offHeap)
+            particles = offHeap(particles);
+        CollisionSystem system = new CollisionSystem(particles, wall, workers);
+        system.setTheta(theta);
+        system.setOpeningCriterion(criterion);
+        system.setQuadrupole(quadrupole);
+        system.setLeafSize(leafSize);
+        if (solver.equals("fmm"))
+            system.setSolver(new FmmSolver(particles, fmmOrder));
+        else if (solver.equals("pm"))
+            system.setSolver(new PmSolver(particles, grid, null));
+        else if (solver.equals("treepm")) {
+            BHTree shortRange = new BHTree(particles);
+            shortRange.setTheta(theta);
+            shortRange.setOpeningCriterion(criterion);
+            shortRange.setLeafSize(leafSize);
+            system.setSolver(new PmSolver(particles, grid, shortRange));
+        }
+        system.setCostzones(costzones);
+        if (reorder)
+            system.reorder();
+        if (phase.equals("morton"))
+            system.setMortonBuild(true);
+        if (phase.equals("group"))
+            system.setGroupWalk(true);
+        if (phase.equals("force") || phase.equals("group"))
+            system.buildTree();
+
+        try {
+            for (int k = 0; k < warmup; k++)
+                iteration(phase, system, particles);
+
+            double[] nanos = new double[iterations];
+            double totalNanos = 0, totalBytes = 0, totalOps = 0;
+            for (int k = 0; k < iterations; k++) {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                long ops = iteration(phase, system, particles);
+                long elapsed = System.nanoTime() - start;
+                bytes = allocatedBytes() - bytes;
+
+                nanos[k] = (double) elapsed / ops;
+                totalNanos += elapsed;
+                totalBytes += bytes;
+                totalOps += ops;
+            }
+
+            double mean = totalNanos / totalOps;
+            double var = 0;
+            for (double x : nanos)
+                var += (x - mean) * (x - mean);
+            double error = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0.0;
+            double rate = totalBytes / (1 << 20) / (totalNanos / 1e9);
+            double rms = phase.equals("force") || phase.equals("group") ? forceError(particles) : Double.NaN;
+            return new double[] { mean, error, totalBytes / totalOps, rate, rms };
+        }
+        finally {
+            system.shutdown();
+        }
+    }
+
+    /**
+     * Returns a copy of the bodies in direct buffers.
+     */
+    private static ParticleStore offHeap(ParticleStore particles) {
+        ParticleStore copy = OffHeapParticleStore.allocate(particles.size());
+        for (int i = 0; i < particles.size(); i++)
+            copy.set(i, particles.radius(i), particles.rx(i), particles.ry(i), particles.vx(i),
+                     particles.vy(i), particles.mass(i), particles.color(i));
+        return copy;
+    }
+
+    /**
+     * Runs the phase until at least ITERATION_NANOS have passed and
+     * returns the number of operations.
+     */
+    private static long iteration(String phase, CollisionSystem system, ParticleStore particles) {
+        long ops = 0;
+        long start = System.nanoTime();
+        do {
+            operation(phase, system, particles);
+            ops++;
+        } while (System.nanoTime() - start < ITERATION_NANOS);
+        return ops;
+    }
+
+    private static void operation(String phase, CollisionSystem system, ParticleStore particles) {
+        switch (phase) {
+            case "build":
+            case "morton":
+                system.buildTree();
+                break;
+            case "force":
+            case "group":
+                system.computeForces();
+                break;
+            case "collisions":
+                system.resolveCollisions();
+                break;
+            case "pairs":
+                pairs(particles);
+                break;
+            case "walls":
+                system.resolveWalls();
+                break;
+            case "step":
+                system.step(DT);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown phase: " + phase);
+        }
+    }
+
+    /**
+     * Returns the rms difference between the forces last computed and
+     * the direct sum over all bodies, relative to the rms direct force,
+     * over ERROR_SAMPLES bodies spread through the store.
+     */
+    private static double forceError(ParticleStore particles) {
+        int n = particles.size();
+        int samples = Math.min(n, ERROR_SAMPLES);
+        double error = 0, norm = 0;
+        for (int k = 0; k < samples; k++) {
+            int i = (int) ((long) k * n / samples);
+            double fx = particles.fx(i);
+            double fy = particles.fy(i);
+            particles.resetForce(i);
+            for (int j = 0; j < n; j++) {
+                if (j != i)
+                    particles.addForce(i, j);
+            }
+            double dx = fx - particles.fx(i);
+            double dy = fy - particles.fy(i);
+            error += dx * dx + dy * dy;
+            norm += particles.fx(i) * particles.fx(i) + particles.fy(i) * particles.fy(i);
+        }
+        return Math.sqrt(error / norm);
+    }
+
+    // sink for the all-pairs count so the JIT cannot drop the loop
+    private static long overlaps;
+
+    private static void pairs(ParticleStore particles) {
+        int n = particles.size();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (particles.collideWithP(i, j))
+                    overlaps++;
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        long[] ids = THREADS.getAllThreadIds();
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(ids)) {
+            if (bytes > 0)
+                total += bytes;
+        }
+        return total;
+    }
+}
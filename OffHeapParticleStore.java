@@ -0,0 +1,248 @@
+/**
+ * OffHeapParticleStore.java
+ *
+ * A ParticleStore whose columns live outside the Java heap, in direct
+ * or memory-mapped buffers, so that the heap, and the work of the
+ * garbage collector, stays the same size however many bodies there
+ * are. Only the ids are kept on the heap.
+ *
+ * allocate() creates an empty store in direct buffers. Checkpoint.map()
+ * creates one over the columns of a checkpoint file, to be simulated in
+ * place: the positions and velocities the simulation writes are the
+ * pages of the file, nothing is read or copied up front, and sync()
+ * makes the file a checkpoint of the current state. The force, which a
+ * checkpoint does not hold, is always in a direct buffer.
+ *
+ * Every column is read and written with absolute gets and puts on a
+ * little-endian view, the byte order of checkpoints. A column is one
+ * buffer, so a store holds at most 2^28 - 1 bodies.
+ *
+ * Dependencies: ParticleStore.java Checkpoint.java
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+
+public class OffHeapParticleStore extends ParticleStore {
+
+    private final DoubleBuffer rx, ry;  // position
+    private final DoubleBuffer vx, vy;  // velocity
+    private final DoubleBuffer fx, fy;  // force
+    private final DoubleBuffer mass;    // mass
+    private final DoubleBuffer r;       // radius
+    private final IntBuffer color;      // color, packed as 0xRRGGBB
+
+    // header and columns of the mapped checkpoint, or null
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] mapped;
+
+    // scratch column for permute(), allocated on first use
+    private DoubleBuffer doubles;
+
+    /**
+     * Creates a store over the given columns.
+     *
+     * @param columns rx, ry, vx, vy, mass, r and color, each with room for n bodies
+     * @param header  the header of the checkpoint the columns are mapped from, or null
+     */
+    private OffHeapParticleStore(int n, ByteBuffer[] columns, MappedByteBuffer header) {
+        super(n, false);
+        this.rx = columns[0].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        this.ry = columns[1].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        this.vx = columns[2].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        this.vy = columns[3].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        this.mass = columns[4].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        this.r = columns[5].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        this.color = columns[6].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        this.fx = direct(8L * n).asDoubleBuffer();
+        this.fy = direct(8L * n).asDoubleBuffer();
+        this.header = header;
+        if (header == null) {
+            this.mapped = null;
+        }
+        else {
+            this.mapped = new MappedByteBuffer[columns.length];
+            for (int c = 0; c < columns.length; c++)
+                mapped[c] = (MappedByteBuffer) columns[c];
+        }
+    }
+
+    /**
+     * Creates a store with room for n bodies in direct buffers, all at
+     * rest at the origin with zero mass.
+     *
+     * @param n the number of bodies
+     * @return the store
+     * @throws IllegalArgumentException if a column of n bodies does not fit in one buffer
+     */
+    public static OffHeapParticleStore allocate(int n) {
+        ByteBuffer[] columns = new ByteBuffer[7];
+        for (int c = 0; c < 6; c++)
+            columns[c] = direct(8L * n);
+        columns[6] = direct(4L * n);
+        return new OffHeapParticleStore(n, columns, null);
+    }
+
+    /**
+     * Creates a store over the columns of a checkpoint mapped read-write,
+     * for Checkpoint.map().
+     *
+     * @param header  the header of the file
+     * @param columns rx, ry, vx, vy, mass, r and color of the file
+     */
+    static OffHeapParticleStore map(int n, MappedByteBuffer header, MappedByteBuffer[] columns) {
+        return new OffHeapParticleStore(n, columns, header);
+    }
+
+    private static ByteBuffer direct(long bytes) {
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("a column of " + bytes + " bytes does not fit in one buffer");
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns true if the columns are those of a checkpoint file.
+     */
+    public boolean isMapped() {
+        return header != null;
+    }
+
+    /**
+     * Writes the clock into the header of the checkpoint the store is
+     * mapped from and flushes every column to the disk, after which the
+     * file is a checkpoint of the state at that time. Unlike
+     * Checkpoint.write() this is not atomic: a crash in the middle
+     * leaves a file that mixes two states.
+     *
+     * @param time the simulated time
+     * @param step the number of steps taken
+     * @throws IllegalStateException if the store is not mapped from a checkpoint
+     */
+    public void sync(double time, long step) {
+        if (header == null)
+            throw new IllegalStateException("store is not mapped from a checkpoint");
+        for (MappedByteBuffer column : mapped)
+            column.force();
+        header.putDouble(Checkpoint.TIME_OFFSET, time);
+        header.putLong(Checkpoint.STEP_OFFSET, step);
+        header.force();
+    }
+
+    @Override
+    public void set(int i, double r, double rx, double ry, double vx, double vy, double mass, int color) {
+        this.rx.put(i, rx);
+        this.ry.put(i, ry);
+        this.vx.put(i, vx);
+        this.vy.put(i, vy);
+        this.fx.put(i, 0.0);
+        this.fy.put(i, 0.0);
+        this.mass.put(i, mass);
+        this.r.put(i, r);
+        this.color.put(i, color);
+    }
+
+    @Override
+    public double rx(int i) {
+        return rx.get(i);
+    }
+
+    @Override
+    public double ry(int i) {
+        return ry.get(i);
+    }
+
+    @Override
+    public double vx(int i) {
+        return vx.get(i);
+    }
+
+    @Override
+    public double vy(int i) {
+        return vy.get(i);
+    }
+
+    @Override
+    public double fx(int i) {
+        return fx.get(i);
+    }
+
+    @Override
+    public double fy(int i) {
+        return fy.get(i);
+    }
+
+    @Override
+    public double mass(int i) {
+        return mass.get(i);
+    }
+
+    @Override
+    public double radius(int i) {
+        return r.get(i);
+    }
+
+    @Override
+    public int color(int i) {
+        return color.get(i);
+    }
+
+    @Override
+    protected void setPosition(int i, double rx, double ry) {
+        this.rx.put(i, rx);
+        this.ry.put(i, ry);
+    }
+
+    @Override
+    protected void setVelocity(int i, double vx, double vy) {
+        this.vx.put(i, vx);
+        this.vy.put(i, vy);
+    }
+
+    @Override
+    protected void setForce(int i, double fx, double fy) {
+        this.fx.put(i, fx);
+        this.fy.put(i, fy);
+    }
+
+    /**
+     * Moves the bodies to new slots, as ParticleStore.permute() does.
+     * A store mapped from a checkpoint keeps the order of the file,
+     * which is the order of the ids; CollisionSystem.setReorder()
+     * rejects such a store before the run starts.
+     *
+     * @throws UnsupportedOperationException if the store is mapped from a checkpoint
+     */
+    @Override
+    public void permute(int[] order) {
+        if (header != null)
+            throw new UnsupportedOperationException("a store mapped from a checkpoint cannot be reordered");
+        checkPermutation(order);
+        if (doubles == null)
+            doubles = direct(8L * size()).asDoubleBuffer();
+        permute(rx, order);
+        permute(ry, order);
+        permute(vx, order);
+        permute(vy, order);
+        permute(fx, order);
+        permute(fy, order);
+        permute(mass, order);
+        permute(r, order);
+
+        // an int is exact as a double, so the colors use the same scratch
+        for (int k = 0; k < order.length; k++)
+            doubles.put(k, color.get(order[k]));
+        for (int k = 0; k < order.length; k++)
+            color.put(k, (int) doubles.get(k));
+        permuteIds(order);
+    }
+
+    private void permute(DoubleBuffer column, int[] order) {
+        for (int k = 0; k < order.length; k++)
+            doubles.put(k, column.get(order[k]));
+        for (int k = 0; k < order.length; k++)
+            column.put(k, doubles.get(k));
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * OpeningCriterion.java
+ *
+ * How BHTree decides whether a node is far enough from a body to act
+ * as one aggregate, or must be opened. With s the side length of the
+ * node, d the distance from the body to the node's center-of-mass and
+ * delta the distance from the center-of-mass to the node's center:
+ *
+ *   GEOMETRIC      accept when s / d < Theta
+ *   CENTER_OFFSET  accept when d > s / Theta + delta
+ *
+ * CENTER_OFFSET opens the nodes whose mass sits near one edge more
+ * eagerly, which bounds the error of a lopsided node at a large Theta.
+ *
+ * Dependencies: none
+ */
+
+public enum OpeningCriterion {
+    GEOMETRIC,
+    CENTER_OFFSET
+}
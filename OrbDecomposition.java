@@ -0,0 +1,249 @@
+/**
+ * OrbDecomposition.java
+ *
+ * Splits the plane into one rectangular domain per rank by orthogonal
+ * recursive bisection: the bodies are cut in two across the longer
+ * side of their bounding box, at the point that gives each side a
+ * share of the weight in proportion to the ranks it will hold, and
+ * each side is cut again until every rank has a domain. The cuts are
+ * kept as a binary tree, so the owner of any point is found in about
+ * log2(ranks) comparisons.
+ *
+ * The domains tile the whole plane: the outermost ones reach to
+ * infinity, so every body has an owner even when it is outside the
+ * wall. A point on a cut belongs to the domain above or to the right
+ * of it.
+ *
+ * The cuts are computed from a weighted sample of the bodies rather
+ * than from all of them, so a decomposition is cheap to build on one
+ * rank and to send to the others. A decomposition built again with
+ * rebalance() keeps the axis of every cut and only moves the cuts, so
+ * a domain whose box is close to square is not suddenly cut the other
+ * way, which would hand most of its bodies to another rank.
+ *
+ * Dependencies: none
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class OrbDecomposition {
+
+    private final int ranks;
+
+    // cut tree: internal nodes cut along axis at cut[node], points below
+    // the cut go to below[node] and the rest to above[node]; a leaf has
+    // axis -1 and the rank of its domain in below[node]
+    private final int[] axis;
+    private final double[] cut;
+    private final int[] below;
+    private final int[] above;
+
+    // the domain of each rank
+    private final double[] xlo, ylo, xhi, yhi;
+
+    private int nodes;      // nodes of the cut tree in use while building
+
+    private OrbDecomposition(int ranks) {
+        this.ranks = ranks;
+        this.axis = new int[2 * ranks - 1];
+        this.cut = new double[2 * ranks - 1];
+        this.below = new int[2 * ranks - 1];
+        this.above = new int[2 * ranks - 1];
+        this.xlo = new double[ranks];
+        this.ylo = new double[ranks];
+        this.xhi = new double[ranks];
+        this.yhi = new double[ranks];
+    }
+
+    /**
+     * Bisects a weighted sample of the bodies into domains of equal weight.
+     *
+     * @param x      the x-positions of the sample
+     * @param y      the y-positions of the sample
+     * @param weight the weight of each sample point
+     * @param count  the number of sample points
+     * @param ranks  the number of domains
+     * @return the decomposition
+     */
+    public static OrbDecomposition build(double[] x, double[] y, double[] weight, int count, int ranks) {
+        return build(x, y, weight, count, ranks, null);
+    }
+
+    /**
+     * Moves the cuts of this decomposition to give the domains equal
+     * weight again, keeping the axis of every cut.
+     *
+     * @param x      the x-positions of the sample
+     * @param y      the y-positions of the sample
+     * @param weight the weight of each sample point
+     * @param count  the number of sample points
+     * @return the new decomposition
+     */
+    public OrbDecomposition rebalance(double[] x, double[] y, double[] weight, int count) {
+        return build(x, y, weight, count, ranks, axis);
+    }
+
+    private static OrbDecomposition build(double[] x, double[] y, double[] weight, int count, int ranks,
+                                          int[] axes) {
+        if (ranks < 1)
+            throw new IllegalArgumentException("ranks must be positive: " + ranks);
+        OrbDecomposition orb = new OrbDecomposition(ranks);
+        Integer[] order = new Integer[count];
+        for (int k = 0; k < count; k++)
+            order[k] = k;
+        double inf = Double.POSITIVE_INFINITY;
+        orb.bisect(x, y, weight, order, 0, count, 0, ranks, -inf, -inf, inf, inf, axes);
+        return orb;
+    }
+
+    /**
+     * Builds the subtree that shares sample points order[lo, hi) among
+     * ranks [first, first + parts), inside the given box, and returns
+     * its root. The axis of each cut is taken from axes, by node, if it
+     * is not null.
+     */
+    private int bisect(double[] x, double[] y, double[] weight, Integer[] order, int lo, int hi,
+                       int first, int parts, double x0, double y0, double x1, double y1, int[] axes) {
+        int node = nodes++;
+        if (parts == 1) {
+            axis[node] = -1;
+            below[node] = first;
+            xlo[first] = x0;
+            ylo[first] = y0;
+            xhi[first] = x1;
+            yhi[first] = y1;
+            return node;
+        }
+
+        // cut across the longer side of the points' bounding box, unless told
+        double bx0 = Double.POSITIVE_INFINITY, bx1 = Double.NEGATIVE_INFINITY;
+        double by0 = Double.POSITIVE_INFINITY, by1 = Double.NEGATIVE_INFINITY;
+        double total = 0.0;
+        for (int k = lo; k < hi; k++) {
+            int s = order[k];
+            bx0 = Math.min(bx0, x[s]);
+            bx1 = Math.max(bx1, x[s]);
+            by0 = Math.min(by0, y[s]);
+            by1 = Math.max(by1, y[s]);
+            total += weight[s];
+        }
+        int a = axes != null ? axes[node] : bx1 - bx0 >= by1 - by0 ? 0 : 1;
+        double[] c = a == 0 ? x : y;
+        Arrays.sort(order, lo, hi, Comparator.comparingDouble(s -> c[s]));
+
+        // the first sample point past the lower share of the weight
+        int lower = parts / 2;
+        double share = total * lower / parts;
+        int mid = lo;
+        double sum = 0.0;
+        while (mid < hi && sum + weight[order[mid]] <= share)
+            sum += weight[order[mid++]];
+
+        double at;
+        if (hi == lo)
+            at = a == 0 ? (Double.isInfinite(x0) || Double.isInfinite(x1) ? 0.0 : 0.5 * (x0 + x1))
+                        : (Double.isInfinite(y0) || Double.isInfinite(y1) ? 0.0 : 0.5 * (y0 + y1));
+        else if (mid == lo)
+            at = c[order[lo]];
+        else if (mid == hi)
+            at = Math.nextUp(c[order[hi - 1]]);
+        else
+            at = 0.5 * (c[order[mid - 1]] + c[order[mid]]);
+
+        // points equal to the cut go above it
+        while (mid > lo && c[order[mid - 1]] >= at)
+            mid--;
+
+        axis[node] = a;
+        cut[node] = at;
+        if (a == 0) {
+            below[node] = bisect(x, y, weight, order, lo, mid, first, lower, x0, y0, at, y1, axes);
+            above[node] = bisect(x, y, weight, order, mid, hi, first + lower, parts - lower, at, y0, x1, y1, axes);
+        }
+        else {
+            below[node] = bisect(x, y, weight, order, lo, mid, first, lower, x0, y0, x1, at, axes);
+            above[node] = bisect(x, y, weight, order, mid, hi, first + lower, parts - lower, x0, at, x1, y1, axes);
+        }
+        return node;
+    }
+
+    public int ranks() {
+        return ranks;
+    }
+
+    /**
+     * Returns the rank whose domain contains (x, y).
+     */
+    public int owner(double x, double y) {
+        int node = 0;
+        while (axis[node] >= 0) {
+            double c = axis[node] == 0 ? x : y;
+            node = c < cut[node] ? below[node] : above[node];
+        }
+        return below[node];
+    }
+
+    public double xlo(int rank) {
+        return xlo[rank];
+    }
+
+    public double ylo(int rank) {
+        return ylo[rank];
+    }
+
+    public double xhi(int rank) {
+        return xhi[rank];
+    }
+
+    public double yhi(int rank) {
+        return yhi[rank];
+    }
+
+    /**
+     * Returns the number of bytes write() puts.
+     */
+    public int bytes() {
+        return 4 + (2 * ranks - 1) * 20 + ranks * 32;
+    }
+
+    /**
+     * Writes the decomposition to a buffer.
+     */
+    public void write(ByteBuffer out) {
+        out.putInt(ranks);
+        for (int node = 0; node < 2 * ranks - 1; node++) {
+            out.putInt(axis[node]);
+            out.putDouble(cut[node]);
+            out.putInt(below[node]);
+            out.putInt(above[node]);
+        }
+        for (int r = 0; r < ranks; r++) {
+            out.putDouble(xlo[r]);
+            out.putDouble(ylo[r]);
+            out.putDouble(xhi[r]);
+            out.putDouble(yhi[r]);
+        }
+    }
+
+    /**
+     * Reads a decomposition written by write().
+     */
+    public static OrbDecomposition read(ByteBuffer in) {
+        OrbDecomposition orb = new OrbDecomposition(in.getInt());
+        for (int node = 0; node < 2 * orb.ranks - 1; node++) {
+            orb.axis[node] = in.getInt();
+            orb.cut[node] = in.getDouble();
+            orb.below[node] = in.getInt();
+            orb.above[node] = in.getInt();
+        }
+        for (int r = 0; r < orb.ranks; r++) {
+            orb.xlo[r] = in.getDouble();
+            orb.ylo[r] = in.getDouble();
+            orb.xhi[r] = in.getDouble();
+            orb.yhi[r] = in.getDouble();
+        }
+        return orb;
+    }
+}
@@ -18,6 +18,9 @@ public class Particle {
     // gravitational constant
     private static final double G = 6.67e-11;
 
+    // softening parameter
+    private static final double EPS = 3E4;
+
     private double rx, ry;       // position
     private double vx, vy;       // velocity
     private double fx, fy;       // force
@@ -26,11 +29,6 @@ public class Particle {
     private double r;            //radius
 
 
-    //some arguments about Wall
-    double half = CollisionSystem.wall.getLength() / 2.0;
-    double Xmid = CollisionSystem.wall.getXmid();
-    double Ymid = CollisionSystem.wall.getYmid();
-
     /**
      * Constructor: creates and initializes a new Particle.
      *
@@ -107,7 +105,10 @@ public class Particle {
         else return distanceTo(b) <= this.r + b.r;
     }
 
-    public boolean collideWithW() {
+    public boolean collideWithW(Quad wall) {
+        double half = wall.getLength() / 2.0;
+        double Xmid = wall.getXmid();
+        double Ymid = wall.getYmid();
         return !(this.rx + this.r <= half + Xmid
                 && this.rx - this.r >= 0
                 && this.ry + this.r <= half + Ymid
@@ -126,8 +127,11 @@ public class Particle {
     }
 
 
-    public double[] alreadyCollideTimeWithW() {
-        assert this.collideWithW();
+    public double[] alreadyCollideTimeWithW(Quad wall) {
+        assert this.collideWithW(wall);
+        double half = wall.getLength() / 2.0;
+        double Xmid = wall.getXmid();
+        double Ymid = wall.getYmid();
         double[] back = {0, 0};
         double TimeCollideVertical = -1;
         double TimeCollideHorizon = -1;
@@ -268,7 +272,6 @@ public class Particle {
      */
     public void addForce(Particle b) {
         Particle a = this;
-        double EPS = 3E4;      // softening parameter
         double dx = b.rx - a.rx;
         double dy = b.ry - a.ry;
         double dist = Math.sqrt(dx * dx + dy * dy);
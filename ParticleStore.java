@@ -0,0 +1,602 @@
+/**
+ * ParticleStore.java
+ *
+ * Structure-of-arrays storage for a system of Particles. Each field
+ * of a body lives in its own primitive array, so body i is simply
+ * the i-th slot of every column, and loops over the bodies read
+ * memory in order. The physics of Particle.java is available here
+ * by index.
+ *
+ * Every body also has an id, its index when the store was created.
+ * permute() moves bodies to other slots, for example to keep bodies
+ * that are close in space close in memory, and the id stays with the
+ * body, so anything written for the outside world can be put back in
+ * the original order.
+ *
+ * The physics only touch the columns through the accessors and the
+ * protected setters, so a subclass can keep them somewhere other than
+ * the heap (see OffHeapParticleStore).
+ *
+ * Dependencies: Quad.java InteractionList.java ForceKernel.java
+ */
+
+import java.util.Arrays;
+
+public class ParticleStore {
+
+    // gravitational constant
+    static final double G = 6.67e-11;
+
+    // softening parameter
+    static final double EPS = 3E4;
+
+    private final int n;            // number of bodies
+
+    private final double[] rx, ry;  // position
+    private final double[] vx, vy;  // velocity
+    private final double[] fx, fy;  // force
+    private final double[] mass;    // mass
+    private final double[] r;       // radius
+    private final int[] color;      // color, packed as 0xRRGGBB
+    private final int[] id;         // id of the body in each slot
+    private final int[] index;      // slot of the body with each id
+
+    // scratch columns for permute(), allocated on first use
+    private double[] doubles;
+    private int[] ints;
+
+    /**
+     * Constructor: creates a store with room for n bodies,
+     * all at rest at the origin with zero mass.
+     *
+     * @param n the number of bodies
+     */
+    public ParticleStore(int n) {
+        this(n, true);
+    }
+
+    /**
+     * Constructor: creates a store for n bodies whose columns are on the
+     * heap, or, for a subclass that keeps them elsewhere and overrides
+     * every accessor and setter, a store that only holds the ids.
+     *
+     * @param n    the number of bodies
+     * @param heap whether to allocate the columns here
+     */
+    protected ParticleStore(int n, boolean heap) {
+        this.n = n;
+        rx = heap ? new double[n] : null;
+        ry = heap ? new double[n] : null;
+        vx = heap ? new double[n] : null;
+        vy = heap ? new double[n] : null;
+        fx = heap ? new double[n] : null;
+        fy = heap ? new double[n] : null;
+        mass = heap ? new double[n] : null;
+        r = heap ? new double[n] : null;
+        color = heap ? new int[n] : null;
+        id = new int[n];
+        index = new int[n];
+        for (int i = 0; i < n; i++) {
+            id[i] = i;
+            index[i] = i;
+        }
+    }
+
+    /**
+     * Initializes body i.
+     *
+     * @param i     the index of the body
+     * @param r     the radius of the body
+     * @param rx    the x-position of the body
+     * @param ry    the y-position of the body
+     * @param vx    the x-velocity of the body
+     * @param vy    the y-velocity of the body
+     * @param mass  the mass of the body
+     * @param color the color of the body, packed as 0xRRGGBB
+     */
+    public void set(int i, double r, double rx, double ry, double vx, double vy, double mass, int color) {
+        this.rx[i] = rx;
+        this.ry[i] = ry;
+        this.vx[i] = vx;
+        this.vy[i] = vy;
+        this.fx[i] = 0.0;
+        this.fy[i] = 0.0;
+        this.mass[i] = mass;
+        this.r[i] = r;
+        this.color[i] = color;
+    }
+
+    /**
+     * Packs an RGB triple the way the color column stores it.
+     */
+    public static int packColor(int red, int green, int blue) {
+        return ((red & 0xFF) << 16) | ((green & 0xFF) << 8) | (blue & 0xFF);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public double rx(int i) {
+        return rx[i];
+    }
+
+    public double ry(int i) {
+        return ry[i];
+    }
+
+    public double vx(int i) {
+        return vx[i];
+    }
+
+    public double vy(int i) {
+        return vy[i];
+    }
+
+    public double fx(int i) {
+        return fx[i];
+    }
+
+    public double fy(int i) {
+        return fy[i];
+    }
+
+    public double mass(int i) {
+        return mass[i];
+    }
+
+    public double radius(int i) {
+        return r[i];
+    }
+
+    public int color(int i) {
+        return color[i];
+    }
+
+    protected void setPosition(int i, double rx, double ry) {
+        this.rx[i] = rx;
+        this.ry[i] = ry;
+    }
+
+    protected void setVelocity(int i, double vx, double vy) {
+        this.vx[i] = vx;
+        this.vy[i] = vy;
+    }
+
+    protected void setForce(int i, double fx, double fy) {
+        this.fx[i] = fx;
+        this.fy[i] = fy;
+    }
+
+    /**
+     * Returns the id of body i: its index when the store was created.
+     */
+    public int id(int i) {
+        return id[i];
+    }
+
+    /**
+     * Returns the index of the body with the given id.
+     */
+    public int indexOf(int id) {
+        return index[id];
+    }
+
+    /**
+     * Moves the bodies to new slots: body order[k] becomes body k, with
+     * every field, and keeps its id.
+     *
+     * @param order the old index of the body for each new slot
+     * @throws IllegalArgumentException if order is not a permutation of the bodies
+     */
+    public void permute(int[] order) {
+        checkPermutation(order);
+        if (doubles == null)
+            doubles = new double[n];
+        permute(rx, order);
+        permute(ry, order);
+        permute(vx, order);
+        permute(vy, order);
+        permute(fx, order);
+        permute(fy, order);
+        permute(mass, order);
+        permute(r, order);
+        permute(color, order);
+        permuteIds(order);
+    }
+
+    /**
+     * Throws IllegalArgumentException unless order holds every index
+     * of the store once.
+     */
+    protected void checkPermutation(int[] order) {
+        if (order.length != n)
+            throw new IllegalArgumentException("order has " + order.length + " slots for " + n + " bodies");
+        if (ints == null)
+            ints = new int[n];
+        Arrays.fill(ints, 0);
+        for (int k = 0; k < n; k++) {
+            int i = order[k];
+            if (i < 0 || i >= n || ints[i]++ != 0)
+                throw new IllegalArgumentException("order is not a permutation: " + i + " at slot " + k);
+        }
+    }
+
+    /**
+     * Moves the ids the way permute() moves the bodies, for a subclass
+     * that moves its own columns.
+     */
+    protected void permuteIds(int[] order) {
+        if (ints == null)
+            ints = new int[n];
+        permute(id, order);
+        for (int k = 0; k < n; k++)
+            index[id[k]] = k;
+    }
+
+    private void permute(double[] column, int[] order) {
+        for (int k = 0; k < n; k++)
+            doubles[k] = column[order[k]];
+        System.arraycopy(doubles, 0, column, 0, n);
+    }
+
+    private void permute(int[] column, int[] order) {
+        for (int k = 0; k < n; k++)
+            ints[k] = column[order[k]];
+        System.arraycopy(ints, 0, column, 0, n);
+    }
+
+    /**
+     * Updates the velocity and position of body i
+     * using leapfrom method, with timestep dt.
+     *
+     * @param i  the index of the body
+     * @param dt the timestep for this simulation
+     */
+    public void update(int i, double dt) {
+        double m = mass(i);
+        double vx = vx(i) + dt * fx(i) / m;
+        double vy = vy(i) + dt * fy(i) / m;
+        setVelocity(i, vx, vy);
+        setPosition(i, rx(i) + dt * vx, ry(i) + dt * vy);
+    }
+
+    /**
+     * Updates the velocity of body i from its net force over time dt,
+     * without moving it.
+     */
+    public void kick(int i, double dt) {
+        double m = mass(i);
+        setVelocity(i, vx(i) + dt * fx(i) / m, vy(i) + dt * fy(i) / m);
+    }
+
+    /**
+     * Moves body i in a straight line for time dt.
+     */
+    public void move(int i, double dt) {
+        setPosition(i, rx(i) + dt * vx(i), ry(i) + dt * vy(i));
+    }
+
+    /**
+     * Returns the Euclidean distance between bodies i and j.
+     */
+    public double distanceTo(int i, int j) {
+        double dx = rx(i) - rx(j);
+        double dy = ry(i) - ry(j);
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    public double velocityTo(int i, int j) {
+        double dvx = vx(j) - vx(i);
+        double dvy = vy(j) - vy(i);
+        return Math.sqrt(dvx * dvx + dvy * dvy);
+    }
+
+    public boolean collideWithP(int i, int j) {
+        if (i == j) return false;
+        else return distanceTo(i, j) <= radius(i) + radius(j);
+    }
+
+    /**
+     * Returns true iff body i overlaps the boundary of the wall.
+     */
+    public boolean collideWithW(int i, Quad wall) {
+        double half = wall.getLength() / 2.0;
+        double rx = rx(i), ry = ry(i), r = radius(i);
+        return !(rx + r <= wall.getXmid() + half
+                && rx - r >= wall.getXmid() - half
+                && ry + r <= wall.getYmid() + half
+                && ry - r >= wall.getYmid() - half);
+    }
+
+    public double alreadyCollideTimeWithP(int i, int j) {
+        assert collideWithP(i, j);
+        return (radius(i) + radius(j) - distanceTo(i, j)) / velocityTo(i, j);
+    }
+
+    /**
+     * Computes how long ago body i crossed the wall, writing the
+     * result into back the same way Particle.alreadyCollideTimeWithW
+     * returns it: back[0] is 1 for a vertical wall, 2 for a horizontal
+     * wall and 3 for a corner, back[1] is the time.
+     *
+     * @param i    the index of the body
+     * @param wall the wall
+     * @param back array of length 2 that receives the result
+     */
+    public void alreadyCollideTimeWithW(int i, Quad wall, double[] back) {
+        assert collideWithW(i, wall);
+        double half = wall.getLength() / 2.0;
+        double right = wall.getXmid() + half;
+        double left = wall.getXmid() - half;
+        double top = wall.getYmid() + half;
+        double bottom = wall.getYmid() - half;
+        double rx = rx(i), ry = ry(i), r = radius(i);
+
+        double TimeCollideVertical = -1;
+        double TimeCollideHorizon = -1;
+        if (rx + r - right >= 0) {
+            TimeCollideVertical = (rx + r - right) / vx(i);
+        }
+        if (rx - r <= left) {
+            TimeCollideVertical = (left - rx + r) / (-vx(i));
+        }
+        if (ry + r - top >= 0) {
+            TimeCollideHorizon = (ry + r - top) / vy(i);
+        }
+        if (ry - r <= bottom) {
+            TimeCollideHorizon = (bottom - ry + r) / (-vy(i));
+        }
+
+        if (TimeCollideVertical != -1 && TimeCollideHorizon != -1) {
+            back[1] = TimeCollideHorizon <= TimeCollideVertical ? TimeCollideHorizon : TimeCollideVertical;
+            back[0] = TimeCollideHorizon < TimeCollideVertical ? 2 : 1;
+            if (TimeCollideHorizon == TimeCollideVertical) back[0] = 3;
+        } else if (TimeCollideVertical != -1) {
+            back[0] = 1;
+            back[1] = TimeCollideVertical;
+        } else {
+            back[0] = 2;
+            back[1] = TimeCollideHorizon;
+        }
+    }
+
+    /**
+     * Bounces body i back inside the wall if it overlaps the wall's
+     * boundary, off the side it crossed first, or off both sides at a
+     * corner.
+     *
+     * @param i    the index of the body
+     * @param wall the wall
+     * @param back scratch array of length 2
+     * @return true if the body hit the wall
+     */
+    public boolean bounceOffWall(int i, Quad wall, double[] back) {
+        if (!collideWithW(i, wall))
+            return false;
+        alreadyCollideTimeWithW(i, wall, back);
+        if (back[0] == 1) {
+            bounceOffVerticalWall(i, back[1]);
+        } else if (back[0] == 2) {
+            bounceOffHorizontalWall(i, back[1]);
+        } else {
+            bounceOffVerticalWall(i, back[1]);
+            bounceOffHorizontalWall(i, back[1]);
+        }
+        return true;
+    }
+
+    public void reverse(int i, double t) {
+        setPosition(i, rx(i) - t * vx(i), ry(i) - t * vy(i));
+    }
+
+    /**
+     * Updates the velocities of bodies i and j according to the laws
+     * of elastic collision, after rewinding both of them by time.
+     */
+    public void bounceOff(int i, int j, double time) {
+        reverse(i, time);
+        reverse(j, time);
+        double dx  = rx(j) - rx(i);
+        double dy  = ry(j) - ry(i);
+        double dvx = vx(j) - vx(i);
+        double dvy = vy(j) - vy(i);
+        double dvdr = dx*dvx + dy*dvy;             // dv dot dr
+        double dist = radius(i) + radius(j);   // distance between particle centers at collison
+        double mi = mass(i), mj = mass(j);
+
+        // magnitude of normal force
+        double magnitude = 2 * mi * mj * dvdr / ((mi + mj) * dist);
+
+        // normal force, and in x and y directions
+        double fx = magnitude * dx / dist;
+        double fy = magnitude * dy / dist;
+
+        // update velocities according to normal force
+        double vxi = vx(i) + fx / mi;
+        double vyi = vy(i) + fy / mi;
+        double vxj = vx(j) - fx / mj;
+        double vyj = vy(j) - fy / mj;
+        setVelocity(i, vxi, vyi);
+        setVelocity(j, vxj, vyj);
+
+        setPosition(i, rx(i) + vxi * time, ry(i) + vyi * time);
+        setPosition(j, rx(j) + vxj * time, ry(j) + vyj * time);
+    }
+
+    /**
+     * Reflects the x-velocity of body i off a vertical wall.
+     */
+    public void bounceOffVerticalWall(int i, double time) {
+        reverse(i, time);
+        double vx = -vx(i), vy = vy(i);
+        setVelocity(i, vx, vy);
+        setPosition(i, rx(i) + vx * time, ry(i) + vy * time);
+    }
+
+    /**
+     * Reflects the y-velocity of body i off a horizontal wall.
+     */
+    public void bounceOffHorizontalWall(int i, double time) {
+        reverse(i, time);
+        double vx = vx(i), vy = -vy(i);
+        setVelocity(i, vx, vy);
+        setPosition(i, rx(i) + vx * time, ry(i) + vy * time);
+    }
+
+    /**
+     * Resets the force (both x- and y-components) of body i to 0.
+     */
+    public void resetForce(int i) {
+        setForce(i, 0.0, 0.0);
+    }
+
+    /**
+     * Adds the force that body j exerts on body i to the net force on i.
+     */
+    public void addForce(int i, int j) {
+        addForce(i, rx(j), ry(j), mass(j));
+    }
+
+    /**
+     * Adds the force that a point mass m at (x, y) exerts on body i
+     * to the net force on i. This is how aggregate bodies in the
+     * Barnes-Hut tree act on a body. A mass at the very position of i
+     * adds nothing.
+     *
+     * @param i the index of the body
+     * @param x x-coordinate of the point mass
+     * @param y y-coordinate of the point mass
+     * @param m the point mass
+     */
+    public void addForce(int i, double x, double y, double m) {
+        double dx = x - rx(i);
+        double dy = y - ry(i);
+        double dist = Math.sqrt(dx * dx + dy * dy);
+        if (dist == 0.0)
+            return;
+        double F = (G * mass(i) * m) / (dist * dist + EPS * EPS);
+        setForce(i, fx(i) + F * dx / dist, fy(i) + F * dy / dist);
+    }
+
+    /**
+     * Adds the short-range part of the force that a point mass m at
+     * (x, y) exerts on body i: the force of addForce() times
+     * exp(-(d / rs)^2), d being the distance. The rest, which is smooth
+     * on scales well above rs, is left to a solver on a grid (see
+     * PmSolver).
+     *
+     * @param i  the index of the body
+     * @param x  x-coordinate of the point mass
+     * @param y  y-coordinate of the point mass
+     * @param m  the point mass
+     * @param rs the scale of the split between short and long range
+     */
+    public void addShortForce(int i, double x, double y, double m, double rs) {
+        double dx = x - rx(i);
+        double dy = y - ry(i);
+        double d2 = dx * dx + dy * dy;
+        if (d2 == 0.0)
+            return;
+        double dist = Math.sqrt(d2);
+        double F = (G * mass(i) * m) / (d2 + EPS * EPS) * Math.exp(-d2 / (rs * rs));
+        setForce(i, fx(i) + F * dx / dist, fy(i) + F * dy / dist);
+    }
+
+    /**
+     * Adds the force that a cluster of mass m with center-of-mass (x, y)
+     * and second moments qxx, qxy, qyy about it exerts on body i. The
+     * second moments are sum m_j s_a s_b over the members, s being the
+     * offset of member j from the center-of-mass; the force is expanded
+     * to second order in s, for the softened kernel r h(|r|) with
+     * h(d) = 1 / (d (d^2 + EPS^2)).
+     *
+     * @param i   the index of the body
+     * @param x   x-coordinate of the center-of-mass
+     * @param y   y-coordinate of the center-of-mass
+     * @param m   the total mass
+     * @param qxx the xx second moment
+     * @param qxy the xy second moment
+     * @param qyy the yy second moment
+     */
+    public void addForce(int i, double x, double y, double m, double qxx, double qxy, double qyy) {
+        double dx = x - rx(i);
+        double dy = y - ry(i);
+        double d2 = dx * dx + dy * dy;
+        double d = Math.sqrt(d2);
+
+        // h and its first two derivatives
+        double D = d * (d2 + EPS * EPS);
+        double N = 3.0 * d2 + EPS * EPS;
+        double h = 1.0 / D;
+        double h1 = -N / (D * D);
+        double h2 = (2.0 * N * N - 6.0 * d * D) / (D * D * D);
+        double A = h1 / d;
+        double B = (h2 - A) / d2;
+
+        double qx = qxx * dx + qxy * dy;
+        double qy = qxy * dx + qyy * dy;
+        double trace = qxx + qyy;
+        double xqx = dx * qx + dy * qy;
+
+        double kx = m * h * dx + 0.5 * (A * (2.0 * qx + trace * dx) + B * xqx * dx);
+        double ky = m * h * dy + 0.5 * (A * (2.0 * qy + trace * dy) + B * xqx * dy);
+        double g = G * mass(i);
+        setForce(i, fx(i) + g * kx, fy(i) + g * ky);
+    }
+
+    /**
+     * Adds G m_i (gx, gy) to the net force on body i, for a field that
+     * is a sum of m_j r h(|r|) over the sources, as a solver that
+     * expands the field rather than the force computes it.
+     *
+     * @param i  the index of the body
+     * @param gx x-component of the field at body i
+     * @param gy y-component of the field at body i
+     */
+    public void addField(int i, double gx, double gy) {
+        double g = G * mass(i);
+        setForce(i, fx(i) + g * gx, fy(i) + g * gy);
+    }
+
+    /**
+     * Adds the force that every body and node of an interaction list
+     * exerts on body i. A body of the list at the very position of i is
+     * body i itself and is skipped. Nodes act with their quadrupole
+     * moments if quadrupole is true, else as point masses.
+     *
+     * @param i          the index of the body
+     * @param list       the interaction list of the group i belongs to
+     * @param quadrupole whether to use the second moments of the nodes
+     */
+    public void addForces(int i, InteractionList list, boolean quadrupole) {
+        double[] acc = list.acc;
+        acc[0] = 0.0;
+        acc[1] = 0.0;
+        list.scratch = ForceKernel.ensureScratch(list.scratch, Math.max(list.bodies, list.nodes));
+        double x = rx(i), y = ry(i);
+        ForceKernel.monopoles(x, y, list.bx, list.by, list.bm, list.bodies, list.scratch, acc);
+        if (quadrupole)
+            ForceKernel.quadrupoles(x, y, list.nx, list.ny, list.nm, list.nqxx, list.nqxy, list.nqyy,
+                                    list.nodes, acc);
+        else
+            ForceKernel.monopoles(x, y, list.nx, list.ny, list.nm, list.nodes, list.scratch, acc);
+        double g = G * mass(i);
+        setForce(i, fx(i) + g * acc[0], fy(i) + g * acc[1]);
+    }
+
+    /**
+     * Returns true if body i is in quadrant q, else false.
+     */
+    public boolean in(int i, Quad q) {
+        return q.contains(rx(i), ry(i));
+    }
+
+    /**
+     * Returns a string representation of body i formatted the
+     * same way as Particle.toString().
+     */
+    public String toString(int i) {
+        return String.format("%10.3E %10.3E %10.3E %10.3E %10.3E", rx(i), ry(i), vx(i), vy(i), mass(i));
+    }
+}
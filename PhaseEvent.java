@@ -0,0 +1,31 @@
+/**
+ * PhaseEvent.java
+ *
+ * JDK Flight Recorder event for one phase of a step of a
+ * CollisionSystem, so a recording shows the phases of every step on
+ * the timeline of the simulation thread. Enable it with, for example,
+ *
+ *   java -XX:StartFlightRecording:filename=run.jfr CollisionSystem ...
+ *
+ * Dependencies: StepMetrics.java
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("nbody.Phase")
+@Label("Step Phase")
+@Category("N-Body")
+@Description("One phase of a simulation step")
+@StackTrace(false)
+public class PhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Step")
+    long step;
+}
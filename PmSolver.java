@@ -0,0 +1,452 @@
+/**
+ * PmSolver.java
+ *
+ * A particle-mesh solver: the masses of the bodies inside the wall are
+ * spread onto a square grid of n x n points spanning the wall by
+ * cloud-in-cell assignment, the field at every grid point is the
+ * convolution of that density with the kernel of ParticleStore, done
+ * by FFT, and the field at each body is interpolated back from the
+ * four grid points around it with the same weights. The cost of a step
+ * is O(N + n^2 log n) whatever the distribution of the bodies, which
+ * pays off for large, fairly uniform inputs.
+ *
+ * The kernel is not that of the Poisson equation, so the convolution
+ * is not done with a Green's function in Fourier space; instead the
+ * kernel itself is sampled at every offset between two grid points and
+ * transformed once. Its x and y components go into the real and the
+ * imaginary part of one complex grid, so a single forward transform of
+ * the density and a single inverse transform give both components of
+ * the field. The grid is padded to 2n x 2n with zeros, so the circular
+ * convolution of the FFT does not wrap around: the wall is an isolated
+ * region, not a periodic one. Assignment and interpolation each smooth
+ * the field with the cloud-in-cell window, so the transform of the
+ * kernel is divided by the square of the window's transform, which
+ * takes most of the error of the grid away.
+ *
+ * On its own the grid blurs the force between bodies less than a few
+ * grid spacings apart. Given a BHTree, the solver splits the force as
+ * in TreePM codes: the grid carries the kernel times
+ * 1 - exp(-(d / rs)^2), which is smooth on the scale of the grid, and
+ * the tree adds the rest, out to a cutoff of a few rs, with a walk that
+ * skips the nodes beyond it (see BHTree.updateShortForce()). rs is
+ * SPLIT grid spacings.
+ *
+ * Assignment and the transforms run in parallel when there is a pool:
+ * the bodies are sorted by grid row, and rows of cells of the same
+ * parity touch disjoint rows of grid points, so the even rows are
+ * assigned in parallel and then the odd ones, with no two tasks writing
+ * the same point and in the same order whatever the number of workers.
+ * Interpolation happens in updateForce(), which the force phase already
+ * calls from every worker.
+ *
+ * Bodies outside the wall are not on the grid, and get the direct sum
+ * over the bodies inside it.
+ *
+ * Dependencies: GravitySolver.java ParticleStore.java BHTree.java Quad.java
+ *               WalkCounters.java
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class PmSolver implements GravitySolver {
+
+    // grid points per side used unless a number is given
+    public static final int DEFAULT_GRID = 256;
+
+    // scale of the split between the grid and the tree, in grid spacings
+    private static final double SPLIT = 1.25;
+
+    // the short-range force is dropped beyond this many times the split
+    // scale, where exp(-(d / rs)^2) is below 2e-9
+    private static final double CUTOFF = 4.5;
+
+    // rows or columns of the grid per task once a pass is split among the workers
+    private static final int GRAIN = 8;
+
+    private final ParticleStore store;
+    private final BHTree tree;     // the short-range part, or null for the grid alone
+    private final int n;           // grid points per side
+    private final int p;           // side of the padded grid, 2n
+
+    // the grid: lower left corner, and spacing of the points
+    private double left, bottom, h;
+
+    // the transform of the kernel, and the spacing it was computed for
+    private final double[] kernelRe, kernelIm;
+    private double kernelSpacing = Double.NaN;
+
+    // the padded grid, row by row: the density, then its transform, then
+    // the field, with x in the real and y in the imaginary part
+    private final double[] re, im;
+
+    // twiddle factors exp(2 pi i k / p), and the bit reversal of each index
+    private final double[] cos, sin;
+    private final int[] reversed;
+
+    // each worker's copy of the column it is transforming, real and imaginary parts
+    private final ThreadLocal<double[][]> lines;
+
+    // the bodies inside the wall sorted by the row of cells they are in:
+    // row r is byRow[rowStart[r]] to byRow[rowStart[r + 1] - 1]
+    private final int[] rowOf;     // by body, or -1 if outside the wall
+    private final int[] rowStart;
+    private final int[] byRow;
+
+    /**
+     * Constructor: creates a solver on a grid of the default size, with
+     * no short-range correction.
+     *
+     * @param store the bodies the solver is built over
+     */
+    public PmSolver(ParticleStore store) {
+        this(store, DEFAULT_GRID, null);
+    }
+
+    /**
+     * Constructor: creates a solver on a grid of n x n points over the
+     * wall. With a tree the grid carries only the long-range part of
+     * the force, and the tree, built over the same store, the rest;
+     * its Theta and opening criterion apply to the short-range walk.
+     *
+     * @param store the bodies the solver is built over
+     * @param n     the grid points per side, a power of two of at least 2
+     * @param tree  a tree over store for TreePM, or null for the grid alone
+     */
+    public PmSolver(ParticleStore store, int n, BHTree tree) {
+        if (n < 2 || Integer.bitCount(n) != 1)
+            throw new IllegalArgumentException("grid must be a power of two of at least 2: " + n);
+        this.store = store;
+        this.tree = tree;
+        this.n = n;
+        this.p = 2 * n;
+        this.kernelRe = new double[p * p];
+        this.kernelIm = new double[p * p];
+        this.re = new double[p * p];
+        this.im = new double[p * p];
+        this.cos = new double[p / 2];
+        this.sin = new double[p / 2];
+        for (int k = 0; k < p / 2; k++) {
+            cos[k] = Math.cos(2.0 * Math.PI * k / p);
+            sin[k] = Math.sin(2.0 * Math.PI * k / p);
+        }
+        this.reversed = new int[p];
+        int bits = Integer.numberOfTrailingZeros(p);
+        for (int k = 0; k < p; k++)
+            reversed[k] = Integer.reverse(k) >>> (32 - bits);
+        this.lines = ThreadLocal.withInitial(() -> new double[2][p]);
+        this.rowOf = new int[store.size()];
+        this.rowStart = new int[n];
+        this.byRow = new int[store.size()];
+    }
+
+    public int grid() {
+        return n;
+    }
+
+    /**
+     * Returns the depth of the short-range tree, or 0 without one.
+     */
+    @Override
+    public int depth() {
+        return tree == null ? 0 : tree.depth();
+    }
+
+    /**
+     * Returns the number of nodes of the short-range tree, or 0 without one.
+     */
+    @Override
+    public int nodes() {
+        return tree == null ? 0 : tree.nodes();
+    }
+
+    /**
+     * Spreads the bodies inside the wall onto the grid and computes the
+     * field at every grid point, then builds the short-range tree if
+     * there is one. The kernel is transformed again only when the
+     * spacing of the grid changes.
+     */
+    @Override
+    public void build(Quad wall, ForkJoinPool pool) {
+        double side = wall.getLength();
+        left = wall.getXmid() - side / 2.0;
+        bottom = wall.getYmid() - side / 2.0;
+        h = side / (n - 1);
+        if (h != kernelSpacing) {
+            sampleKernel();
+            run(GridTask.ROWS, 0, p, false, kernelRe, kernelIm, pool);
+            run(GridTask.COLUMNS, 0, p, false, kernelRe, kernelIm, pool);
+            deconvolve();
+            kernelSpacing = h;
+        }
+
+        // the density: rows of cells of one parity at a time
+        sortByRow(wall);
+        Arrays.fill(re, 0.0);
+        Arrays.fill(im, 0.0);
+        run(GridTask.ASSIGN, 0, n / 2, false, re, im, pool);
+        run(GridTask.ASSIGN, 0, n / 2 - 1, true, re, im, pool);
+
+        // the rows past n are zero, and so is their transform; only rows
+        // up to n of the field are needed
+        run(GridTask.ROWS, 0, n, false, re, im, pool);
+        run(GridTask.COLUMNS, 0, p, false, re, im, pool);
+        run(GridTask.MULTIPLY, 0, p, false, re, im, pool);
+        run(GridTask.COLUMNS, 0, p, true, re, im, pool);
+        run(GridTask.ROWS, 0, n, true, re, im, pool);
+
+        if (tree != null)
+            tree.build(wall, pool);
+    }
+
+    /**
+     * Fills the kernel grid with the field a unit mass exerts at every
+     * offset between two grid points, at the index of the offset modulo
+     * p, less the short-range part if there is a tree.
+     */
+    private void sampleKernel() {
+        double eps2 = ParticleStore.EPS * ParticleStore.EPS;
+        double rs = SPLIT * h;
+        Arrays.fill(kernelRe, 0.0);
+        Arrays.fill(kernelIm, 0.0);
+        for (int j = -(n - 1); j < n; j++) {
+            for (int i = -(n - 1); i < n; i++) {
+                if (i == 0 && j == 0)
+                    continue;
+
+                // the field at a point offset by (i, j) spacings from the
+                // mass points back towards it
+                double ex = i * h;
+                double ey = j * h;
+                double d2 = ex * ex + ey * ey;
+                double d = Math.sqrt(d2);
+                double f = 1.0 / (d2 + eps2);
+                if (tree != null)
+                    f *= -Math.expm1(-d2 / (rs * rs));
+                int k = ((j + p) % p) * p + (i + p) % p;
+                kernelRe[k] = -f * ex / d;
+                kernelIm[k] = -f * ey / d;
+            }
+        }
+    }
+
+    /**
+     * Divides the transform of the kernel by the square of the transform
+     * of the cloud-in-cell window, (sinc(k h / 2))^2 along each axis,
+     * once for assignment and once for interpolation.
+     */
+    private void deconvolve() {
+        double[] window = new double[p];
+        for (int m = 0; m < p; m++) {
+            double x = Math.PI * (m < p / 2 ? m : m - p) / p;
+            double sinc = m == 0 ? 1.0 : Math.sin(x) / x;
+            window[m] = sinc * sinc;
+        }
+        for (int j = 0; j < p; j++) {
+            for (int i = 0; i < p; i++) {
+                double w = window[i] * window[j];
+                kernelRe[j * p + i] /= w * w;
+                kernelIm[j * p + i] /= w * w;
+            }
+        }
+    }
+
+    /**
+     * Sorts the bodies inside the wall by the row of cells they are in.
+     */
+    private void sortByRow(Quad wall) {
+        Arrays.fill(rowStart, 0);
+        for (int b = 0; b < store.size(); b++) {
+            if (store.in(b, wall)) {
+                rowOf[b] = cell(store.ry(b) - bottom);
+                rowStart[rowOf[b] + 1]++;
+            }
+            else {
+                rowOf[b] = -1;
+            }
+        }
+        for (int r = 1; r < n; r++)
+            rowStart[r] += rowStart[r - 1];
+        int[] cursor = Arrays.copyOf(rowStart, n - 1);
+        for (int b = 0; b < store.size(); b++) {
+            if (rowOf[b] != -1)
+                byRow[cursor[rowOf[b]]++] = b;
+        }
+    }
+
+    /**
+     * Returns the cell, 0 to n - 2, holding a coordinate measured from
+     * the lower left corner of the grid. A point on the upper or right
+     * edge of the wall belongs to the last cell.
+     */
+    private int cell(double offset) {
+        return Math.max(0, Math.min((int) (offset / h), n - 2));
+    }
+
+    private void run(int op, int lo, int hi, boolean flag, double[] re, double[] im, ForkJoinPool pool) {
+        if (pool == null || hi - lo <= GRAIN)
+            new GridTask(op, lo, hi, flag, re, im).apply();
+        else
+            pool.invoke(new GridTask(op, lo, hi, flag, re, im));
+    }
+
+    /**
+     * Applies one pass to lines [lo, hi) of a grid.
+     */
+    private class GridTask extends RecursiveAction {
+        static final int ASSIGN = 0;     // the bodies of cell rows 2k, or 2k + 1 if flag, for k in [lo, hi)
+        static final int ROWS = 1;       // the FFT of rows [lo, hi), inverse if flag
+        static final int COLUMNS = 2;    // the FFT of columns [lo, hi), inverse if flag
+        static final int MULTIPLY = 3;   // rows [lo, hi) times the transform of the kernel
+
+        private final int op, lo, hi;
+        private final boolean flag;
+        private final double[] re, im;
+
+        GridTask(int op, int lo, int hi, boolean flag, double[] re, double[] im) {
+            this.op = op;
+            this.lo = lo;
+            this.hi = hi;
+            this.flag = flag;
+            this.re = re;
+            this.im = im;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= GRAIN) {
+                apply();
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new GridTask(op, lo, mid, flag, re, im), new GridTask(op, mid, hi, flag, re, im));
+        }
+
+        void apply() {
+            switch (op) {
+                case ASSIGN:
+                    for (int k = lo; k < hi; k++)
+                        assign(2 * k + (flag ? 1 : 0));
+                    break;
+                case ROWS:
+                    for (int r = lo; r < hi; r++)
+                        fft(re, im, r * p, flag);
+                    break;
+                case COLUMNS:
+                    double[] lineRe = lines.get()[0];
+                    double[] lineIm = lines.get()[1];
+                    for (int c = lo; c < hi; c++) {
+                        for (int r = 0; r < p; r++) {
+                            lineRe[r] = re[r * p + c];
+                            lineIm[r] = im[r * p + c];
+                        }
+                        fft(lineRe, lineIm, 0, flag);
+                        for (int r = 0; r < p; r++) {
+                            re[r * p + c] = lineRe[r];
+                            im[r * p + c] = lineIm[r];
+                        }
+                    }
+                    break;
+                case MULTIPLY:
+                    for (int k = lo * p; k < hi * p; k++) {
+                        double a = re[k], b = im[k];
+                        re[k] = a * kernelRe[k] - b * kernelIm[k];
+                        im[k] = a * kernelIm[k] + b * kernelRe[k];
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("unknown pass: " + op);
+            }
+        }
+    }
+
+    /**
+     * Spreads the mass of the bodies in cell row r onto grid rows r and r + 1.
+     */
+    private void assign(int r) {
+        for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+            int b = byRow[k];
+            double u = (store.rx(b) - left) / h;
+            double v = (store.ry(b) - bottom) / h;
+            int i = cell(store.rx(b) - left);
+            double wx = u - i;
+            double wy = v - r;
+            double m = store.mass(b);
+            int at = r * p + i;
+            re[at] += m * (1.0 - wx) * (1.0 - wy);
+            re[at + 1] += m * wx * (1.0 - wy);
+            re[at + p] += m * (1.0 - wx) * wy;
+            re[at + p + 1] += m * wx * wy;
+        }
+    }
+
+    /**
+     * Transforms the p values of a line in place by the radix-2
+     * Cooley-Tukey FFT. The inverse is not divided by p; the field is
+     * scaled once when it is read.
+     */
+    private void fft(double[] re, double[] im, int offset, boolean inverse) {
+        for (int k = 0; k < p; k++) {
+            int j = reversed[k];
+            if (k < j) {
+                double t = re[offset + k];
+                re[offset + k] = re[offset + j];
+                re[offset + j] = t;
+                t = im[offset + k];
+                im[offset + k] = im[offset + j];
+                im[offset + j] = t;
+            }
+        }
+        for (int len = 2; len <= p; len <<= 1) {
+            int half = len >> 1;
+            int step = p / len;
+            for (int s = offset; s < offset + p; s += len) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = inverse ? sin[k * step] : -sin[k * step];
+                    int a = s + k, b = a + half;
+                    double tr = wr * re[b] - wi * im[b];
+                    double ti = wr * im[b] + wi * re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Interpolates the field at body b from the grid, which counts as
+     * one interaction, then adds the short-range force from the tree if
+     * there is one.
+     */
+    @Override
+    public void updateForce(int b, WalkCounters counters) {
+        int r = rowOf[b];
+        if (r == -1) {
+            for (int k = 0; k < rowStart[n - 1]; k++)
+                store.addForce(b, byRow[k]);
+            counters.interactions += rowStart[n - 1];
+            return;
+        }
+
+        double u = (store.rx(b) - left) / h;
+        double v = (store.ry(b) - bottom) / h;
+        int i = cell(store.rx(b) - left);
+        double wx = u - i;
+        double wy = v - r;
+        int at = r * p + i;
+        double w00 = (1.0 - wx) * (1.0 - wy), w10 = wx * (1.0 - wy);
+        double w01 = (1.0 - wx) * wy, w11 = wx * wy;
+        double gx = w00 * re[at] + w10 * re[at + 1] + w01 * re[at + p] + w11 * re[at + p + 1];
+        double gy = w00 * im[at] + w10 * im[at + 1] + w01 * im[at + p] + w11 * im[at + p + 1];
+        double scale = 1.0 / ((double) p * p);
+        store.addField(b, gx * scale, gy * scale);
+        counters.interactions++;
+
+        if (tree != null)
+            tree.updateShortForce(b, SPLIT * h, CUTOFF * SPLIT * h, counters);
+    }
+}
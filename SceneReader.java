@@ -0,0 +1,327 @@
+/**
+ * SceneReader.java
+ *
+ * Reads initial conditions in the text format of CollisionSystem.main,
+ *
+ *   type square n
+ *   rx ry vx vy radius mass r g b     (n lines)
+ *
+ * straight into a ParticleStore, without Scanner. The file is memory
+ * mapped and cut into chunks that are parsed in parallel:
+ *
+ *   1. every chunk counts the tokens that start inside it;
+ *   2. a prefix sum gives the index of the first token of each chunk,
+ *      and with it the body and field that token belongs to;
+ *   3. every chunk parses the bodies whose first token starts inside
+ *      it, reading past its end to finish the last one.
+ *
+ * Numbers are parsed from the bytes by hand; a decimal with at most
+ * 15 significant digits and a small exponent is converted exactly with
+ * one multiplication or division by an exact power of ten, and anything
+ * else falls back to Double.parseDouble.
+ *
+ * Dependencies: ParticleStore.java Quad.java Checkpoint.java
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class SceneReader {
+
+    private static final int HEADER_TOKENS = 3;
+    private static final int FIELDS = 9;
+
+    // nominal size of a chunk, and how far a chunk may read past its end
+    private static final long CHUNK_BYTES = 32L << 20;
+    private static final int OVERFLOW = 1 << 12;
+
+    // exactly representable powers of ten
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for (int k = 1; k < POW10.length; k++)
+            POW10[k] = POW10[k - 1] * 10.0;
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private long[] firstToken;      // index of the first token starting in each chunk
+    private ParticleStore store;
+
+    private SceneReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    /**
+     * Reads a scene file.
+     *
+     * @param path the file to read
+     * @param pool the pool to parse on, or null to parse on this thread
+     * @return the wall and bodies of the scene, at time 0
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static Checkpoint read(Path path, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new SceneReader(channel).read(pool);
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        catch (NumberFormatException e) {
+            throw new IOException(path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Checkpoint read(ForkJoinPool pool) throws IOException {
+        int chunks = (int) Math.max(1, (size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        if (pool != null)
+            chunks = Math.max(chunks, Math.min(4 * pool.getParallelism(), (int) (size / OVERFLOW) + 1));
+
+        // the header
+        MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, OVERFLOW));
+        int p = skipWhitespace(head, 0);
+        int end = tokenEnd(head, p);
+        p = skipWhitespace(head, end);                   // type, unused
+        end = tokenEnd(head, p);
+        int square = (int) parseLong(head, p, end);
+        p = skipWhitespace(head, end);
+        end = tokenEnd(head, p);
+        long count = parseLong(head, p, end);
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new IOException("bad body count " + count);
+        store = new ParticleStore((int) count);
+
+        // count the tokens of each chunk, then number them
+        firstToken = new long[chunks + 1];
+        run(pool, chunks, false);
+        long total = 0;
+        for (int k = 0; k < chunks; k++) {
+            long tokens = firstToken[k];
+            firstToken[k] = total;
+            total += tokens;
+        }
+        firstToken[chunks] = total;
+        if (total < HEADER_TOKENS + FIELDS * count)
+            throw new IOException("expected " + count + " bodies but the file ends after "
+                                  + Math.max(0, (total - HEADER_TOKENS) / FIELDS));
+
+        run(pool, chunks, true);
+
+        Quad wall = new Quad(square/2 , square/2 ,square);
+        return new Checkpoint(wall, 0.0, 0, store);
+    }
+
+    private void run(ForkJoinPool pool, int chunks, boolean parse) {
+        if (pool == null) {
+            for (int k = 0; k < chunks; k++)
+                chunk(k, chunks, parse);
+        }
+        else {
+            pool.invoke(new ChunkTask(0, chunks, chunks, parse));
+        }
+    }
+
+    private class ChunkTask extends RecursiveAction {
+        private final int lo, hi, chunks;
+        private final boolean parse;
+
+        ChunkTask(int lo, int hi, int chunks, boolean parse) {
+            this.lo = lo;
+            this.hi = hi;
+            this.chunks = chunks;
+            this.parse = parse;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                chunk(lo, chunks, parse);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ChunkTask(lo, mid, chunks, parse), new ChunkTask(mid, hi, chunks, parse));
+        }
+    }
+
+    /**
+     * Counts or parses the tokens that start in chunk k.
+     */
+    private void chunk(int k, int chunks, boolean parse) {
+        long a = size * k / chunks;
+        long b = size * (k + 1) / chunks;
+        long base = Math.max(0, a - 1);
+        long limit = Math.min(size, b + OVERFLOW);
+        MappedByteBuffer buf;
+        try {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, base, limit - base);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        int from = (int) (a - base);
+        int to = (int) (b - base);
+        int p = from;
+
+        // a token that started in the previous chunk belongs to it
+        if (a > 0 && !isWhitespace(buf.get(from - 1)))
+            p = tokenEnd(buf, p);
+
+        if (!parse) {
+            long tokens = 0;
+            while (true) {
+                p = skipWhitespace(buf, p);
+                if (p >= to)
+                    break;
+                tokens++;
+                p = tokenEnd(buf, p);
+            }
+            firstToken[k] = tokens;
+            return;
+        }
+
+        // skip the header and the tail of a body owned by the previous chunk
+        long g = firstToken[k];
+        while (true) {
+            p = skipWhitespace(buf, p);
+            if (p >= to)
+                return;
+            if (g >= HEADER_TOKENS && (g - HEADER_TOKENS) % FIELDS == 0)
+                break;
+            p = tokenEnd(buf, p);
+            g++;
+        }
+
+        long body = (g - HEADER_TOKENS) / FIELDS;
+        double[] f = new double[FIELDS];
+        while (body < store.size()) {
+            p = skipWhitespace(buf, p);
+            if (p >= to)
+                return;
+            for (int field = 0; field < FIELDS; field++) {
+                p = skipWhitespace(buf, p);
+                if (p >= buf.limit())
+                    throw new UncheckedIOException(new IOException("body " + body + " is too long to parse"));
+                int end = tokenEnd(buf, p);
+                if (end == buf.limit() && limit < size)
+                    throw new UncheckedIOException(new IOException("body " + body + " is too long to parse"));
+                f[field] = field < 6 ? parseDouble(buf, p, end) : parseLong(buf, p, end);
+                p = end;
+            }
+            store.set((int) body, f[4], f[0], f[1], f[2], f[3], f[5],
+                      ParticleStore.packColor((int) f[6], (int) f[7], (int) f[8]));
+            body++;
+        }
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c <= ' ';
+    }
+
+    private static int skipWhitespace(MappedByteBuffer buf, int p) {
+        int limit = buf.limit();
+        while (p < limit && isWhitespace(buf.get(p)))
+            p++;
+        return p;
+    }
+
+    private static int tokenEnd(MappedByteBuffer buf, int p) {
+        int limit = buf.limit();
+        while (p < limit && !isWhitespace(buf.get(p)))
+            p++;
+        return p;
+    }
+
+    private static long parseLong(MappedByteBuffer buf, int p, int end) {
+        boolean negative = false;
+        if (p < end && (buf.get(p) == '-' || buf.get(p) == '+'))
+            negative = buf.get(p++) == '-';
+        if (p == end || end - p > 18)
+            return Long.parseLong(text(buf, p, end));
+        long v = 0;
+        for (; p < end; p++) {
+            int d = buf.get(p) - '0';
+            if (d < 0 || d > 9)
+                throw new NumberFormatException("not an integer: " + text(buf, p, end));
+            v = 10 * v + d;
+        }
+        return negative ? -v : v;
+    }
+
+    /**
+     * Parses [p, end) as a double. Handles an optional sign, digits
+     * with an optional decimal point, and an optional exponent.
+     */
+    private static double parseDouble(MappedByteBuffer buf, int start, int end) {
+        int p = start;
+        boolean negative = false;
+        if (p < end && (buf.get(p) == '-' || buf.get(p) == '+'))
+            negative = buf.get(p++) == '-';
+
+        long mantissa = 0;
+        int digits = 0;       // significant digits in mantissa
+        int scale = 0;        // power of ten the mantissa is multiplied by
+        boolean any = false, point = false;
+        for (; p < end; p++) {
+            byte c = buf.get(p);
+            if (c == '.' && !point) {
+                point = true;
+                continue;
+            }
+            int d = c - '0';
+            if (d < 0 || d > 9)
+                break;
+            any = true;
+            if (mantissa == 0 && d == 0) {
+                if (point) scale--;
+                continue;
+            }
+            if (digits < 18) {
+                mantissa = 10 * mantissa + d;
+                digits++;
+                if (point) scale--;
+            }
+            else if (!point) {
+                scale++;
+            }
+        }
+
+        if (p < end && (buf.get(p) == 'e' || buf.get(p) == 'E')) {
+            p++;
+            boolean negativeExp = false;
+            if (p < end && (buf.get(p) == '-' || buf.get(p) == '+'))
+                negativeExp = buf.get(p++) == '-';
+            int exp = 0;
+            boolean expDigits = false;
+            for (; p < end && buf.get(p) >= '0' && buf.get(p) <= '9'; p++) {
+                exp = Math.min(10 * exp + (buf.get(p) - '0'), 100000);
+                expDigits = true;
+            }
+            if (!expDigits)
+                any = false;
+            scale += negativeExp ? -exp : exp;
+        }
+
+        if (!any || p != end || digits > 15 || Math.abs(scale) >= POW10.length)
+            return Double.parseDouble(text(buf, start, end));
+
+        double v = mantissa;
+        v = scale >= 0 ? v * POW10[scale] : v / POW10[-scale];
+        return negative ? -v : v;
+    }
+
+    private static String text(MappedByteBuffer buf, int p, int end) {
+        byte[] bytes = new byte[end - p];
+        for (int k = 0; k < bytes.length; k++)
+            bytes[k] = buf.get(p + k);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
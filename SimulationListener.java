@@ -0,0 +1,19 @@
+/**
+ * SimulationListener.java
+ *
+ * Observes a CollisionSystem. The system calls stepped() on the thread
+ * that runs the simulation, right after each step, so implementations
+ * must return quickly and leave any slow work to their own thread.
+ *
+ * Dependencies: CollisionSystem.java
+ */
+
+public interface SimulationListener {
+
+    /**
+     * Called after every step of the system.
+     *
+     * @param system the system that just completed a step
+     */
+    void stepped(CollisionSystem system);
+}
@@ -0,0 +1,263 @@
+/**
+ * SocketTransport.java
+ *
+ * A Transport over TCP on the loopback interface, so a distributed run
+ * can be tried on one machine with a process per rank. Every pair of
+ * ranks shares one connection:
+ *
+ *   1. rank 0 listens on a server socket whose port it hands to the
+ *      other processes when it starts them (see accept()),
+ *   2. every other rank listens on a port of its own, connects to
+ *      rank 0 and sends its rank and port (see connect()),
+ *   3. rank 0 sends every rank the table of ports, and
+ *   4. each rank r connects to the ranks 1 to r - 1 and accepts a
+ *      connection from each of the ranks r + 1 to size - 1.
+ *
+ * A message is its length as an int followed by its bytes. Each
+ * connection has a daemon thread that reads whole messages into a
+ * queue as they arrive, so a sender never waits for its receiver to
+ * call receive(), and two ranks sending to each other at once cannot
+ * block each other.
+ *
+ * Dependencies: Transport.java
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class SocketTransport implements Transport {
+
+    // how long to wait for the other ranks to connect
+    private static final int CONNECT_TIMEOUT_MILLIS = 60_000;
+
+    // queued after the last message of a connection that closed
+    private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
+
+    private final int rank;
+    private final int size;
+    private final Socket[] sockets;
+    private final DataOutputStream[] out;
+    private final List<BlockingQueue<ByteBuffer>> in = new ArrayList<BlockingQueue<ByteBuffer>>();
+
+    private SocketTransport(int rank, int size, Socket[] sockets) throws IOException {
+        this.rank = rank;
+        this.size = size;
+        this.sockets = sockets;
+        this.out = new DataOutputStream[size];
+        for (int r = 0; r < size; r++) {
+            BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<ByteBuffer>();
+            in.add(queue);
+            if (r == rank)
+                continue;
+            out[r] = new DataOutputStream(new BufferedOutputStream(sockets[r].getOutputStream(), 1 << 16));
+            Thread reader = new Thread(reader(sockets[r], queue), "transport " + rank + " from " + r);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Opens the server socket rank 0 listens on, on an ephemeral port
+     * of the loopback interface. Start the other ranks with its port,
+     * then call accept().
+     */
+    public static ServerSocket listen() throws IOException {
+        ServerSocket server = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+        return server;
+    }
+
+    /**
+     * Connects rank 0 to the other ranks, once they have been started
+     * and given the port of the server. Closes the server.
+     *
+     * @param server the socket from listen()
+     * @param size   the number of ranks, including this one
+     * @return the transport of rank 0
+     * @throws IOException if a rank does not connect in time
+     */
+    public static SocketTransport accept(ServerSocket server, int size) throws IOException {
+        Socket[] sockets = new Socket[size];
+        int[] ports = new int[size];
+        try (ServerSocket s = server) {
+            for (int k = 1; k < size; k++) {
+                Socket socket = open(s.accept());
+                DataInputStream handshake = new DataInputStream(socket.getInputStream());
+                int r = handshake.readInt();
+                if (r < 1 || r >= size || sockets[r] != null)
+                    throw new IOException("unexpected rank " + r + " of " + size);
+                ports[r] = handshake.readInt();
+                sockets[r] = socket;
+            }
+            for (int r = 1; r < size; r++) {
+                DataOutputStream table = new DataOutputStream(sockets[r].getOutputStream());
+                for (int p : ports)
+                    table.writeInt(p);
+                table.flush();
+            }
+        }
+        catch (IOException e) {
+            close(sockets);
+            throw e;
+        }
+        return new SocketTransport(0, size, sockets);
+    }
+
+    /**
+     * Connects a rank other than 0 to every other rank.
+     *
+     * @param port the port rank 0 listens on
+     * @param rank the rank of this process, 1 to size - 1
+     * @param size the number of ranks
+     * @return the transport of this rank
+     * @throws IOException if the other ranks cannot be reached
+     */
+    public static SocketTransport connect(int port, int rank, int size) throws IOException {
+        if (rank < 1 || rank >= size)
+            throw new IllegalArgumentException("rank must be between 1 and " + (size - 1) + ": " + rank);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Socket[] sockets = new Socket[size];
+        try (ServerSocket server = new ServerSocket(0, 64, loopback)) {
+            server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+
+            sockets[0] = open(new Socket(loopback, port));
+            DataOutputStream hello = new DataOutputStream(sockets[0].getOutputStream());
+            hello.writeInt(rank);
+            hello.writeInt(server.getLocalPort());
+            hello.flush();
+            DataInputStream table = new DataInputStream(sockets[0].getInputStream());
+            int[] ports = new int[size];
+            for (int r = 0; r < size; r++)
+                ports[r] = table.readInt();
+
+            for (int r = 1; r < rank; r++) {
+                sockets[r] = open(new Socket(loopback, ports[r]));
+                DataOutputStream handshake = new DataOutputStream(sockets[r].getOutputStream());
+                handshake.writeInt(rank);
+                handshake.flush();
+            }
+            for (int k = rank + 1; k < size; k++) {
+                Socket socket = open(server.accept());
+                int r = new DataInputStream(socket.getInputStream()).readInt();
+                if (r <= rank || r >= size || sockets[r] != null)
+                    throw new IOException("unexpected rank " + r + " of " + size);
+                sockets[r] = socket;
+            }
+        }
+        catch (IOException e) {
+            close(sockets);
+            throw e;
+        }
+        return new SocketTransport(rank, size, sockets);
+    }
+
+    private static Socket open(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * Reads whole messages from a connection into a queue until it closes.
+     */
+    private static Runnable reader(Socket socket, BlockingQueue<ByteBuffer> queue) throws IOException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        return () -> {
+            try {
+                while (true) {
+                    byte[] bytes = new byte[stream.readInt()];
+                    stream.readFully(bytes);
+                    queue.put(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN));
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                // the connection closed or failed; receive() reports it
+            }
+            finally {
+                queue.add(CLOSED);
+            }
+        };
+    }
+
+    @Override
+    public int rank() {
+        return rank;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void send(int to, ByteBuffer message) throws IOException {
+        int bytes = message.remaining();
+        if (to == rank) {
+            ByteBuffer copy = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            copy.put(message.duplicate()).flip();
+            in.get(rank).add(copy);
+            return;
+        }
+        DataOutputStream stream = out[to];
+        synchronized (stream) {
+            stream.writeInt(bytes);
+            if (message.hasArray()) {
+                stream.write(message.array(), message.arrayOffset() + message.position(), bytes);
+            }
+            else {
+                byte[] copy = new byte[bytes];
+                message.duplicate().get(copy);
+                stream.write(copy);
+            }
+            stream.flush();
+        }
+    }
+
+    @Override
+    public ByteBuffer receive(int from) throws IOException {
+        BlockingQueue<ByteBuffer> queue = in.get(from);
+        ByteBuffer message;
+        try {
+            message = queue.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for rank " + from);
+        }
+        if (message == CLOSED) {
+            queue.add(CLOSED);
+            throw new EOFException("rank " + from + " closed the connection");
+        }
+        return message;
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(sockets);
+    }
+
+    private static void close(Socket[] sockets) {
+        for (Socket socket : sockets) {
+            try {
+                if (socket != null)
+                    socket.close();
+            }
+            catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
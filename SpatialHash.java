@@ -0,0 +1,144 @@
+/**
+ * SpatialHash.java
+ *
+ * Uniform-grid broad phase for particle-particle collisions. The
+ * grid cells are as wide as the largest body, so two bodies can only
+ * touch if their cells are equal or adjacent. Cells are hashed into a
+ * table of buckets, and the bodies are counting-sorted by bucket into
+ * one flat array, so a rebuild every step does not allocate once the
+ * arrays are large enough.
+ *
+ * Different cells can share a bucket. Callers that walk a bucket keep
+ * only the bodies whose cell (cellX(), cellY()) is the one they asked
+ * for, which also keeps every pair from being seen twice.
+ *
+ * Dependencies: ParticleStore.java
+ */
+
+public class SpatialHash {
+
+    private int[] cellX;       // grid cell of each body, by body index
+    private int[] cellY;
+    private int[] bucketOf;    // bucket of each body, by body index
+    private int[] start;       // first slot of each bucket in sorted, plus an end marker
+    private int[] sorted;      // body indices grouped by bucket, ascending within a bucket
+    private int mask;          // number of buckets - 1
+    private double cellSize;   // side length of a grid cell
+
+    /**
+     * Constructor: creates a grid for up to capacity bodies.
+     *
+     * @param capacity the expected number of bodies
+     */
+    public SpatialHash(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        cellX = new int[capacity];
+        cellY = new int[capacity];
+        bucketOf = new int[capacity];
+        sorted = new int[capacity];
+        int buckets = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        start = new int[buckets + 1];
+        mask = buckets - 1;
+    }
+
+    /**
+     * Bins the bodies of the store by cell, with cells twice as
+     * wide as the largest radius.
+     *
+     * @param store the bodies
+     */
+    public void build(ParticleStore store) {
+        build(store, 0.0);
+    }
+
+    /**
+     * Bins the bodies of the store by cell, with cells twice as wide
+     * as the largest radius plus margin. Two bodies that come within
+     * touching distance after each has moved up to margin are still
+     * in equal or adjacent cells.
+     *
+     * @param store  the bodies
+     * @param margin how far any body may move
+     */
+    public void build(ParticleStore store, double margin) {
+        int n = store.size();
+        double rmax = 0.0;
+        for (int i = 0; i < n; i++)
+            rmax = Math.max(rmax, store.radius(i));
+        build(store, n, cellSize(rmax, margin));
+    }
+
+    /**
+     * Returns the cell size build() uses for bodies of radius at most
+     * rmax that may move up to margin.
+     */
+    public static double cellSize(double rmax, double margin) {
+        return rmax + margin > 0.0 ? 2.0 * (rmax + margin) : 1.0;
+    }
+
+    /**
+     * Bins bodies 0 to n - 1 of the store by cell, with cells of the
+     * given size. Bodies binned with the same cell size by two grids
+     * get the same cells, whatever else is in either grid.
+     *
+     * @param store    the bodies
+     * @param n        the number of bodies to bin
+     * @param cellSize the side length of a cell
+     */
+    public void build(ParticleStore store, int n, double cellSize) {
+        if (cellX.length < n)
+            allocate(n);
+        this.cellSize = cellSize;
+
+        for (int b = 0; b <= mask + 1; b++)
+            start[b] = 0;
+        for (int i = 0; i < n; i++) {
+            cellX[i] = (int) Math.floor(store.rx(i) / cellSize);
+            cellY[i] = (int) Math.floor(store.ry(i) / cellSize);
+            bucketOf[i] = bucket(cellX[i], cellY[i]);
+            start[bucketOf[i] + 1]++;
+        }
+        for (int b = 0; b <= mask; b++)
+            start[b + 1] += start[b];
+
+        // scatter in index order, using start[b] as the write cursor of bucket b
+        for (int i = 0; i < n; i++)
+            sorted[start[bucketOf[i]]++] = i;
+        for (int b = mask; b > 0; b--)
+            start[b] = start[b - 1];
+        start[0] = 0;
+    }
+
+    /**
+     * Returns the bucket that holds cell (x, y).
+     */
+    public int bucket(int x, int y) {
+        return ((x * 73856093) ^ (y * 19349663)) & mask;
+    }
+
+    public int cellX(int i) {
+        return cellX[i];
+    }
+
+    public int cellY(int i) {
+        return cellY[i];
+    }
+
+    /**
+     * Returns the first slot of bucket b; the bucket ends at start(b + 1).
+     */
+    public int start(int b) {
+        return start[b];
+    }
+
+    public int body(int slot) {
+        return sorted[slot];
+    }
+
+    public double cellSize() {
+        return cellSize;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * StdDrawRenderer.java
+ *
+ * Draws a running CollisionSystem with StdDraw on a thread of its own.
+ * After a step, if a new frame is due and the previous frame has been
+ * drawn, the renderer copies the positions, radii and colors into its
+ * snapshot and wakes the drawing thread. Otherwise it returns at once,
+ * so the simulation never waits for the screen; frames are skipped
+ * instead.
+ *
+ * Dependencies: SimulationListener.java CollisionSystem.java ParticleStore.java StdDraw.java
+ */
+
+import edu.princeton.cs.algs4.StdDraw;
+
+import java.util.concurrent.locks.LockSupport;
+
+public class StdDrawRenderer implements SimulationListener {
+
+    private final long frameNanos;       // time between frames
+    private final Thread thread;         // thread that draws the snapshots
+    private volatile boolean pending;    // a snapshot is waiting to be drawn
+    private long nextFrame;              // System.nanoTime() of the next frame
+
+    private double[] rx = new double[0], ry = new double[0], r = new double[0];
+    private int[] color = new int[0];
+    private int n;                       // number of bodies in the snapshot
+
+    /**
+     * Constructor: creates a renderer that draws at most fps frames per
+     * second and starts its drawing thread.
+     *
+     * @param fps the frame rate
+     */
+    public StdDrawRenderer(double fps) {
+        if (!(fps > 0))
+            throw new IllegalArgumentException("fps must be positive: " + fps);
+        this.frameNanos = (long) (1e9 / fps);
+        StdDraw.enableDoubleBuffering();
+        thread = new Thread(this::drawLoop, "StdDrawRenderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stepped(CollisionSystem system) {
+        long now = System.nanoTime();
+        if (pending || now < nextFrame)
+            return;
+        nextFrame = now + frameNanos;
+
+        ParticleStore particles = system.particles();
+        n = particles.size();
+        if (rx.length < n) {
+            rx = new double[n];
+            ry = new double[n];
+            r = new double[n];
+            color = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            rx[i] = particles.rx(i);
+            ry[i] = particles.ry(i);
+            r[i] = particles.radius(i);
+            color[i] = particles.color(i);
+        }
+
+        pending = true;
+        LockSupport.unpark(thread);
+    }
+
+    private void drawLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            if (!pending) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // draw the Particle
+            StdDraw.clear();
+            for (int i = 0; i < n; i++) {
+                int c = color[i];
+                StdDraw.setPenColor((c >> 16) & 0xFF, (c >> 8) & 0xFF, c & 0xFF);
+                StdDraw.filledCircle(rx[i], ry[i], r[i]);
+            }
+            StdDraw.show();
+
+            pending = false;
+        }
+    }
+
+    /**
+     * Stops the drawing thread.
+     */
+    public void close() {
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * StepEvent.java
+ *
+ * JDK Flight Recorder event committed at the end of every step of a
+ * CollisionSystem with the work the step did. It spans the whole step,
+ * so its duration is the time of the step.
+ *
+ * Dependencies: StepMetrics.java
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("nbody.Step")
+@Label("Simulation Step")
+@Category("N-Body")
+@Description("The work done by one simulation step")
+@StackTrace(false)
+public class StepEvent extends jdk.jfr.Event {
+
+    @Label("Step")
+    long step;
+
+    @Label("Interactions")
+    @Description("Force interactions of a body with a body, tree node or expansion")
+    long interactions;
+
+    @Label("Node Openings")
+    long openings;
+
+    @Label("Collisions")
+    long collisions;
+
+    @Label("Wall Hits")
+    long wallHits;
+
+    @Label("Tree Depth")
+    int treeDepth;
+
+    @Label("Tree Nodes")
+    int treeNodes;
+
+    @Label("Force Balance")
+    @Description("Time the workers spent in force walks over the time they had in the force phase")
+    double forceBalance;
+}
@@ -0,0 +1,294 @@
+/**
+ * StepMetrics.java
+ *
+ * Where the time of a step goes and how much work it does. A
+ * CollisionSystem with metrics enabled times every phase of a step on
+ * the simulation thread and counts
+ *
+ *   interactions  of a body with another body, a tree node or an expansion
+ *   openings      tree nodes the walks opened
+ *   collisions    bounces between bodies
+ *   wall hits     bounces off the wall
+ *
+ * along with the depth and node count of the last tree built. The
+ * force workers count into their own WalkCounters and add them here
+ * once per task, through LongAdders, so the parallel phases do not
+ * contend on the counters. The time the workers spent walking, over
+ * the time they had in the force phase, is the balance of the step:
+ * 1.0 when no worker waited for another, down to 1/workers when one
+ * did all the work.
+ *
+ * Each phase is also a PhaseEvent, and each step a StepEvent, for the
+ * JDK Flight Recorder. The figures of the last completed step and the
+ * totals since the metrics were created can be read from a
+ * SimulationListener, or printed periodically by MetricsReporter.
+ *
+ * With block timesteps a phase runs once per sub-step, and its time
+ * and counts are summed over the step. RENDER is the time spent in the
+ * listeners after the step, which includes handing a frame to the
+ * renderer; a listener sees the figures of the step before the one it
+ * is called for.
+ *
+ * Dependencies: WalkCounters.java PhaseEvent.java StepEvent.java
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class StepMetrics {
+
+    /**
+     * The timed phases of a step.
+     */
+    public enum Phase { BUILD, FORCE, INTEGRATE, COLLISIONS, WALLS, RENDER }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    // counter indices
+    private static final int INTERACTIONS = 0;
+    private static final int OPENINGS = 1;
+    private static final int COLLISIONS = 2;
+    private static final int WALL_HITS = 3;
+    private static final int BUSY = 4;
+    private static final int COUNTERS = 5;
+
+    // nanoseconds per phase: the step in progress, the last step, and in total
+    private final long[] current = new long[PHASES.length];
+    private final long[] last = new long[PHASES.length];
+    private final long[] total = new long[PHASES.length];
+    private final long[] started = new long[PHASES.length];
+
+    // counts of the step in progress, striped for the workers
+    private final LongAdder[] counting = new LongAdder[COUNTERS];
+    private final long[] lastCount = new long[COUNTERS];
+    private final long[] totalCount = new long[COUNTERS];
+
+    private final int workers;     // threads the force phase runs on
+    private int depth, nodes;      // of the last tree built
+    private long steps;            // steps completed
+    private StepEvent event;       // of the step in progress
+
+    public StepMetrics() {
+        this(1);
+    }
+
+    /**
+     * Creates metrics for a system whose force phase runs on the given
+     * number of threads.
+     */
+    public StepMetrics(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        this.workers = workers;
+        for (int c = 0; c < COUNTERS; c++)
+            counting[c] = new LongAdder();
+    }
+
+    /**
+     * Starts timing a phase of the step in progress. Phases do not nest.
+     */
+    PhaseEvent begin(Phase phase) {
+        if (event == null) {
+            event = new StepEvent();
+            event.begin();
+        }
+        PhaseEvent e = new PhaseEvent();
+        e.phase = phase.name();
+        e.step = steps + 1;
+        e.begin();
+        started[phase.ordinal()] = System.nanoTime();
+        return e;
+    }
+
+    /**
+     * Stops timing a phase started by begin(), and commits its event if
+     * the recorder wants it.
+     */
+    void end(Phase phase, PhaseEvent e) {
+        current[phase.ordinal()] += System.nanoTime() - started[phase.ordinal()];
+        e.commit();
+    }
+
+    /**
+     * Adds the counts of a worker and clears them. Safe to call from
+     * any thread.
+     */
+    void add(WalkCounters counters) {
+        counting[INTERACTIONS].add(counters.interactions);
+        counting[OPENINGS].add(counters.openings);
+        counting[BUSY].add(counters.nanos);
+        counters.clear();
+    }
+
+    void addCollisions(long collisions, long wallHits) {
+        counting[COLLISIONS].add(collisions);
+        counting[WALL_HITS].add(wallHits);
+    }
+
+    void setTree(int depth, int nodes) {
+        this.depth = depth;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Closes the step in progress: its figures become those of the last
+     * step and are added to the totals. Called once every worker is done.
+     */
+    void endStep() {
+        for (int p = 0; p < PHASES.length; p++) {
+            last[p] = current[p];
+            total[p] += current[p];
+            current[p] = 0;
+        }
+        for (int c = 0; c < COUNTERS; c++) {
+            lastCount[c] = counting[c].sumThenReset();
+            totalCount[c] += lastCount[c];
+        }
+        steps++;
+
+        if (event == null) {
+            event = new StepEvent();
+            event.begin();
+        }
+        if (event.shouldCommit()) {
+            event.step = steps;
+            event.interactions = lastCount[INTERACTIONS];
+            event.openings = lastCount[OPENINGS];
+            event.collisions = lastCount[COLLISIONS];
+            event.wallHits = lastCount[WALL_HITS];
+            event.treeDepth = depth;
+            event.treeNodes = nodes;
+            event.forceBalance = balance();
+            event.commit();
+        }
+        event = null;
+    }
+
+    /**
+     * Returns the number of steps completed since the metrics were created.
+     */
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * Returns the nanoseconds the last step spent in a phase.
+     */
+    public long nanos(Phase phase) {
+        return last[phase.ordinal()];
+    }
+
+    /**
+     * Returns the nanoseconds spent in a phase over every step.
+     */
+    public long totalNanos(Phase phase) {
+        return total[phase.ordinal()];
+    }
+
+    public long interactions() {
+        return lastCount[INTERACTIONS];
+    }
+
+    public long openings() {
+        return lastCount[OPENINGS];
+    }
+
+    public long collisions() {
+        return lastCount[COLLISIONS];
+    }
+
+    public long wallHits() {
+        return lastCount[WALL_HITS];
+    }
+
+    public long totalInteractions() {
+        return totalCount[INTERACTIONS];
+    }
+
+    public long totalOpenings() {
+        return totalCount[OPENINGS];
+    }
+
+    public long totalCollisions() {
+        return totalCount[COLLISIONS];
+    }
+
+    public long totalWallHits() {
+        return totalCount[WALL_HITS];
+    }
+
+    /**
+     * Returns the number of threads the force phase runs on.
+     */
+    public int workers() {
+        return workers;
+    }
+
+    /**
+     * Returns the nanoseconds the workers spent in force walks in the
+     * last step, summed over the workers.
+     */
+    public long busyNanos() {
+        return lastCount[BUSY];
+    }
+
+    public long totalBusyNanos() {
+        return totalCount[BUSY];
+    }
+
+    /**
+     * Returns the balance of the force phase of the last step: the time
+     * the workers spent walking over workers times the time of the
+     * phase, or NaN if the step had no force phase.
+     */
+    public double balance() {
+        return balance(lastCount[BUSY], last[Phase.FORCE.ordinal()]);
+    }
+
+    /**
+     * Returns the balance of the force phase over every step.
+     */
+    public double totalBalance() {
+        return balance(totalCount[BUSY], total[Phase.FORCE.ordinal()]);
+    }
+
+    /**
+     * Returns the balance of busy nanoseconds of walking in a force
+     * phase that took the given nanoseconds.
+     */
+    public double balance(long busy, long nanos) {
+        return nanos == 0 ? Double.NaN : Math.min(1.0, (double) busy / ((double) workers * nanos));
+    }
+
+    /**
+     * Returns the depth of the last tree built: the number of levels
+     * below the root.
+     */
+    public int treeDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the number of nodes of the last tree built.
+     */
+    public int treeNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the figures of the last step on one line.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("step ").append(steps);
+        for (Phase phase : PHASES)
+            sb.append(String.format(" %s %.3f ms", phase.name().toLowerCase(), last[phase.ordinal()] / 1e6));
+        sb.append(" | interactions ").append(interactions());
+        sb.append(" openings ").append(openings());
+        sb.append(" collisions ").append(collisions());
+        sb.append(" wall hits ").append(wallHits());
+        sb.append(String.format(" | balance %.2f", balance()));
+        sb.append(" | tree depth ").append(depth).append(" nodes ").append(nodes);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * TrajectoryReader.java
+ *
+ * Random access to the frames of a file written by TrajectoryWriter.
+ * The frame index is read from the end of the file; a file whose run
+ * died before the index was written is indexed by walking the frame
+ * headers instead. A DELTA frame is decoded from the nearest keyframe
+ * at or before it, and frames read in order reuse the previous frame.
+ *
+ * Dependencies: TrajectoryWriter.java Quad.java
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class TrajectoryReader implements Closeable {
+
+    private final FileChannel channel;
+    private final int encoding;
+    private final int n;
+    private final Quad wall;
+
+    private int frames;
+    private long[] step;
+    private double[] time;
+    private long[] offset;
+
+    // quantized positions of the last DELTA frame decoded, and its number
+    private final int[] lastX, lastY;
+    private int last = -1;
+
+    private ByteBuffer in;
+
+    /**
+     * Opens a trajectory and reads its index.
+     *
+     * @param path the file to read
+     * @throws IOException if the file cannot be read or is not a trajectory
+     */
+    public TrajectoryReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(0, TrajectoryWriter.HEADER_BYTES);
+            if (header.getInt() != TrajectoryWriter.MAGIC)
+                throw new IOException(path + " is not a trajectory");
+            int version = header.getInt();
+            if (version != TrajectoryWriter.VERSION)
+                throw new IOException(path + " has unsupported trajectory version " + version);
+            encoding = header.getInt();
+            n = header.getInt();
+            wall = new Quad(header.getDouble(), header.getDouble(), header.getDouble());
+            lastX = encoding == TrajectoryWriter.DELTA ? new int[n] : null;
+            lastY = encoding == TrajectoryWriter.DELTA ? new int[n] : null;
+
+            if (!readIndex())
+                scanIndex();
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < TrajectoryWriter.HEADER_BYTES + TrajectoryWriter.FOOTER_BYTES)
+            return false;
+        ByteBuffer footer = read(size - TrajectoryWriter.FOOTER_BYTES, TrajectoryWriter.FOOTER_BYTES);
+        int count = footer.getInt();
+        long at = footer.getLong();
+        if (footer.getInt() != TrajectoryWriter.MAGIC
+                || at + (long) count * TrajectoryWriter.INDEX_ENTRY_BYTES + TrajectoryWriter.FOOTER_BYTES != size)
+            return false;
+
+        ByteBuffer index = read(at, count * TrajectoryWriter.INDEX_ENTRY_BYTES);
+        frames = count;
+        step = new long[count];
+        time = new double[count];
+        offset = new long[count];
+        for (int k = 0; k < count; k++) {
+            step[k] = index.getLong();
+            time[k] = index.getDouble();
+            offset[k] = index.getLong();
+            index.get();
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the index of a file that was not closed, keeping every
+     * frame that was written completely.
+     */
+    private void scanIndex() throws IOException {
+        long size = channel.size();
+        long at = TrajectoryWriter.HEADER_BYTES;
+        step = new long[64];
+        time = new double[64];
+        offset = new long[64];
+        while (at + TrajectoryWriter.FRAME_HEADER_BYTES <= size) {
+            ByteBuffer header = read(at, TrajectoryWriter.FRAME_HEADER_BYTES);
+            long s = header.getLong();
+            double t = header.getDouble();
+            int bytes = header.getInt();
+            // stop at a partial frame, or at the start of a partial index
+            if (bytes < 0 || at + TrajectoryWriter.FRAME_HEADER_BYTES + bytes > size
+                    || (frames > 0 && s <= step[frames - 1]) || !plausible(bytes))
+                break;
+            if (frames == step.length) {
+                step = Arrays.copyOf(step, 2 * frames);
+                time = Arrays.copyOf(time, 2 * frames);
+                offset = Arrays.copyOf(offset, 2 * frames);
+            }
+            step[frames] = s;
+            time[frames] = t;
+            offset[frames] = at;
+            frames++;
+            at += TrajectoryWriter.FRAME_HEADER_BYTES + bytes;
+        }
+    }
+
+    private boolean plausible(int bytes) {
+        if (encoding == TrajectoryWriter.RAW)
+            return bytes == 32L * n;
+        if (encoding == TrajectoryWriter.QUANTIZED)
+            return bytes == 16L * n;
+        return bytes >= 10L * n && bytes <= 18L * n;
+    }
+
+    public int frames() {
+        return frames;
+    }
+
+    public int bodies() {
+        return n;
+    }
+
+    public Quad wall() {
+        return wall;
+    }
+
+    public long step(int k) {
+        return step[k];
+    }
+
+    public double time(int k) {
+        return time[k];
+    }
+
+    /**
+     * Decodes frame k into the given arrays, each of length at least n.
+     *
+     * @param k  the frame number, 0 to frames() - 1
+     * @param rx the x-positions
+     * @param ry the y-positions
+     * @param vx the x-velocities
+     * @param vy the y-velocities
+     * @throws IOException if the file cannot be read
+     */
+    public void read(int k, double[] rx, double[] ry, double[] vx, double[] vy) throws IOException {
+        if (k < 0 || k >= frames)
+            throw new IndexOutOfBoundsException("frame " + k + " of " + frames);
+
+        if (encoding == TrajectoryWriter.DELTA) {
+            int from = k - k % TrajectoryWriter.KEYFRAME_INTERVAL;
+            if (last >= from && last < k)
+                from = last + 1;
+            for (int f = from; f <= k; f++)
+                decode(f, rx, ry, vx, vy);
+            last = k;
+        }
+        else {
+            decode(k, rx, ry, vx, vy);
+        }
+    }
+
+    private void decode(int k, double[] rx, double[] ry, double[] vx, double[] vy) throws IOException {
+        ByteBuffer header = read(offset[k], TrajectoryWriter.FRAME_HEADER_BYTES);
+        int bytes = header.getInt(16);
+        ByteBuffer payload = read(offset[k] + TrajectoryWriter.FRAME_HEADER_BYTES, bytes);
+
+        if (encoding == TrajectoryWriter.RAW) {
+            for (int i = 0; i < n; i++) rx[i] = payload.getDouble();
+            for (int i = 0; i < n; i++) ry[i] = payload.getDouble();
+            for (int i = 0; i < n; i++) vx[i] = payload.getDouble();
+            for (int i = 0; i < n; i++) vy[i] = payload.getDouble();
+            return;
+        }
+
+        boolean key = encoding == TrajectoryWriter.QUANTIZED || k % TrajectoryWriter.KEYFRAME_INTERVAL == 0;
+        double len = wall.getLength();
+        double left = wall.getXmid() - len / 2.0;
+        double bottom = wall.getYmid() - len / 2.0;
+        for (int i = 0; i < n; i++) {
+            int q = position(payload, lastX, i, key);
+            rx[i] = TrajectoryWriter.dequantize(q, left, len);
+        }
+        for (int i = 0; i < n; i++) {
+            int q = position(payload, lastY, i, key);
+            ry[i] = TrajectoryWriter.dequantize(q, bottom, len);
+        }
+        for (int i = 0; i < n; i++) vx[i] = payload.getFloat();
+        for (int i = 0; i < n; i++) vy[i] = payload.getFloat();
+    }
+
+    private static int position(ByteBuffer payload, int[] previous, int i, boolean key) {
+        int q;
+        if (key) {
+            q = payload.getInt();
+        }
+        else {
+            int zigzag = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = payload.get();
+                zigzag |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            q = previous[i] + ((zigzag >>> 1) ^ -(zigzag & 1));
+        }
+        if (previous != null)
+            previous[i] = q;
+        return q;
+    }
+
+    private ByteBuffer read(long at, int bytes) throws IOException {
+        if (in == null || in.capacity() < bytes)
+            in = ByteBuffer.allocate(Math.max(bytes, 1 << 12)).order(ByteOrder.LITTLE_ENDIAN);
+        in.clear().limit(bytes);
+        while (in.hasRemaining()) {
+            if (channel.read(in, at + in.position()) < 0)
+                throw new IOException("unexpected end of trajectory at " + (at + in.position()));
+        }
+        in.flip();
+        return in;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
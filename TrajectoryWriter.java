@@ -0,0 +1,314 @@
+/**
+ * TrajectoryWriter.java
+ *
+ * Records the positions and velocities of every body every k steps
+ * without making the simulation wait for the disk. After a step that
+ * is due, the simulation thread copies the state into a free frame
+ * buffer and queues it; a background thread encodes and writes the
+ * queued frames. The simulation only blocks when every buffer is still
+ * queued, that is when the disk cannot keep up. Bodies are recorded
+ * in the order of their ids, wherever the store has moved them.
+ *
+ * File layout, little-endian:
+ *
+ *   header   int magic "NBTR", int version, int encoding, int n,
+ *            double wall x-center, y-center, side length
+ *   frames   long step, double time, int payload bytes, payload
+ *   index    per frame: long step, double time, long offset, byte keyframe
+ *   footer   int frame count, long index offset, int magic
+ *
+ * Payloads, per encoding:
+ *
+ *   RAW        rx[n], ry[n], vx[n], vy[n] as doubles
+ *   QUANTIZED  rx[n], ry[n] as 32-bit fixed point over the wall,
+ *              vx[n], vy[n] as floats
+ *   DELTA      like QUANTIZED, but the positions of every frame except
+ *              a keyframe are stored as zigzag varint differences from
+ *              the previous frame; every KEYFRAME_INTERVAL-th frame is
+ *              a keyframe so a reader never decodes far from the index
+ *
+ * Dependencies: SimulationListener.java CollisionSystem.java ParticleStore.java
+ *               Quad.java TrajectoryReader.java
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TrajectoryWriter implements SimulationListener, Closeable {
+
+    public static final int MAGIC = 0x4E425452;    // "NBTR"
+    public static final int VERSION = 1;
+
+    public static final int RAW = 0;
+    public static final int QUANTIZED = 1;
+    public static final int DELTA = 2;
+
+    static final int HEADER_BYTES = 40;
+    static final int FRAME_HEADER_BYTES = 20;
+    static final int INDEX_ENTRY_BYTES = 25;
+    static final int FOOTER_BYTES = 16;
+    static final int KEYFRAME_INTERVAL = 64;
+
+    // scale of the fixed point positions
+    static final double QUANTA = 4294967295.0;
+
+    private final FileChannel channel;
+    private final int encoding;
+    private final long every;
+    private final Quad wall;
+    private final int n;
+
+    private final BlockingQueue<Frame> free;      // buffers ready to be filled
+    private final BlockingQueue<Frame> full;      // buffers waiting to be written
+    private final Thread thread;
+    private volatile Throwable failure;           // why the writer thread stopped
+    private boolean closed;
+
+    // owned by the writer thread
+    private ByteBuffer out;
+    private int[] previousX, previousY;           // quantized positions of the last frame
+    private int frames;
+    private long[] indexStep = new long[64];
+    private double[] indexTime = new double[64];
+    private long[] indexOffset = new long[64];
+    private boolean[] indexKey = new boolean[64];
+
+    private static final Frame END = new Frame(0);
+
+    /**
+     * State of the bodies at one step.
+     */
+    private static class Frame {
+        final double[] rx, ry, vx, vy;
+        long step;
+        double time;
+
+        Frame(int n) {
+            rx = new double[n];
+            ry = new double[n];
+            vx = new double[n];
+            vy = new double[n];
+        }
+    }
+
+    /**
+     * Constructor: creates the file and starts the writer thread.
+     *
+     * @param path     the file to write
+     * @param system   the system that will be recorded
+     * @param every    the number of steps between frames
+     * @param encoding RAW, QUANTIZED or DELTA
+     * @param buffers  the number of frame buffers; 2 is double buffering
+     * @throws IOException if the file cannot be created
+     */
+    public TrajectoryWriter(Path path, CollisionSystem system, long every, int encoding, int buffers)
+            throws IOException {
+        if (every < 1)
+            throw new IllegalArgumentException("every must be positive: " + every);
+        if (encoding < RAW || encoding > DELTA)
+            throw new IllegalArgumentException("unknown encoding: " + encoding);
+        if (buffers < 1)
+            throw new IllegalArgumentException("buffers must be positive: " + buffers);
+
+        this.every = every;
+        this.encoding = encoding;
+        this.wall = system.wall();
+        this.n = system.particles().size();
+        this.free = new ArrayBlockingQueue<Frame>(buffers);
+        this.full = new ArrayBlockingQueue<Frame>(buffers + 1);
+        for (int k = 0; k < buffers; k++)
+            free.add(new Frame(n));
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                   StandardOpenOption.WRITE);
+        out = ByteBuffer.allocateDirect(maxPayload() + FRAME_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(encoding).putInt(n);
+        out.putDouble(wall.getXmid()).putDouble(wall.getYmid()).putDouble(wall.getLength());
+        out.flip();
+        while (out.hasRemaining())
+            channel.write(out);
+
+        thread = new Thread(this::writeLoop, "TrajectoryWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private int maxPayload() {
+        if (encoding == RAW)
+            return 32 * n;
+        if (encoding == QUANTIZED)
+            return 16 * n;
+        return 18 * n;   // up to 5 varint bytes per coordinate, plus two floats
+    }
+
+    @Override
+    public void stepped(CollisionSystem system) {
+        if (system.steps() % every != 0)
+            return;
+        checkFailure();
+
+        // wait for a buffer, unless the writer thread has died
+        Frame frame;
+        try {
+            while ((frame = free.poll(100, TimeUnit.MILLISECONDS)) == null)
+                checkFailure();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        ParticleStore particles = system.particles();
+        for (int i = 0; i < n; i++) {
+            int id = particles.id(i);
+            frame.rx[id] = particles.rx(i);
+            frame.ry[id] = particles.ry(i);
+            frame.vx[id] = particles.vx(i);
+            frame.vy[id] = particles.vy(i);
+        }
+        frame.step = system.steps();
+        frame.time = system.time();
+        full.add(frame);
+    }
+
+    private void checkFailure() {
+        if (failure != null)
+            throw new UncheckedIOException(new IOException("trajectory writer failed", failure));
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Frame frame = full.take();
+                if (frame == END)
+                    break;
+                write(frame);
+                free.add(frame);
+            }
+        }
+        catch (Throwable e) {
+            failure = e;
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        boolean key = encoding != DELTA || frames % KEYFRAME_INTERVAL == 0;
+        long offset = channel.position();
+
+        out.clear();
+        out.putLong(frame.step).putDouble(frame.time).putInt(0);
+        if (encoding == RAW) {
+            for (int i = 0; i < n; i++) out.putDouble(frame.rx[i]);
+            for (int i = 0; i < n; i++) out.putDouble(frame.ry[i]);
+            for (int i = 0; i < n; i++) out.putDouble(frame.vx[i]);
+            for (int i = 0; i < n; i++) out.putDouble(frame.vy[i]);
+        }
+        else {
+            if (previousX == null) {
+                previousX = new int[n];
+                previousY = new int[n];
+            }
+            double half = wall.getLength() / 2.0;
+            for (int i = 0; i < n; i++)
+                putPosition(quantize(frame.rx[i], wall.getXmid() - half, wall.getLength()), previousX, i, key);
+            for (int i = 0; i < n; i++)
+                putPosition(quantize(frame.ry[i], wall.getYmid() - half, wall.getLength()), previousY, i, key);
+            for (int i = 0; i < n; i++) out.putFloat((float) frame.vx[i]);
+            for (int i = 0; i < n; i++) out.putFloat((float) frame.vy[i]);
+        }
+        out.putInt(16, out.position() - FRAME_HEADER_BYTES);
+        out.flip();
+        while (out.hasRemaining())
+            channel.write(out);
+
+        if (frames == indexStep.length) {
+            indexStep = Arrays.copyOf(indexStep, 2 * frames);
+            indexTime = Arrays.copyOf(indexTime, 2 * frames);
+            indexOffset = Arrays.copyOf(indexOffset, 2 * frames);
+            indexKey = Arrays.copyOf(indexKey, 2 * frames);
+        }
+        indexStep[frames] = frame.step;
+        indexTime[frames] = frame.time;
+        indexOffset[frames] = offset;
+        indexKey[frames] = key;
+        frames++;
+    }
+
+    private void putPosition(int q, int[] previous, int i, boolean key) {
+        if (encoding == QUANTIZED || key) {
+            out.putInt(q);
+        }
+        else {
+            int delta = q - previous[i];
+            int zigzag = (delta << 1) ^ (delta >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                out.put((byte) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            out.put((byte) zigzag);
+        }
+        previous[i] = q;
+    }
+
+    /**
+     * Maps x in [lo, lo + len] to an unsigned 32-bit fixed point value,
+     * stored in an int. Positions outside the wall are clamped.
+     */
+    static int quantize(double x, double lo, double len) {
+        double t = Math.min(1.0, Math.max(0.0, (x - lo) / len));
+        return (int) (long) Math.rint(t * QUANTA);
+    }
+
+    static double dequantize(int q, double lo, double len) {
+        return lo + len * ((q & 0xFFFFFFFFL) / QUANTA);
+    }
+
+    /**
+     * Writes the queued frames, the index and the footer, and closes
+     * the file. The file is closed even if writing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        full.add(END);
+
+        // the channel is closed however this ends, as a second close()
+        // returns at once
+        try {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while closing the trajectory", e);
+            }
+            checkFailure();
+
+            long indexOffsetInFile = channel.position();
+            ByteBuffer index = ByteBuffer.allocate(frames * INDEX_ENTRY_BYTES + FOOTER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int k = 0; k < frames; k++) {
+                index.putLong(indexStep[k]).putDouble(indexTime[k]).putLong(indexOffset[k]);
+                index.put((byte) (indexKey[k] ? 1 : 0));
+            }
+            index.putInt(frames).putLong(indexOffsetInFile).putInt(MAGIC);
+            index.flip();
+            while (index.hasRemaining())
+                channel.write(index);
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Transport.java
+ *
+ * Point-to-point messages between the processes of a distributed run.
+ * There are size() processes, numbered 0 to size() - 1 by rank. Every
+ * message between two ranks arrives once and in the order it was sent,
+ * and send() never waits for the receiver to ask for the message, so
+ * every rank can send to all the others before receiving from any.
+ *
+ * Implementations: SocketTransport (TCP on the loopback interface).
+ *
+ * Dependencies: none
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface Transport extends Closeable {
+
+    /**
+     * Returns the rank of this process.
+     */
+    int rank();
+
+    /**
+     * Returns the number of processes.
+     */
+    int size();
+
+    /**
+     * Sends the bytes between the position and the limit of message to
+     * a rank, which may be this one. The buffer may be reused as soon
+     * as send() returns.
+     *
+     * @param to      the rank to send to
+     * @param message the bytes to send
+     * @throws IOException if the message cannot be sent
+     */
+    void send(int to, ByteBuffer message) throws IOException;
+
+    /**
+     * Returns the next message from a rank, waiting until it arrives.
+     * The buffer is little-endian and holds exactly the bytes sent.
+     *
+     * @param from the rank to receive from
+     * @return the message
+     * @throws IOException if the rank has gone away
+     */
+    ByteBuffer receive(int from) throws IOException;
+}
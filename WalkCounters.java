@@ -0,0 +1,39 @@
+/**
+ * WalkCounters.java
+ *
+ * The work done by the force walks of one thread: interactions of a
+ * body with another body, a tree node or an expansion, tree nodes
+ * opened, and the time spent walking. Each worker counts into its own
+ * instance with plain increments and hands the totals to StepMetrics
+ * once per task, so counting adds no contention between the workers.
+ *
+ * Dependencies: none
+ */
+
+public final class WalkCounters {
+
+    long interactions;
+    long openings;
+    long nanos;
+
+    public long interactions() {
+        return interactions;
+    }
+
+    public long openings() {
+        return openings;
+    }
+
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * Sets every count back to 0.
+     */
+    public void clear() {
+        interactions = 0;
+        openings = 0;
+        nanos = 0;
+    }
+}